@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only record store holding every account known to this device.
+ *
+ * <p>Each mutation is appended to a log file as a single record:
+ * [OP (1) | ID (UTF) | AID (UTF) | VALUE LENGTH (4) | VALUE (UTF-8)]. The log is replayed once
+ * when the store is opened, building in-memory hash indexes by account ID and by AID, so lookups
+ * never touch the disk. Superseded records are dropped by {@link #compact()}, which rewrites the
+ * live set to a temporary file and renames it over the log.
+ *
+ * <p>This class is thread-safe.
+ */
+public class AccountRecordStore {
+    private static final String TAG = "AccountRecordStore";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    // Don't bother compacting until at least this many bytes of the log are garbage.
+    private static final long MIN_COMPACTION_GARBAGE = 64 * 1024;
+
+    /** A single account, as held in the index. Instances are immutable. */
+    public static class Account {
+        public final String id;
+        public final String aid;
+        public final String value;
+
+        Account(String id, String aid, String value) {
+            this.id = id;
+            this.aid = aid;
+            this.value = value;
+        }
+    }
+
+    private final File mFile;
+    private final HashMap<String, Account> mById = new HashMap<String, Account>();
+    private final HashMap<String, Account> mByAid = new HashMap<String, Account>();
+    private DataOutputStream mLog;
+    private long mLogLength;
+    private long mLiveLength;
+
+    public AccountRecordStore(File file) throws IOException {
+        mFile = file;
+        replay();
+        mLog = openLog();
+    }
+
+    /** Returns the account with the given ID, or null if there is none. */
+    public synchronized Account getById(String id) {
+        return mById.get(id);
+    }
+
+    /**
+     * Returns the account bound to the given AID, or null if there is none.
+     *
+     * @param aid AID in hexadecimal, case-insensitive
+     */
+    public synchronized Account getByAid(String aid) {
+        return mByAid.get(normalizeAid(aid));
+    }
+
+    /** Returns a snapshot of every live account. */
+    public synchronized List<Account> getAll() {
+        return new ArrayList<Account>(mById.values());
+    }
+
+    public synchronized int size() {
+        return mById.size();
+    }
+
+    /**
+     * Inserts or replaces an account. An AID may only be bound to one account at a time; binding
+     * it again moves it to the new account.
+     */
+    public synchronized void put(String id, String aid, String value) throws IOException {
+        Account account = new Account(id, aid == null ? "" : normalizeAid(aid), value);
+        long length = append(OP_PUT, account);
+        index(account, length);
+        maybeCompact();
+    }
+
+    /** Removes an account. Returns false if there was no account with the given ID. */
+    public synchronized boolean remove(String id) throws IOException {
+        if (!mById.containsKey(id)) {
+            return false;
+        }
+        Account tombstone = new Account(id, "", "");
+        append(OP_REMOVE, tombstone);
+        unindex(id);
+        maybeCompact();
+        return true;
+    }
+
+    /** Rewrites the log so that it contains only live records. */
+    public synchronized void compact() throws IOException {
+        Log.i(TAG, "Compacting " + mLogLength + " byte log, " + mLiveLength + " bytes live");
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            for (Account account : mById.values()) {
+                writeRecord(out, OP_PUT, account);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // Only swap once the new log is safely on disk. If anything fails from here on, reopen
+        // whichever log is in place so the store stays writable.
+        mLog.close();
+        try {
+            if (!tmp.renameTo(mFile)) {
+                tmp.delete();
+                throw new IOException("Unable to replace " + mFile);
+            }
+            mLogLength = mFile.length();
+            mLiveLength = mLogLength;
+        } finally {
+            mLog = openLog();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mLog.close();
+    }
+
+    private void maybeCompact() throws IOException {
+        long garbage = mLogLength - mLiveLength;
+        if (garbage >= MIN_COMPACTION_GARBAGE && garbage > mLiveLength) {
+            compact();
+        }
+    }
+
+    private long append(byte op, Account account) throws IOException {
+        int before = mLog.size();
+        writeRecord(mLog, op, account);
+        mLog.flush();
+        long length = mLog.size() - before;
+        mLogLength += length;
+        return length;
+    }
+
+    private void index(Account account, long recordLength) {
+        unindex(account.id);
+        Account previous = mByAid.get(account.aid);
+        if (previous != null && account.aid.length() > 0) {
+            // The AID moves to the new account; the old one stays reachable by ID only.
+            Account unbound = new Account(previous.id, "", previous.value);
+            mById.put(previous.id, unbound);
+            mLiveLength += recordLength(unbound) - recordLength(previous);
+        }
+        mById.put(account.id, account);
+        if (account.aid.length() > 0) {
+            mByAid.put(account.aid, account);
+        }
+        mLiveLength += recordLength;
+    }
+
+    private void unindex(String id) {
+        Account old = mById.remove(id);
+        if (old == null) {
+            return;
+        }
+        if (mByAid.get(old.aid) == old) {
+            mByAid.remove(old.aid);
+        }
+        mLiveLength -= recordLength(old);
+    }
+
+    private void replay() throws IOException {
+        mLogLength = 0;
+        mLiveLength = 0;
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        long fileLength = mFile.length();
+        long goodLength = 0;
+        try {
+            while (true) {
+                byte op = in.readByte();
+                Account account = readRecord(in, fileLength - goodLength - 1);
+                goodLength += recordLength(account);
+                if (op == OP_PUT) {
+                    index(account, recordLength(account));
+                } else {
+                    unindex(account.id);
+                }
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // End of log, possibly with a torn or corrupt record written while the process was
+            // dying. Everything from the bad record on is dropped.
+        } finally {
+            in.close();
+        }
+        if (goodLength < fileLength) {
+            Log.w(TAG, "Truncating torn record at offset " + goodLength);
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(goodLength);
+            } finally {
+                raf.close();
+            }
+        }
+        mLogLength = goodLength;
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, Account account)
+            throws IOException {
+        byte[] value = account.value.getBytes("UTF-8");
+        out.writeByte(op);
+        out.writeUTF(account.id);
+        out.writeUTF(account.aid);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Reads a record after its OP byte.
+     *
+     * @param available Bytes left in the log after the OP byte
+     * @throws EOFException if the record is truncated or its value length is out of range
+     */
+    private static Account readRecord(DataInputStream in, long available) throws IOException {
+        String id = in.readUTF();
+        String aid = in.readUTF();
+        int length = in.readInt();
+        long header = 2 + utfLength(id) + 2 + utfLength(aid) + 4;
+        if (length < 0 || length > available - header) {
+            throw new EOFException("Bad value length " + length + " for account " + id);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return new Account(id, aid, new String(value, "UTF-8"));
+    }
+
+    private static long recordLength(Account account) {
+        try {
+            // OP + two modified-UTF-8 strings with 2 byte length prefixes + value length + value.
+            return 1 + 2 + utfLength(account.id) + 2 + utfLength(account.aid) + 4
+                    + account.value.getBytes("UTF-8").length;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private static String normalizeAid(String aid) {
+        return aid.toUpperCase(Locale.US);
+    }
+}
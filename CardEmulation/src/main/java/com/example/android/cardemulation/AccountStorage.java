@@ -23,42 +23,80 @@ import android.util.Log;
 
 import com.example.android.common.AESHelper;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Utility class for persisting account numbers to disk.
  *
- * <p>The default SharedPreferences instance is used as the backing storage. Values are cached
- * in memory for performance.
+ * <p>Accounts are kept in an {@link AccountRecordStore} in the app's private files directory,
+ * indexed by account ID and by AID. The store is opened once and held in memory, so looking up
+ * the account for a selected AID never touches preferences XML. An account saved by older
+ * versions in the default SharedPreferences is migrated into the store the first time it is
+ * opened.
  *
  * <p>This class is thread-safe.
  */
 public class AccountStorage {
     private static final String PREF_ACCOUNT_NUMBER = "account_number";
     private static final String DEFAULT_ACCOUNT_NUMBER = "00000000";
+    // AID the single legacy account was served under.
+    private static final String DEFAULT_ACCOUNT_AID = "F222222222";
+    private static final String STORE_FILE_NAME = "accounts.log";
     private static final String TAG = "AccountStorage";
-    private static String sAccount = null;
+    private static AccountRecordStore sStore = null;
     private static final Object sAccountLock = new Object();
 
     public static void SetAccount(Context c, String s) {
-        synchronized(sAccountLock) {
-            Log.i(TAG, "Setting account number: " + s);
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-            prefs.edit().putString(PREF_ACCOUNT_NUMBER, s).commit();
-            sAccount = s;
+        PutAccount(c, DEFAULT_ACCOUNT_NUMBER, DEFAULT_ACCOUNT_AID, s);
+    }
+
+    /**
+     * Insert or replace an account.
+     *
+     * @param id Account ID
+     * @param aid AID the account is selected by, in hexadecimal. May be null.
+     * @param value Account data
+     */
+    public static void PutAccount(Context c, String id, String aid, String value) {
+        synchronized (sAccountLock) {
+            Log.i(TAG, "Setting account " + id + " for AID " + aid);
+            try {
+                getStore(c).put(id, aid, value);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to save account " + id + ": " + e);
+            }
         }
     }
 
-    public static String GetAccountEncrypted(Context c) {
+    public static void RemoveAccount(Context c, String id) {
         synchronized (sAccountLock) {
-            if (sAccount == null) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-                String account = prefs.getString(PREF_ACCOUNT_NUMBER, DEFAULT_ACCOUNT_NUMBER);
-                sAccount = account;
+            try {
+                getStore(c).remove(id);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to remove account " + id + ": " + e);
             }
+        }
+    }
 
+    /**
+     * Look up the account selected by an AID.
+     *
+     * @param aid AID in hexadecimal
+     * @return The account, or null if no account is bound to this AID
+     */
+    public static AccountRecordStore.Account GetAccountForAid(Context c, String aid) {
+        synchronized (sAccountLock) {
+            return getStore(c).getByAid(aid);
+        }
+    }
+
+    public static String GetAccountEncrypted(Context c) {
+        synchronized (sAccountLock) {
             String seedVal = "PRESHAREDKEY";
             String encodedString = "fail";
             try {
-                encodedString = AESHelper.encrypt(seedVal, sAccount);
+                encodedString = AESHelper.encrypt(seedVal, GetAccount(c));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -69,14 +107,38 @@ public class AccountStorage {
 
     public static String GetAccount(Context c) {
         synchronized (sAccountLock) {
-            if (sAccount == null) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-                String account = prefs.getString(PREF_ACCOUNT_NUMBER, DEFAULT_ACCOUNT_NUMBER);
-                sAccount = account;
-            }
+            AccountRecordStore.Account account = getStore(c).getById(DEFAULT_ACCOUNT_NUMBER);
+            return account != null ? account.value : DEFAULT_ACCOUNT_NUMBER;
+        }
+    }
 
+    private static AccountRecordStore getStore(Context c) {
+        if (sStore == null) {
+            File file = new File(c.getFilesDir(), STORE_FILE_NAME);
+            try {
+                sStore = new AccountRecordStore(file);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open account store " + file, e);
+            }
+            migrateLegacyAccount(c);
+        }
+        return sStore;
+    }
 
-            return sAccount;
+    private static void migrateLegacyAccount(Context c) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+        String legacy = prefs.getString(PREF_ACCOUNT_NUMBER, null);
+        if (legacy == null) {
+            return;
+        }
+        Log.i(TAG, "Migrating legacy account into record store");
+        try {
+            if (sStore.getById(DEFAULT_ACCOUNT_NUMBER) == null) {
+                sStore.put(DEFAULT_ACCOUNT_NUMBER, DEFAULT_ACCOUNT_AID, legacy);
+            }
+            prefs.edit().remove(PREF_ACCOUNT_NUMBER).commit();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to migrate legacy account: " + e);
         }
     }
 }
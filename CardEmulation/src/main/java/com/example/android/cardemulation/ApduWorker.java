@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.nfc.cardemulation.HostApduService;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated background thread for command APDUs that cannot be answered immediately.
+ *
+ * <p>{@link HostApduService#processCommandApdu} runs on the main thread. A deferred command is
+ * handed to this worker while the service returns null; the worker then answers through
+ * {@link HostApduService#sendResponseApdu}. If it has not answered by the command's deadline,
+ * the fallback status word is sent from the main thread instead and the late response is
+ * dropped, so the reader never waits past its own timeout.
+ *
+ * <p>Commands are executed in submission order.
+ */
+public class ApduWorker implements Executor {
+    private static final String TAG = "ApduWorker";
+
+    /** Destination for responses, normally {@link HostApduService#sendResponseApdu}. */
+    public interface ResponseSender {
+        void sendResponseApdu(byte[] responseApdu);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler;
+    private final ResponseSender mSender;
+    // Commands submitted but not yet finished, including ones whose deadline already passed.
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    public ApduWorker(Looper mainLooper, ResponseSender sender) {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(mainLooper);
+        mSender = sender;
+    }
+
+    /**
+     * Returns true while a submitted command is still running. Commands arriving meanwhile should
+     * be submitted too, so that they don't touch applet state the late command is still using.
+     */
+    public boolean isBusy() {
+        return mPending.get() > 0;
+    }
+
+    /**
+     * Run a command on the worker thread and send its response.
+     *
+     * @param handler Handler producing the response
+     * @param commandApdu Command APDU to pass to the handler
+     * @param deadlineMs Time after which {@code fallbackSw} is sent instead
+     * @param fallbackSw Status word sent on deadline expiry or if the handler throws
+     */
+    public void submit(final CommandHandler handler, final byte[] commandApdu, long deadlineMs,
+                       final byte[] fallbackSw) {
+        final AtomicBoolean responded = new AtomicBoolean();
+        final Runnable expiry = new Runnable() {
+            @Override
+            public void run() {
+                if (responded.compareAndSet(false, true)) {
+                    Log.w(TAG, "Deadline exceeded, sending fallback "
+                            + CardService.ByteArrayToHexString(fallbackSw));
+                    mSender.sendResponseApdu(fallbackSw);
+                }
+            }
+        };
+        mPending.incrementAndGet();
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] response;
+                try {
+                    response = handler.handle(commandApdu);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Command failed: " + e);
+                    response = fallbackSw;
+                } finally {
+                    mPending.decrementAndGet();
+                }
+                mMainHandler.removeCallbacks(expiry);
+                if (responded.compareAndSet(false, true)) {
+                    mSender.sendResponseApdu(response);
+                } else {
+                    Log.w(TAG, "Dropping response produced after deadline");
+                }
+            }
+        });
+        mMainHandler.postDelayed(expiry, deadlineMs);
+    }
+
+    /** Run a background task, such as warming up storage, on the worker thread. */
+    @Override
+    public void execute(Runnable task) {
+        mWorkerHandler.post(task);
+    }
+
+    public void quit() {
+        mMainHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+}
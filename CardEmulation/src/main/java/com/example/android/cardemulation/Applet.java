@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.Arrays;
+
+/**
+ * Base class for a program hosted by {@link CardService}, such as a loyalty, access or ticketing
+ * card.
+ *
+ * <p>Each applet is registered for one or more AIDs in an {@link AppletRegistry}, keeps its own
+ * state, and routes commands through its own dispatch table indexed by the INS byte. The SELECT
+ * command that made it current is dispatched through the same table, under {@link #INS_SELECT}.
+ *
+ * <p>Cheap commands are registered with {@link #register} and run inline on the main thread.
+ * Commands that need crypto, storage or content loading should be registered with
+ * {@link #registerDeferred}; {@link CardService} then runs them on its {@link ApduWorker} and
+ * answers with a fallback status word if they miss their deadline.
+ *
+ * <p>Every applet also accepts ENVELOPE ({@link #INS_ENVELOPE}), which packs several commands
+ * into one APDU so a reader can save round trips. Command data is a sequence of
+ * [LENGTH (1) | COMMAND APDU] entries. The commands run in order through this applet's dispatch
+ * table, and the response data is a sequence of [LENGTH (2) | RESPONSE APDU] entries, one per
+ * command, followed by 9000. If the next response would not fit in a short response APDU, the
+ * envelope stops there and answers {@link #ENVELOPE_INCOMPLETE_SW}; the command whose response
+ * did not fit has already run, so only idempotent commands should be placed where that can
+ * happen. An envelope is deferred if any of its commands is.
+ */
+public abstract class Applet {
+    public static final byte INS_SELECT = (byte) 0xA4;
+    public static final byte INS_ENVELOPE = (byte) 0xC2;
+    // Longest response data a short APDU can carry, excluding the status word.
+    public static final int MAX_RESPONSE_DATA_LENGTH = 256;
+    // "OK" status word (0x9000)
+    public static final byte[] OK_SW = {(byte) 0x90, (byte) 0x00};
+    // "INS not supported" status word (0x6D00)
+    public static final byte[] INS_NOT_SUPPORTED_SW = {(byte) 0x6D, (byte) 0x00};
+    // "No precise diagnosis" status word (0x6F00), the default answer to a missed deadline
+    public static final byte[] NO_PRECISE_DIAGNOSIS_SW = {(byte) 0x6F, (byte) 0x00};
+    // "Wrong length" status word (0x6700)
+    public static final byte[] WRONG_LENGTH_SW = {(byte) 0x67, (byte) 0x00};
+    // "Wrong data" status word (0x6A80)
+    public static final byte[] WRONG_DATA_SW = {(byte) 0x6A, (byte) 0x80};
+    // "Incorrect parameters P1-P2" status word (0x6A86)
+    public static final byte[] INCORRECT_P1P2_SW = {(byte) 0x6A, (byte) 0x86};
+    // "Conditions of use not satisfied" status word (0x6985)
+    public static final byte[] CONDITIONS_NOT_SATISFIED_SW = {(byte) 0x69, (byte) 0x85};
+    // Status word ending an envelope that ran out of response space (0x6310)
+    public static final byte[] ENVELOPE_INCOMPLETE_SW = {(byte) 0x63, (byte) 0x10};
+
+    private final String mName;
+    private final CommandHandler[] mHandlers = new CommandHandler[256];
+    // Deadline in milliseconds for deferred handlers, 0 for handlers run inline.
+    private final long[] mDeadlines = new long[256];
+    private final byte[][] mFallbacks = new byte[256][];
+
+    protected Applet(String name) {
+        mName = name;
+        register(INS_ENVELOPE, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return processEnvelope(commandApdu);
+            }
+        });
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Register the handler for an instruction. Any previous handler for the same INS is replaced.
+     */
+    protected void register(byte ins, CommandHandler handler) {
+        mHandlers[ins & 0xFF] = handler;
+        mDeadlines[ins & 0xFF] = 0;
+        mFallbacks[ins & 0xFF] = null;
+    }
+
+    /**
+     * Register the handler for an instruction that is too expensive to run on the main thread.
+     *
+     * @param deadlineMs Time the handler has to produce a response
+     * @param fallbackSw Status word sent instead if the deadline passes, or if the handler throws
+     */
+    protected void registerDeferred(byte ins, long deadlineMs, byte[] fallbackSw,
+                                    CommandHandler handler) {
+        if (deadlineMs <= 0) {
+            throw new IllegalArgumentException("Deadline must be positive");
+        }
+        mHandlers[ins & 0xFF] = handler;
+        mDeadlines[ins & 0xFF] = deadlineMs;
+        mFallbacks[ins & 0xFF] = fallbackSw;
+    }
+
+    /**
+     * Returns the handler for a command APDU, or null if this applet does not support it.
+     */
+    public CommandHandler getHandler(byte[] commandApdu) {
+        if (commandApdu.length < 4) {
+            return null;
+        }
+        return mHandlers[commandApdu[1] & 0xFF];
+    }
+
+    /**
+     * Returns the deadline in milliseconds for a deferred command, or 0 if the command should be
+     * handled inline.
+     */
+    public long getDeadline(byte[] commandApdu) {
+        if (commandApdu.length < 4) {
+            return 0;
+        }
+        if (commandApdu[1] != INS_ENVELOPE || commandApdu.length < 5) {
+            return mDeadlines[commandApdu[1] & 0xFF];
+        }
+        // An envelope gets the combined deadline of its deferred commands.
+        long deadline = 0;
+        int end = Math.min(commandApdu.length, 5 + (commandApdu[4] & 0xFF));
+        for (int offset = 5; offset + 2 < end; offset += 1 + (commandApdu[offset] & 0xFF)) {
+            deadline += mDeadlines[commandApdu[offset + 2] & 0xFF];
+        }
+        return deadline;
+    }
+
+    /**
+     * Returns the status word to send if a command misses its deadline.
+     */
+    public byte[] getFallback(byte[] commandApdu) {
+        byte[] fallback = commandApdu.length < 4 ? null : mFallbacks[commandApdu[1] & 0xFF];
+        return fallback != null ? fallback : NO_PRECISE_DIAGNOSIS_SW;
+    }
+
+    /**
+     * Dispatch a command APDU to its handler on the calling thread.
+     *
+     * @return The response APDU, or {@link #INS_NOT_SUPPORTED_SW} if there is no handler
+     */
+    public byte[] process(byte[] commandApdu) {
+        CommandHandler handler = getHandler(commandApdu);
+        if (handler == null) {
+            return INS_NOT_SUPPORTED_SW;
+        }
+        return handler.handle(commandApdu);
+    }
+
+    private byte[] processEnvelope(byte[] commandApdu) {
+        if (commandApdu.length < 5 || commandApdu.length < 5 + (commandApdu[4] & 0xFF)) {
+            return WRONG_LENGTH_SW;
+        }
+        int end = 5 + (commandApdu[4] & 0xFF);
+        byte[] out = new byte[MAX_RESPONSE_DATA_LENGTH + 2];
+        int outLength = 0;
+        byte[] sw = OK_SW;
+        int offset = 5;
+        while (offset < end) {
+            int length = commandApdu[offset++] & 0xFF;
+            if (length < 4 || offset + length > end) {
+                return WRONG_LENGTH_SW;
+            }
+            byte[] command = Arrays.copyOfRange(commandApdu, offset, offset + length);
+            offset += length;
+            byte[] response;
+            if (command[1] == INS_SELECT || command[1] == INS_ENVELOPE) {
+                // Selection and nesting would change who handles the rest of the envelope.
+                response = CONDITIONS_NOT_SATISFIED_SW;
+            } else {
+                response = process(command);
+            }
+            if (outLength + 2 + response.length > MAX_RESPONSE_DATA_LENGTH) {
+                sw = ENVELOPE_INCOMPLETE_SW;
+                break;
+            }
+            out[outLength++] = (byte) (response.length >> 8);
+            out[outLength++] = (byte) response.length;
+            System.arraycopy(response, 0, out, outLength, response.length);
+            outLength += response.length;
+        }
+        out[outLength++] = sw[0];
+        out[outLength++] = sw[1];
+        return Arrays.copyOf(out, outLength);
+    }
+
+    /**
+     * Called when this applet stops being the current one, either because another AID was
+     * selected or because the link was lost.
+     */
+    public void onDeselected() { }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+/**
+ * Maps AIDs to the {@link Applet} that handles them.
+ *
+ * <p>AIDs are stored in a trie over their raw bytes, so resolving a SELECT costs one array index
+ * per AID byte (at most 16) no matter how many applets are registered. Besides exact AIDs, an
+ * applet may claim a whole group of AIDs sharing a prefix; an exact registration always wins,
+ * otherwise the longest matching prefix does.
+ *
+ * <p>Registration is expected to happen before the service starts handling commands; lookups are
+ * not synchronized against concurrent registration.
+ */
+public class AppletRegistry {
+    // AIDs may not exceed 16 bytes (ISO 7816-5).
+    private static final int MAX_AID_LENGTH = 16;
+
+    private static class Node {
+        Node[] children;
+        Applet exact;
+        Applet prefix;
+    }
+
+    private final Node mRoot = new Node();
+
+    /** Route SELECTs of exactly this AID to {@code applet}. */
+    public void register(String aid, Applet applet) {
+        nodeFor(CardService.HexStringToByteArray(aid)).exact = applet;
+    }
+
+    /** Route SELECTs of any AID starting with {@code aidPrefix} to {@code applet}. */
+    public void registerPrefix(String aidPrefix, Applet applet) {
+        nodeFor(CardService.HexStringToByteArray(aidPrefix)).prefix = applet;
+    }
+
+    /**
+     * Resolve an AID.
+     *
+     * @param buffer Buffer holding the AID, typically the SELECT command APDU itself
+     * @param offset Offset of the AID in {@code buffer}
+     * @param length Length of the AID
+     * @return The applet registered for this AID, or null if there is none
+     */
+    public Applet lookup(byte[] buffer, int offset, int length) {
+        if (length > MAX_AID_LENGTH) {
+            return null;
+        }
+        Node node = mRoot;
+        Applet bestPrefix = node.prefix;
+        for (int i = 0; i < length; i++) {
+            if (node.children == null) {
+                return bestPrefix;
+            }
+            node = node.children[buffer[offset + i] & 0xFF];
+            if (node == null) {
+                return bestPrefix;
+            }
+            if (node.prefix != null) {
+                bestPrefix = node.prefix;
+            }
+        }
+        return node.exact != null ? node.exact : bestPrefix;
+    }
+
+    private Node nodeFor(byte[] aid) {
+        if (aid.length > MAX_AID_LENGTH) {
+            throw new IllegalArgumentException("AID longer than " + MAX_AID_LENGTH + " bytes");
+        }
+        Node node = mRoot;
+        for (byte b : aid) {
+            if (node.children == null) {
+                node.children = new Node[256];
+            }
+            Node child = node.children[b & 0xFF];
+            if (child == null) {
+                child = new Node();
+                node.children[b & 0xFF] = child;
+            }
+            node = child;
+        }
+        return node;
+    }
+}
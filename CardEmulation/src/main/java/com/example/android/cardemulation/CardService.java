@@ -18,12 +18,9 @@ package com.example.android.cardemulation;
 
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
-import android.os.Environment;
-import android.widget.Toast;
 
 import com.example.android.common.logger.Log;
 
-import java.io.File;
 import java.util.Arrays;
 
 /**
@@ -37,6 +34,13 @@ import java.util.Arrays;
  * <p>This sample will be invoked for any terminals selecting AIDs of 0xF11111111, 0xF22222222, or
  * 0xF33333333. See src/main/res/xml/aid_list.xml for more details.
  *
+ * <p>Each program hosted here is an {@link Applet} registered in an {@link AppletRegistry} for
+ * its AIDs. A SELECT AID command makes the matching applet current, and every following command
+ * is routed to it until another AID is selected or the link is lost.
+ *
+ * <p>Commands an applet registers as deferred run on an {@link ApduWorker} instead of the main
+ * thread, each with its own deadline and fallback status word.
+ *
  * <p class="note">Note: This is a low-level interface. Unlike the NdefMessage many developers
  * are familiar with for implementing Android Beam in apps, card emulation only provides a
  * byte-array based communication channel. It is left to developers to implement higher level
@@ -44,31 +48,53 @@ import java.util.Arrays;
  */
 public class CardService extends HostApduService {
     private static final String TAG = "CardService";
-    // AID for our loyalty card service.
+    // AID for our loyalty card service. Every AID starting with it selects a card of the program.
     private static final String SAMPLE_LOYALTY_CARD_AID = "F222222222";
     // ISO-DEP command HEADER for selecting an AID.
     // Format: [Class | Instruction | Parameter 1 | Parameter 2]
     private static final String SELECT_APDU_HEADER = "00A40400";
     // Format: [Class | Instruction | Parameter 1 | Parameter 2]
     private static final String GET_DATA_APDU_HEADER = "00CA0000";
-    // "OK" status word sent in response to SELECT AID command (0x9000)
-    private static final byte[] SELECT_OK_SW = HexStringToByteArray("9000");
     // "UNKNOWN" status word sent in response to invalid APDU command (0x0000)
     private static final byte[] UNKNOWN_CMD_SW = HexStringToByteArray("0000");
-    private static final byte[] SELECT_APDU = BuildSelectApdu(SAMPLE_LOYALTY_CARD_AID);
-    private static final byte[] GET_DATA_APDU = BuildGetDataApdu();
+    // "File not found" status word sent in response to SELECT of an AID nobody handles (0x6A82)
+    private static final byte[] AID_NOT_FOUND_SW = HexStringToByteArray("6A82");
 
     private static final String WRITE_DATA_APDU_HEADER = "00DA0000";
     private static final String READ_DATA_APDU_HEADER = "00EA0000";
-    private static final byte[] WRITE_DATA_APDU = BuildWriteDataApdu();
-    private static final byte[] READ_DATA_APDU = BuildReadDataApdu();
-    private static String dataStr = null;
 
-    /*File IO Stuffs*/
-    File sdcard = Environment.getExternalStorageDirectory();
-    File file = new File(sdcard,"file.txt");
-    StringBuilder text = new StringBuilder();
-    int pointer;
+    // Deadline for commands queued behind a deferred command that is still running.
+    private static final long QUEUED_COMMAND_DEADLINE_MS = 300;
+
+    private final AppletRegistry mRegistry = new AppletRegistry();
+    private ApduWorker mWorker;
+    // Applet chosen by the last successful SELECT, or null if none is selected.
+    private Applet mCurrentApplet;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mWorker = new ApduWorker(getMainLooper(), new ApduWorker.ResponseSender() {
+            @Override
+            public void sendResponseApdu(byte[] responseApdu) {
+                CardService.this.sendResponseApdu(responseApdu);
+            }
+        });
+        mRegistry.registerPrefix(SAMPLE_LOYALTY_CARD_AID, new LoyaltyApplet(this, mWorker));
+        // Open the account store ahead of the first tap.
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                AccountStorage.GetAccountForAid(CardService.this, SAMPLE_LOYALTY_CARD_AID);
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        mWorker.quit();
+        super.onDestroy();
+    }
 
     /**
      * Called if the connection to the NFC card is lost, in order to let the application know the
@@ -78,7 +104,12 @@ public class CardService extends HostApduService {
      * @param reason Either DEACTIVATION_LINK_LOSS or DEACTIVATION_DESELECTED
      */
     @Override
-    public void onDeactivated(int reason) { }
+    public void onDeactivated(int reason) {
+        if (mCurrentApplet != null) {
+            mCurrentApplet.onDeselected();
+            mCurrentApplet = null;
+        }
+    }
 
     /**
      * This method will be called when a command APDU has been received from a remote device. A
@@ -103,59 +134,54 @@ public class CardService extends HostApduService {
     @Override
     public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
         Log.i(TAG, "Received APDU: " + ByteArrayToHexString(commandApdu));
-        byte[] cmd = null;
-        //length 6 is define by WRITE_DATA_APDU from read and emulatior
-        //长度由reader端及卡端的命令WRITE_DATA_APDU来协商的
-        if(commandApdu.length >= 6){
-            cmd = Arrays.copyOf(commandApdu,6);
-        }
-        // If the APDU matches the SELECT AID command for this service,
-        // send the loyalty card account number, followed by a SELECT_OK status trailer (0x9000).
-        if (Arrays.equals(SELECT_APDU, commandApdu)) {
-            String account = "some string random data";
-            byte[] accountBytes = account.getBytes();
-            Log.i(TAG, "Sending account number: " + account);
-            readFromFile();
-            return ConcatArrays(accountBytes, SELECT_OK_SW);
-        } else if ((Arrays.equals(GET_DATA_APDU, commandApdu))) {
-            String stringToSend;
-            try {
-                stringToSend = text.toString().substring(pointer, pointer + 200);
-            } catch (IndexOutOfBoundsException e) {
-                Toast.makeText(this, "Reached the end of the file", Toast.LENGTH_SHORT).show();
-                stringToSend = "END";
+        // A SELECT AID command makes the applet registered for that AID current. Everything
+        // else is routed to the current applet's own dispatch table.
+        if (isSelectAid(commandApdu)) {
+            Applet applet = mRegistry.lookup(commandApdu, 5, commandApdu[4] & 0xFF);
+            if (applet != mCurrentApplet && mCurrentApplet != null) {
+                mCurrentApplet.onDeselected();
             }
-            pointer += 200;byte[] accountBytes = stringToSend.getBytes();
-            Log.i(TAG, "Sending substring, pointer : " + pointer + " , " + stringToSend);
-            return ConcatArrays(accountBytes, SELECT_OK_SW);
-        } else if (cmd != null && Arrays.equals(WRITE_DATA_APDU, cmd)){
-            //length 6 is define by WRITE_DATA_APDU from read and emulatior
-            //长度由reader端及卡端的命令WRITE_DATA_APDU来协商的
-            byte[] data = Arrays.copyOfRange(commandApdu,6,commandApdu.length);
-            try {
-                dataStr = new String(data, "UTF-8");
-                Log.i(TAG, "dataStr:" + dataStr);
-            }catch (Exception e){
-                e.printStackTrace();
+            mCurrentApplet = applet;
+            if (applet == null) {
+                return AID_NOT_FOUND_SW;
             }
-            String account = "write success";
-            byte[] accountBytes = account.getBytes();
-            Log.i(TAG, "Sending account number: " + account);
-            return ConcatArrays(accountBytes, SELECT_OK_SW);
-        } else if (Arrays.equals(READ_DATA_APDU, cmd)){
-            if(dataStr!=null) {
-                byte[] accountBytes = dataStr.getBytes();
-                Log.i(TAG, "Sending account number: " + dataStr);
-                return ConcatArrays(accountBytes, SELECT_OK_SW);
-            }else {
-                byte[] accountBytes = "data error".getBytes();
-                Log.i(TAG, "Sending account number: " + dataStr);
-                return ConcatArrays(accountBytes, SELECT_OK_SW);
-            }
-        } else {
-                return UNKNOWN_CMD_SW;
+            Log.i(TAG, "Selected applet: " + applet.getName());
+        } else if (mCurrentApplet == null) {
+            return UNKNOWN_CMD_SW;
+        }
+        return dispatch(mCurrentApplet, commandApdu);
+    }
 
+    /**
+     * Run a command inline if it is cheap, or hand it to the worker if the applet registered it
+     * as deferred. Returns null in the latter case; the worker answers through
+     * {@link #sendResponseApdu(byte[])}.
+     */
+    private byte[] dispatch(Applet applet, byte[] commandApdu) {
+        CommandHandler handler = applet.getHandler(commandApdu);
+        if (handler == null) {
+            return Applet.INS_NOT_SUPPORTED_SW;
+        }
+        long deadline = applet.getDeadline(commandApdu);
+        if (deadline == 0 && mWorker.isBusy()) {
+            // A command that missed its deadline is still running; queue behind it rather than
+            // racing it for the applet's state.
+            deadline = QUEUED_COMMAND_DEADLINE_MS;
+        }
+        if (deadline == 0) {
+            return handler.handle(commandApdu);
         }
+        mWorker.submit(handler, commandApdu, deadline, applet.getFallback(commandApdu));
+        return null;
+    }
+
+    /**
+     * Returns true if the APDU is a well-formed SELECT by DF name (AID). See ISO 7816-4.
+     */
+    private static boolean isSelectAid(byte[] apdu) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
+        return apdu.length >= 5 && apdu[0] == (byte) 0x00 && apdu[1] == Applet.INS_SELECT
+                && apdu[2] == (byte) 0x04 && apdu.length >= 5 + (apdu[4] & 0xFF);
     }
 
     /**
@@ -243,27 +269,6 @@ public class CardService extends HostApduService {
         return result;
     }
 
-    private void readFromFile() {
-//        try {
-//            BufferedReader br = new BufferedReader(new FileReader(file));
-//            String line;
-//
-//            while ((line = br.readLine()) != null) {
-//                text.append(line);
-//                text.append('\n');
-//            }
-//        }
-//        catch (IOException e) {
-//            e.printStackTrace();
-//        }
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-        text.append("some string random data some string random data some string random data some string random data some string random data \n");
-    }
-
     public static byte[] BuildWriteDataApdu() {
         // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | DATA]
         return HexStringToByteArray(WRITE_DATA_APDU_HEADER + "0FFF");
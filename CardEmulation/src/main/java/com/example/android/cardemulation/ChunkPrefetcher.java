@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Prepares upcoming response frames on a background thread while the reader is still consuming
+ * the current one.
+ *
+ * <p>Frames live in a small ring of reusable buffers. When frame {@code i} is taken, frames
+ * {@code i + 1} up to {@code i + depth - 1} are scheduled to be built, so by the time the next
+ * command arrives its response is usually ready and the handler only has to hand it back. A
+ * frame that is not ready (the reader skipped ahead, or the producer fell behind) is built inline.
+ *
+ * <p>The buffer last handed out is never refilled until another frame is taken, since the
+ * system may still be transmitting it.
+ *
+ * <p>This class is thread-safe.
+ */
+public class ChunkPrefetcher {
+
+    /** Produces fully framed response APDUs, including the status word. */
+    public interface FrameSource {
+        /** Returns the length of frame {@code index} in bytes. */
+        int getFrameLength(int index);
+
+        /** Writes frame {@code index} into {@code frame}, which is exactly long enough. */
+        void writeFrame(int index, byte[] frame);
+    }
+
+    private final FrameSource mSource;
+    private final Executor mExecutor;
+    private final byte[][] mSlots;
+    // Frame index held by each slot, or -1 if the slot is empty or being filled.
+    private final int[] mSlotFrames;
+    private int mNext;
+    private int mLimit;
+    private int mInFlightSlot = -1;
+    private boolean mFillScheduled;
+
+    private final Runnable mFill = new Runnable() {
+        @Override
+        public void run() {
+            fill();
+        }
+    };
+
+    /**
+     * @param source Source of frames
+     * @param executor Background executor to build frames on
+     * @param depth Number of buffers in the ring; up to {@code depth - 1} frames are prepared
+     *              ahead of the one in flight
+     */
+    public ChunkPrefetcher(FrameSource source, Executor executor, int depth) {
+        if (depth < 2) {
+            throw new IllegalArgumentException("Depth must be at least 2");
+        }
+        mSource = source;
+        mExecutor = executor;
+        mSlots = new byte[depth][];
+        mSlotFrames = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            mSlotFrames[i] = -1;
+        }
+    }
+
+    /** Start preparing frames from {@code index} onwards, ahead of the first request. */
+    public synchronized void start(int index) {
+        mNext = index;
+        mLimit = index + mSlots.length - 1;
+        scheduleFill();
+    }
+
+    /**
+     * Returns frame {@code index}, and schedules the frames after it to be prepared.
+     */
+    public byte[] take(int index) {
+        byte[] frame;
+        synchronized (this) {
+            int slot = index % mSlots.length;
+            if (mSlotFrames[slot] == index) {
+                frame = mSlots[slot];
+                mInFlightSlot = slot;
+            } else {
+                frame = null;
+                // Whatever was in flight has been sent by now; don't let it be overwritten
+                // while a stale slot index still points at it.
+                mInFlightSlot = -1;
+            }
+            if (mNext <= index || mNext > index + mSlots.length - 1) {
+                mNext = index + 1;
+            }
+            mLimit = index + mSlots.length;
+            scheduleFill();
+        }
+        if (frame == null) {
+            frame = new byte[mSource.getFrameLength(index)];
+            mSource.writeFrame(index, frame);
+        }
+        return frame;
+    }
+
+    private void scheduleFill() {
+        if (!mFillScheduled) {
+            mFillScheduled = true;
+            mExecutor.execute(mFill);
+        }
+    }
+
+    private void fill() {
+        while (true) {
+            int index;
+            int slot;
+            byte[] buffer;
+            synchronized (this) {
+                index = mNext;
+                slot = index % mSlots.length;
+                if (index >= mLimit || slot == mInFlightSlot) {
+                    mFillScheduled = false;
+                    return;
+                }
+                mNext++;
+                if (mSlotFrames[slot] == index) {
+                    continue;
+                }
+                mSlotFrames[slot] = -1;
+                buffer = mSlots[slot];
+            }
+            int length = mSource.getFrameLength(index);
+            if (buffer == null || buffer.length != length) {
+                buffer = new byte[length];
+            }
+            mSource.writeFrame(index, buffer);
+            synchronized (this) {
+                if (slot != mInFlightSlot) {
+                    mSlots[slot] = buffer;
+                    mSlotFrames[slot] = index;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import com.example.android.common.BlockChecksum;
+import com.example.android.common.Crc32c;
+import com.example.android.common.MerkleTree;
+import com.example.android.common.PayloadCodec;
+import com.example.android.common.TransferManifest;
+
+import java.nio.charset.Charset;
+
+/**
+ * Immutable copy of the content served by an applet, split into fixed size chunks.
+ *
+ * <p>Chunk {@code i} is framed as [CHUNK DATA | CRC-32C (4) | SW1 | SW2], the checksum letting the
+ * reader tell a frame damaged in transit and ask for it again. Requests past the last chunk are
+ * answered with the "END" marker the reader looks for. The SELECT response carries a
+ * {@link TransferManifest} followed by as much of chunk 0 as fits; see
+ * {@link #buildSelectFrame}.
+ *
+ * <p>Each chunk is also a block for delta transfers: its {@link BlockChecksum} weak and strong
+ * checksums are computed up front and served by {@link #buildChecksumFrame}, so a reader holding
+ * an older copy of the content can fetch only the blocks that changed.
+ *
+ * <p>If the content is worth compressing, a compressed copy is made up front as well, framed
+ * into chunks of the same size by {@link #getCompressedFrames}. The SELECT response then offers
+ * the codec and carries the start of the compressed copy instead.
+ *
+ * <p>A {@link MerkleTree} is built over the chunks of the content, and of the compressed copy,
+ * so that a reader can verify each chunk it receives. The roots travel in the manifest and the
+ * proof of any chunk is served by {@link #buildProofFrame}.
+ */
+public class ContentSnapshot implements ChunkPrefetcher.FrameSource {
+    public static final int DEFAULT_CHUNK_SIZE = 200;
+    private static final byte[] END_MARKER = {'E', 'N', 'D'};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mContent;
+    private final int mChunkSize;
+    private final int mChunkCount;
+    private final long mVersion;
+    private final int[] mWeakChecksums;
+    private final long[] mStrongChecksums;
+    private final PayloadCodec mCodec;
+    private final byte[] mCompressed;
+    private final MerkleTree mTree;
+    // Tree over the chunks of the compressed copy, or null if there is none.
+    private final MerkleTree mCompressedTree;
+
+    public ContentSnapshot(byte[] content, int chunkSize) {
+        this(content, chunkSize, null);
+    }
+
+    /**
+     * @param codec Codec to offer the content in if it compresses well, or null
+     */
+    public ContentSnapshot(byte[] content, int chunkSize, PayloadCodec codec) {
+        mContent = content;
+        mChunkSize = chunkSize;
+        mChunkCount = (content.length + chunkSize - 1) / chunkSize;
+        mVersion = BlockChecksum.contentVersion(content);
+        mWeakChecksums = new int[mChunkCount];
+        mStrongChecksums = new long[mChunkCount];
+        for (int i = 0; i < mChunkCount; i++) {
+            int offset = i * chunkSize;
+            int length = Math.min(chunkSize, content.length - offset);
+            mWeakChecksums[i] = BlockChecksum.weak(content, offset, length);
+            mStrongChecksums[i] = BlockChecksum.strong(content, offset, length);
+        }
+        byte[] compressed = null;
+        if (codec != null && codec.isWorthCompressing(content, 0, content.length)) {
+            compressed = codec.encode(content, 0, content.length);
+            if (compressed.length >= content.length) {
+                compressed = null;
+            }
+        }
+        mCodec = compressed != null ? codec : null;
+        mCompressed = compressed;
+        mTree = new MerkleTree(content, chunkSize);
+        mCompressedTree = compressed != null ? new MerkleTree(compressed, chunkSize) : null;
+    }
+
+    public static ContentSnapshot fromText(CharSequence text, int chunkSize) {
+        return fromText(text, chunkSize, null);
+    }
+
+    public static ContentSnapshot fromText(CharSequence text, int chunkSize,
+                                           PayloadCodec codec) {
+        return new ContentSnapshot(text.toString().getBytes(UTF_8), chunkSize, codec);
+    }
+
+    public int getLength() {
+        return mContent.length;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    /** Content version advertised in the manifest, derived from the content itself. */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /** Returns true if the content is offered compressed. */
+    public boolean isCompressed() {
+        return mCompressed != null;
+    }
+
+    /** Returns the number of chunks the compressed copy is split into, or 0 if there is none. */
+    public int getCompressedChunkCount() {
+        return mCompressed == null ? 0 : (mCompressed.length + mChunkSize - 1) / mChunkSize;
+    }
+
+    /** Returns the frames of the compressed copy, or null if the content is not compressed. */
+    public ChunkPrefetcher.FrameSource getCompressedFrames() {
+        if (mCompressed == null) {
+            return null;
+        }
+        return new ChunkPrefetcher.FrameSource() {
+            @Override
+            public int getFrameLength(int index) {
+                return ContentSnapshot.getFrameLength(mCompressed, mChunkSize, index);
+            }
+
+            @Override
+            public void writeFrame(int index, byte[] frame) {
+                ContentSnapshot.writeFrame(mCompressed, mChunkSize, index, frame);
+            }
+        };
+    }
+
+    /**
+     * Build the SELECT response: the manifest, then as much of chunk 0 as fits, then the status
+     * word. Chunk 0 is taken from the compressed copy if there is one.
+     *
+     * @param account ID of the account the content belongs to
+     * @param maxDataLength Maximum length of the response data, excluding the status word
+     */
+    public byte[] buildSelectFrame(String account, int maxDataLength) {
+        byte[] data = mCompressed != null ? mCompressed : mContent;
+        TransferManifest manifest = new TransferManifest(mContent.length, mChunkSize, mVersion,
+                mTree.getRoot(), mCodec != null ? mCodec.getId() : PayloadCodec.NONE,
+                data.length, mCompressedTree != null ? mCompressedTree.getRoot() : null,
+                account);
+        int manifestLength = manifest.getEncodedLength();
+        int firstLength = Math.min(Math.min(mChunkSize, data.length),
+                Math.max(0, maxDataLength - manifestLength));
+        byte[] frame = new byte[manifestLength + firstLength + 2];
+        int offset = manifest.encode(frame, 0);
+        System.arraycopy(data, 0, frame, offset, firstLength);
+        frame[offset + firstLength] = Applet.OK_SW[0];
+        frame[offset + firstLength + 1] = Applet.OK_SW[1];
+        return frame;
+    }
+
+    /**
+     * Build the response to GET CHECKSUMS: [WEAK (4) | STRONG (8)] for as many consecutive blocks
+     * from {@code firstBlock} as fit, then the status word. The reader knows how many blocks
+     * there are from the manifest.
+     *
+     * @param maxDataLength Maximum length of the response data, excluding the status word
+     */
+    public byte[] buildChecksumFrame(int firstBlock, int maxDataLength) {
+        int count = Math.max(0, Math.min(mChunkCount - firstBlock,
+                maxDataLength / BlockChecksum.ENTRY_LENGTH));
+        byte[] frame = new byte[count * BlockChecksum.ENTRY_LENGTH + 2];
+        int offset = 0;
+        for (int i = firstBlock; i < firstBlock + count; i++) {
+            offset = putInt(frame, offset, mWeakChecksums[i]);
+            offset = putInt(frame, offset, (int) (mStrongChecksums[i] >>> 32));
+            offset = putInt(frame, offset, (int) mStrongChecksums[i]);
+        }
+        frame[offset] = Applet.OK_SW[0];
+        frame[offset + 1] = Applet.OK_SW[1];
+        return frame;
+    }
+
+    /**
+     * Build the response to GET PROOF: the proof of a chunk, as written by
+     * {@link MerkleTree#writeProof}, then the status word.
+     *
+     * @param compressed Whether the chunk is one of the compressed copy
+     * @param levels Number of levels of the chunk's path to give siblings for
+     * @return The response, or null if there is no such chunk
+     */
+    public byte[] buildProofFrame(boolean compressed, int chunk, int levels) {
+        MerkleTree tree = compressed ? mCompressedTree : mTree;
+        int chunkCount = compressed ? getCompressedChunkCount() : mChunkCount;
+        if (tree == null || chunk >= chunkCount) {
+            return null;
+        }
+        byte[] frame = new byte[MerkleTree.getProofLength(chunkCount, chunk, levels) + 2];
+        int offset = tree.writeProof(chunk, levels, frame, 0);
+        frame[offset] = Applet.OK_SW[0];
+        frame[offset + 1] = Applet.OK_SW[1];
+        return frame;
+    }
+
+    private static int putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >> 24);
+        dst[offset + 1] = (byte) (value >> 16);
+        dst[offset + 2] = (byte) (value >> 8);
+        dst[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    @Override
+    public int getFrameLength(int index) {
+        return getFrameLength(mContent, mChunkSize, index);
+    }
+
+    @Override
+    public void writeFrame(int index, byte[] frame) {
+        writeFrame(mContent, mChunkSize, index, frame);
+    }
+
+    private static int getFrameLength(byte[] data, int chunkSize, int index) {
+        if (index >= (data.length + chunkSize - 1) / chunkSize) {
+            return END_MARKER.length + 2;
+        }
+        return Math.min(chunkSize, data.length - index * chunkSize) + Crc32c.LENGTH + 2;
+    }
+
+    private static void writeFrame(byte[] data, int chunkSize, int index, byte[] frame) {
+        int length = frame.length - 2;
+        if (index >= (data.length + chunkSize - 1) / chunkSize) {
+            System.arraycopy(END_MARKER, 0, frame, 0, length);
+        } else {
+            int dataLength = length - Crc32c.LENGTH;
+            System.arraycopy(data, index * chunkSize, frame, 0, dataLength);
+            Crc32c.write(frame, 0, dataLength, frame, dataLength);
+        }
+        frame[length] = Applet.OK_SW[0];
+        frame[length + 1] = Applet.OK_SW[1];
+    }
+}
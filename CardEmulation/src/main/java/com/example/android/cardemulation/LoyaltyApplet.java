@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardemulation;
+
+import android.content.Context;
+import android.os.Handler;
+import android.widget.Toast;
+
+import com.example.android.common.PayloadCodec;
+import com.example.android.common.TlvWriter;
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Loyalty card program, selected by AID F222222222 or by any AID starting with it.
+ *
+ * <p>The program AID alone selects the default account; each further card in the program is
+ * selected by the program AID followed by a suffix of its own, and is answered with the account
+ * bound to that exact AID in {@link AccountStorage}.
+ *
+ * <p>On SELECT it takes a {@link ContentSnapshot} of its content and replies with a manifest
+ * naming the account bound to its AID, followed by the first chunk of content. GET DATA then
+ * serves the chunk whose index is given in P1-P2, 200 bytes at a time. A
+ * {@link ChunkPrefetcher} keeps the next few frames ready on the worker thread. A reader holding
+ * an older copy can ask for per-block checksums with GET CHECKSUMS, P1-P2 giving the first
+ * block, and then fetch only the chunks it is missing. GET PROOF gives the proof of the chunk in
+ * P1-P2 against the Merkle root in the manifest, for as many levels of its path as its one data
+ * byte asks for. WRITE DATA stores a message which READ DATA echoes back. Both answer with
+ * BER-TLV: a result code, or the stored message.
+ *
+ * <p>Content that compresses well is offered in the {@link PayloadCodec#DEFLATE} codec. GET DATA
+ * and GET PROOF with bit 8 of P1 set address chunks of the compressed copy rather than of the
+ * content, and WRITE DATA gives the codec of its message, if any, in P1.
+ */
+public class LoyaltyApplet extends Applet {
+    private static final String TAG = "LoyaltyApplet";
+    private static final byte INS_GET_DATA = (byte) 0xCA;
+    private static final byte INS_GET_CHECKSUMS = (byte) 0xCC;
+    private static final byte INS_GET_PROOF = (byte) 0xCE;
+    private static final byte INS_WRITE_DATA = (byte) 0xDA;
+    private static final byte INS_READ_DATA = (byte) 0xEA;
+    // Set in P1 of GET DATA to address the compressed copy of the content.
+    private static final int P1_COMPRESSED = 0x80;
+    // Longest message WRITE DATA may decompress to.
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    // Tags of the data objects in WRITE DATA and READ DATA responses, as agreed with the reader.
+    private static final int TAG_RESULT = 0x80;
+    private static final int TAG_MESSAGE = 0x81;
+    // Result codes carried by TAG_RESULT.
+    private static final int RESULT_OK = 0x00;
+    private static final int RESULT_NO_MESSAGE = 0x01;
+    // Length of the WRITE DATA header preceding the message, as agreed with the reader.
+    private static final int WRITE_DATA_HEADER_LENGTH = 6;
+    // SELECT loads the account and content, which may hit storage the first time.
+    private static final long SELECT_DEADLINE_MS = 500;
+    // Number of frame buffers the prefetcher cycles through.
+    private static final int PREFETCH_DEPTH = 4;
+
+    private final Context mContext;
+    // Toasts must be shown from the main thread, whichever thread a command runs on.
+    private final Handler mMainHandler;
+    private final Executor mExecutor;
+    private ContentSnapshot mSnapshot;
+    private ChunkPrefetcher mPrefetcher;
+    // Prefetcher for the compressed copy, or null if the content is not compressed.
+    private ChunkPrefetcher mCompressedPrefetcher;
+    // Message stored by WRITE DATA, as received.
+    private byte[] mMessage = null;
+
+    /**
+     * @param executor Background executor used to prepare GET DATA responses ahead of time
+     */
+    public LoyaltyApplet(Context context, Executor executor) {
+        super("loyalty");
+        mContext = context;
+        mMainHandler = new Handler(context.getMainLooper());
+        mExecutor = executor;
+        registerDeferred(INS_SELECT, SELECT_DEADLINE_MS, NO_PRECISE_DIAGNOSIS_SW,
+                new CommandHandler() {
+                    @Override
+                    public byte[] handle(byte[] commandApdu) {
+                        return select(commandApdu);
+                    }
+                });
+        register(INS_GET_DATA, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return getData(commandApdu);
+            }
+        });
+        register(INS_GET_CHECKSUMS, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return getChecksums(commandApdu);
+            }
+        });
+        register(INS_GET_PROOF, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return getProof(commandApdu);
+            }
+        });
+        register(INS_WRITE_DATA, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return writeData(commandApdu);
+            }
+        });
+        register(INS_READ_DATA, new CommandHandler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return readData();
+            }
+        });
+    }
+
+    private byte[] select(byte[] commandApdu) {
+        // Resolve the account bound to the selected AID through the in-memory index.
+        String aid = CardService.ByteArrayToHexString(
+                Arrays.copyOfRange(commandApdu, 5, 5 + (commandApdu[4] & 0xFF)));
+        AccountRecordStore.Account record = AccountStorage.GetAccountForAid(mContext, aid);
+        String account = record != null ? record.value : "";
+        Log.i(TAG, "Sending account number: " + account);
+        loadContent();
+        return mSnapshot.buildSelectFrame(account, MAX_RESPONSE_DATA_LENGTH);
+    }
+
+    private byte[] getData(byte[] commandApdu) {
+        if (mPrefetcher == null) {
+            return CardService.ConcatArrays("END".getBytes(), OK_SW);
+        }
+        boolean compressed = (commandApdu[2] & P1_COMPRESSED) != 0;
+        int index = ((commandApdu[2] & ~P1_COMPRESSED & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        if (compressed && mCompressedPrefetcher == null) {
+            return INCORRECT_P1P2_SW;
+        }
+        int chunkCount = compressed ? mSnapshot.getCompressedChunkCount()
+                : mSnapshot.getChunkCount();
+        if (index == chunkCount) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(mContext, "Reached the end of the file",
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+        Log.i(TAG, "Sending " + (compressed ? "compressed " : "") + "chunk " + index + " of "
+                + chunkCount);
+        return compressed ? mCompressedPrefetcher.take(index) : mPrefetcher.take(index);
+    }
+
+    private byte[] getChecksums(byte[] commandApdu) {
+        if (mSnapshot == null) {
+            return CONDITIONS_NOT_SATISFIED_SW;
+        }
+        int firstBlock = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        Log.i(TAG, "Sending checksums from block " + firstBlock);
+        return mSnapshot.buildChecksumFrame(firstBlock, MAX_RESPONSE_DATA_LENGTH);
+    }
+
+    private byte[] getProof(byte[] commandApdu) {
+        if (mSnapshot == null) {
+            return CONDITIONS_NOT_SATISFIED_SW;
+        }
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | LEVELS]
+        if (commandApdu.length < 6 || commandApdu[4] != 1) {
+            return WRONG_LENGTH_SW;
+        }
+        boolean compressed = (commandApdu[2] & P1_COMPRESSED) != 0;
+        int index = ((commandApdu[2] & ~P1_COMPRESSED & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        byte[] frame = mSnapshot.buildProofFrame(compressed, index, commandApdu[5] & 0xFF);
+        if (frame == null) {
+            return INCORRECT_P1P2_SW;
+        }
+        Log.i(TAG, "Sending proof of " + (compressed ? "compressed " : "") + "chunk " + index);
+        return frame;
+    }
+
+    private byte[] writeData(byte[] commandApdu) {
+        byte[] data = Arrays.copyOfRange(commandApdu, Math.min(WRITE_DATA_HEADER_LENGTH,
+                commandApdu.length), commandApdu.length);
+        int codecId = commandApdu[2] & 0xFF;
+        if (codecId != PayloadCodec.NONE) {
+            PayloadCodec codec = PayloadCodec.forId(codecId);
+            if (codec == null) {
+                return INCORRECT_P1P2_SW;
+            }
+            try {
+                data = codec.decode(data, 0, data.length, MAX_MESSAGE_LENGTH);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to decompress message: " + e);
+                return WRONG_DATA_SW;
+            }
+        }
+        // The message is kept as bytes; it is only ever sent back.
+        mMessage = data;
+        Log.i(TAG, "Stored " + data.length + " byte message");
+        return buildResultFrame(RESULT_OK);
+    }
+
+    private byte[] readData() {
+        byte[] message = mMessage;
+        if (message == null) {
+            Log.i(TAG, "No message stored");
+            return buildResultFrame(RESULT_NO_MESSAGE);
+        }
+        Log.i(TAG, "Sending " + message.length + " byte message");
+        byte[] frame = new byte[TlvWriter.getEncodedLength(TAG_MESSAGE, message.length) + 2];
+        int offset = new TlvWriter(frame, 0).put(TAG_MESSAGE, message).getOffset();
+        frame[offset] = OK_SW[0];
+        frame[offset + 1] = OK_SW[1];
+        return frame;
+    }
+
+    private static byte[] buildResultFrame(int result) {
+        byte[] frame = new byte[TlvWriter.getEncodedLength(TAG_RESULT, 1) + 2];
+        int offset = new TlvWriter(frame, 0).putByte(TAG_RESULT, result).getOffset();
+        frame[offset] = OK_SW[0];
+        frame[offset + 1] = OK_SW[1];
+        return frame;
+    }
+
+    private void loadContent() {
+        StringBuilder text = new StringBuilder();
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        text.append("some string random data some string random data some string random data some string random data some string random data \n");
+        mSnapshot = ContentSnapshot.fromText(text, ContentSnapshot.DEFAULT_CHUNK_SIZE,
+                PayloadCodec.forId(PayloadCodec.DEFLATE));
+        mPrefetcher = new ChunkPrefetcher(mSnapshot, mExecutor, PREFETCH_DEPTH);
+        mCompressedPrefetcher = null;
+        // Chunk 0 travels with the SELECT response, compressed if the content is.
+        if (mSnapshot.isCompressed()) {
+            mCompressedPrefetcher = new ChunkPrefetcher(mSnapshot.getCompressedFrames(),
+                    mExecutor, PREFETCH_DEPTH);
+            mCompressedPrefetcher.start(1);
+        } else {
+            mPrefetcher.start(1);
+        }
+    }
+}
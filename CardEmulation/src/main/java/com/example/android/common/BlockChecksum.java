@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums used to identify content and the blocks it is made of.
+ *
+ * <p>Each block has a weak checksum, the rsync rolling checksum, which a reader can slide over
+ * an older copy of the content one byte at a time, and a strong checksum, the first 8 bytes of
+ * the block's MD5 hash, which confirms a weak match. Together they let a reader find which
+ * blocks of new content it already holds, wherever they sit in its old copy, and fetch only the
+ * rest.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public class BlockChecksum {
+    /** Length of one encoded [WEAK (4) | STRONG (8)] entry. */
+    public static final int ENTRY_LENGTH = 12;
+
+    private BlockChecksum() { }
+
+    /** Returns the rsync weak checksum of {@code length} bytes of {@code data}. */
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Slide a weak checksum one byte forward.
+     *
+     * @param weak Checksum of the window [i, i + length)
+     * @param out Byte leaving the window, at i
+     * @param in Byte entering the window, at i + length
+     * @param length Window length
+     * @return Checksum of the window [i + 1, i + length + 1)
+     */
+    public static int roll(int weak, byte out, byte in, int length) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+        return (b << 16) | a;
+    }
+
+    /** Returns the first 8 bytes of the MD5 hash of {@code length} bytes of {@code data}. */
+    public static long strong(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, length);
+            return prefix(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the version of a whole piece of content, as advertised in its
+     * {@link TransferManifest}: the first 8 bytes of its SHA-256 hash.
+     */
+    public static long contentVersion(byte[] content) {
+        try {
+            return prefix(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long prefix(byte[] hash) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+}
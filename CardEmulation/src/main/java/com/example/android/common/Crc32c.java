@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.zip.CRC32C;
+
+/**
+ * CRC-32C (Castagnoli) checksum, used to catch chunk frames damaged on the way to the reader.
+ *
+ * <p>From API 26 the platform's {@link CRC32C} is used, which the runtime computes with the
+ * CPU's CRC instructions where it has them. Older releases fall back to a lookup table.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public class Crc32c {
+    /** Length of an encoded checksum. */
+    public static final int LENGTH = 4;
+    // Castagnoli polynomial, bit-reversed.
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32c() { }
+
+    /** Returns the CRC-32C of {@code length} bytes of {@code data}. */
+    public static int compute(byte[] data, int offset, int length) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return Platform.compute(data, offset, length);
+        }
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /** Write the CRC-32C of {@code length} bytes of {@code data} at {@code dst[dstOffset]}. */
+    public static void write(byte[] data, int offset, int length, byte[] dst, int dstOffset) {
+        int crc = compute(data, offset, length);
+        dst[dstOffset] = (byte) (crc >> 24);
+        dst[dstOffset + 1] = (byte) (crc >> 16);
+        dst[dstOffset + 2] = (byte) (crc >> 8);
+        dst[dstOffset + 3] = (byte) crc;
+    }
+
+    /**
+     * Returns true if {@code length} bytes of {@code data} are followed by their CRC-32C, as
+     * written by {@link #write}.
+     */
+    public static boolean check(byte[] data, int offset, int length) {
+        int crc = compute(data, offset, length);
+        int end = offset + length;
+        return data[end] == (byte) (crc >> 24) && data[end + 1] == (byte) (crc >> 16)
+                && data[end + 2] == (byte) (crc >> 8) && data[end + 3] == (byte) crc;
+    }
+
+    // Kept apart so that older releases never load CRC32C.
+    @TargetApi(Build.VERSION_CODES.O)
+    private static class Platform {
+        static int compute(byte[] data, int offset, int length) {
+            CRC32C crc = new CRC32C();
+            crc.update(data, offset, length);
+            return (int) crc.getValue();
+        }
+    }
+}
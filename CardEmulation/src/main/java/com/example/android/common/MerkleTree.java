@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash tree over the chunks of a piece of content, used to verify each chunk on its own.
+ *
+ * <p>Level 0 holds the hash of every chunk; each level above holds the hash of pairs of nodes
+ * below it, until a single root is left. A node without a pair is carried up unchanged, so
+ * node {@code i} of a level is always the parent of nodes {@code 2i} and {@code 2i + 1} of the
+ * level below. Leaves and inner nodes are hashed with different prefixes, as in RFC 6962, so
+ * one cannot be passed off as the other.
+ *
+ * <p>The proof of a chunk is the sibling of every node on its path to the root. A reader that
+ * knows the root from the manifest checks a chunk by hashing it together with its proof. Having
+ * checked one chunk it also knows every node on that path, so the proofs of the chunks after it
+ * can stop as soon as they reach one of them; see {@link #writeProof}.
+ *
+ * <p>Hashes are SHA-256 cut to {@link #HASH_LENGTH} bytes, which keeps the proof of any chunk
+ * within a short response APDU.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public class MerkleTree {
+    /** Length of every hash in the tree. */
+    public static final int HASH_LENGTH = 16;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final int mLeafCount;
+    // Hashes of each level, from the leaves up, HASH_LENGTH bytes per node.
+    private final byte[][] mLevels;
+
+    /**
+     * Build the tree over {@code data} split into chunks of {@code chunkSize} bytes. Empty data
+     * is a single empty chunk.
+     */
+    public MerkleTree(byte[] data, int chunkSize) {
+        mLeafCount = (data.length + chunkSize - 1) / chunkSize;
+        mLevels = new byte[getLevelCount(mLeafCount)][];
+        MessageDigest digest = newDigest();
+        int size = getLevelSize(mLeafCount, 0);
+        mLevels[0] = new byte[size * HASH_LENGTH];
+        for (int i = 0; i < size; i++) {
+            int offset = i * chunkSize;
+            int length = Math.max(0, Math.min(chunkSize, data.length - offset));
+            hashLeaf(digest, data, offset, length, mLevels[0], i * HASH_LENGTH);
+        }
+        for (int level = 1; level < mLevels.length; level++) {
+            byte[] below = mLevels[level - 1];
+            int belowSize = size;
+            size = getLevelSize(mLeafCount, level);
+            mLevels[level] = new byte[size * HASH_LENGTH];
+            for (int i = 0; i < size; i++) {
+                int left = 2 * i * HASH_LENGTH;
+                if (2 * i + 1 < belowSize) {
+                    hashNode(digest, below, left, below, left + HASH_LENGTH,
+                            mLevels[level], i * HASH_LENGTH);
+                } else {
+                    System.arraycopy(below, left, mLevels[level], i * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+        }
+    }
+
+    public byte[] getRoot() {
+        return mLevels[mLevels.length - 1].clone();
+    }
+
+    /**
+     * Write the proof of a leaf: the siblings of its path on levels 0 to {@code levels} - 1,
+     * lowest first, skipping levels where the path has no sibling.
+     *
+     * @return Offset just past the proof
+     */
+    public int writeProof(int leaf, int levels, byte[] dst, int offset) {
+        int last = Math.min(levels, mLevels.length - 1);
+        for (int level = 0; level < last; level++) {
+            int sibling = (leaf >> level) ^ 1;
+            if (sibling < getLevelSize(mLeafCount, level)) {
+                System.arraycopy(mLevels[level], sibling * HASH_LENGTH, dst, offset,
+                        HASH_LENGTH);
+                offset += HASH_LENGTH;
+            }
+        }
+        return offset;
+    }
+
+    /** Returns the length of the proof {@link #writeProof} writes for a tree of this size. */
+    public static int getProofLength(int leafCount, int leaf, int levels) {
+        int last = Math.min(levels, getLevelCount(leafCount) - 1);
+        int length = 0;
+        for (int level = 0; level < last; level++) {
+            if (((leaf >> level) ^ 1) < getLevelSize(leafCount, level)) {
+                length += HASH_LENGTH;
+            }
+        }
+        return length;
+    }
+
+    /** Returns the number of levels in a tree over {@code leafCount} leaves, root included. */
+    public static int getLevelCount(int leafCount) {
+        int levels = 1;
+        for (int size = Math.max(1, leafCount); size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /** Returns the number of nodes on a level of a tree over {@code leafCount} leaves. */
+    public static int getLevelSize(int leafCount, int level) {
+        int size = Math.max(1, leafCount);
+        for (int i = 0; i < level; i++) {
+            size = (size + 1) / 2;
+        }
+        return size;
+    }
+
+    /** Write the hash of a leaf holding {@code length} bytes of {@code data} into {@code dst}. */
+    public static void hashLeaf(MessageDigest digest, byte[] data, int offset, int length,
+                                byte[] dst, int dstOffset) {
+        digest.update(LEAF_PREFIX);
+        digest.update(data, offset, length);
+        System.arraycopy(digest.digest(), 0, dst, dstOffset, HASH_LENGTH);
+    }
+
+    /** Write the hash of the node whose children are {@code left} and {@code right}. */
+    public static void hashNode(MessageDigest digest, byte[] left, int leftOffset, byte[] right,
+                                int rightOffset, byte[] dst, int dstOffset) {
+        digest.update(NODE_PREFIX);
+        digest.update(left, leftOffset, HASH_LENGTH);
+        digest.update(right, rightOffset, HASH_LENGTH);
+        System.arraycopy(digest.digest(), 0, dst, dstOffset, HASH_LENGTH);
+    }
+
+    /** Returns a digest for {@link #hashLeaf} and {@link #hashNode}. It is not thread-safe. */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
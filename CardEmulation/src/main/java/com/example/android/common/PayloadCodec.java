@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import java.io.IOException;
+
+/**
+ * Compression codec for payloads sent over the link.
+ *
+ * <p>Codecs are identified by a one byte ID, which is what the card advertises in its
+ * {@link TransferManifest} and what WRITE DATA carries in P1. A reader that does not know the
+ * advertised codec simply asks for the uncompressed content instead.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public abstract class PayloadCodec {
+    /** ID meaning the payload is not compressed. */
+    public static final int NONE = 0;
+    /** ID of {@link DeflateCodec} with its default dictionary. */
+    public static final int DEFLATE = 1;
+
+    // Payloads shorter than this never shrink by enough to pay for the codec.
+    private static final int MIN_COMPRESSIBLE_LENGTH = 32;
+    // Number of bytes compressed to judge whether the rest of a payload is worth compressing.
+    private static final int SAMPLE_LENGTH = 1024;
+    // A sample must shrink by at least 1/MIN_SAVING_DIVISOR for the payload to be compressed.
+    private static final int MIN_SAVING_DIVISOR = 8;
+
+    /**
+     * Decompresses a stream that arrives in parts. Like {@link java.util.zip.Inflater}, output is
+     * pulled into whatever buffer the caller supplies, so the whole decompressed payload never
+     * has to be held at once.
+     */
+    public interface Decoder {
+        /** Supply the next part of the compressed stream, once the previous part is used up. */
+        void setInput(byte[] src, int offset, int length);
+
+        /**
+         * Decompress into {@code dst}.
+         *
+         * @return Number of bytes written; 0 once more input is needed or the stream has ended
+         * @throws IOException if the stream is corrupt or has data past its end
+         */
+        int decode(byte[] dst, int offset, int length) throws IOException;
+
+        /** Returns true if all input supplied so far has been used. */
+        boolean needsInput();
+
+        /** Returns true once the end of the compressed stream has been reached. */
+        boolean isFinished();
+    }
+
+    /** Returns the codec with the given ID, or null for {@link #NONE} or an unknown ID. */
+    public static PayloadCodec forId(int id) {
+        switch (id) {
+            case DEFLATE:
+                return DeflateCodec.DEFAULT;
+            default:
+                return null;
+        }
+    }
+
+    public abstract int getId();
+
+    /** Compress {@code length} bytes of {@code src}. */
+    public abstract byte[] encode(byte[] src, int offset, int length);
+
+    /**
+     * Decompress a complete payload.
+     *
+     * @param maxLength Largest decompressed length accepted
+     * @throws IOException if the payload is corrupt, truncated or longer than {@code maxLength}
+     */
+    public abstract byte[] decode(byte[] src, int offset, int length, int maxLength)
+            throws IOException;
+
+    /** Start decompressing a stream. */
+    public abstract Decoder newDecoder();
+
+    /**
+     * Guess whether compressing a payload will save enough to be worth it, by compressing a
+     * sample from its start. Text compresses well; data that is already compressed or
+     * encrypted does not, and is better sent as is.
+     */
+    public boolean isWorthCompressing(byte[] src, int offset, int length) {
+        if (length < MIN_COMPRESSIBLE_LENGTH) {
+            return false;
+        }
+        int sampleLength = Math.min(length, SAMPLE_LENGTH);
+        int encodedLength = encode(src, offset, sampleLength).length;
+        return encodedLength <= sampleLength - sampleLength / MIN_SAVING_DIVISOR;
+    }
+}
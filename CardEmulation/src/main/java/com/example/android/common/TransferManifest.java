@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Description of a content transfer, sent by the card at the start of its SELECT response.
+ *
+ * <p>The card appends as much of the first content chunk as fits after the manifest, so a
+ * reader can start consuming content without another round trip, and small payloads complete in
+ * a single exchange. The remaining chunks are fetched with GET DATA, addressing each chunk by
+ * its index in P1-P2, and arrive followed by their {@link Crc32c}.
+ *
+ * <p>The content version is the first 8 bytes of the content's SHA-256 hash, so together with
+ * the account it identifies the content well enough for a reader to skip the transfer entirely
+ * when it already holds a copy.
+ *
+ * <p>When the card found its content worth compressing, the manifest names a
+ * {@link PayloadCodec} and the length of the compressed content, and the data following the
+ * manifest is the start of the compressed content. The card only offers a codec; a reader that
+ * supports it fetches the rest of the compressed content, and one that does not fetches the
+ * uncompressed content from chunk 0. Both are split into chunks of the same size.
+ *
+ * <p>The root of the {@link MerkleTree} over the chunks of the content, and over those of the
+ * compressed copy if there is one, lets a reader verify every chunk as it arrives.
+ *
+ * <p>Format: [FORMAT VERSION (1) | TOTAL LENGTH (4) | CHUNK SIZE (2) | CONTENT VERSION (8) |
+ * ROOT (16) | CODEC (1) | COMPRESSED LENGTH (4) | COMPRESSED ROOT (16, only with a codec) |
+ * ACCOUNT LENGTH (1) | ACCOUNT (UTF-8)], all integers big-endian.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public class TransferManifest {
+    public static final int FORMAT_VERSION = 5;
+    private static final int FIXED_LENGTH = 21 + MerkleTree.HASH_LENGTH;
+
+    private final int mTotalLength;
+    private final int mChunkSize;
+    private final long mContentVersion;
+    private final byte[] mRoot;
+    private final int mCodec;
+    private final int mCompressedLength;
+    private final byte[] mCompressedRoot;
+    private final String mAccount;
+
+    /**
+     * @param root Root of the {@link MerkleTree} over the content's chunks
+     * @param codec ID of the {@link PayloadCodec} offered, or {@link PayloadCodec#NONE}
+     * @param compressedLength Length of the compressed content, ignored if there is no codec
+     * @param compressedRoot Root of the tree over the compressed content's chunks, ignored if
+     *                       there is no codec
+     */
+    public TransferManifest(int totalLength, int chunkSize, long contentVersion, byte[] root,
+                            int codec, int compressedLength, byte[] compressedRoot,
+                            String account) {
+        mTotalLength = totalLength;
+        mChunkSize = chunkSize;
+        mContentVersion = contentVersion;
+        mRoot = root;
+        mCodec = codec;
+        mCompressedLength = codec == PayloadCodec.NONE ? totalLength : compressedLength;
+        mCompressedRoot = codec == PayloadCodec.NONE ? root : compressedRoot;
+        mAccount = account;
+    }
+
+    /** Total length of the content in bytes. */
+    public int getTotalLength() {
+        return mTotalLength;
+    }
+
+    /** Size of every chunk but the last, in bytes. */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunkCount() {
+        return (mTotalLength + mChunkSize - 1) / mChunkSize;
+    }
+
+    /** Value identifying this revision of the content. It changes whenever the content does. */
+    public long getContentVersion() {
+        return mContentVersion;
+    }
+
+    /** Root of the {@link MerkleTree} over the content's chunks. */
+    public byte[] getRoot() {
+        return mRoot.clone();
+    }
+
+    /** ID of the {@link PayloadCodec} the content is offered in, or {@link PayloadCodec#NONE}. */
+    public int getCodec() {
+        return mCodec;
+    }
+
+    /** Length of the compressed content, or of the content itself if there is no codec. */
+    public int getCompressedLength() {
+        return mCompressedLength;
+    }
+
+    public int getCompressedChunkCount() {
+        return (mCompressedLength + mChunkSize - 1) / mChunkSize;
+    }
+
+    /**
+     * Root of the {@link MerkleTree} over the compressed content's chunks, or over the content's
+     * own chunks if there is no codec.
+     */
+    public byte[] getCompressedRoot() {
+        return mCompressedRoot.clone();
+    }
+
+    /** ID of the account the content belongs to. */
+    public String getAccount() {
+        return mAccount;
+    }
+
+    public int getEncodedLength() {
+        return FIXED_LENGTH + compressedRootLength(mCodec) + accountBytes().length;
+    }
+
+    /**
+     * Encode this manifest into {@code dst} at {@code offset}.
+     *
+     * @return Offset just past the encoded manifest
+     */
+    public int encode(byte[] dst, int offset) {
+        byte[] account = accountBytes();
+        dst[offset++] = (byte) FORMAT_VERSION;
+        offset = putInt(dst, offset, mTotalLength);
+        dst[offset++] = (byte) (mChunkSize >> 8);
+        dst[offset++] = (byte) mChunkSize;
+        offset = putInt(dst, offset, (int) (mContentVersion >>> 32));
+        offset = putInt(dst, offset, (int) mContentVersion);
+        System.arraycopy(mRoot, 0, dst, offset, MerkleTree.HASH_LENGTH);
+        offset += MerkleTree.HASH_LENGTH;
+        dst[offset++] = (byte) mCodec;
+        offset = putInt(dst, offset, mCompressedLength);
+        if (mCodec != PayloadCodec.NONE) {
+            System.arraycopy(mCompressedRoot, 0, dst, offset, MerkleTree.HASH_LENGTH);
+            offset += MerkleTree.HASH_LENGTH;
+        }
+        dst[offset++] = (byte) account.length;
+        System.arraycopy(account, 0, dst, offset, account.length);
+        return offset + account.length;
+    }
+
+    /**
+     * Decode a manifest from the start of a SELECT response payload.
+     *
+     * @param src Buffer holding the manifest
+     * @param offset Offset of the manifest in {@code src}
+     * @param length Number of bytes available from {@code offset}
+     * @throws IllegalArgumentException if the manifest is truncated, of an unknown version, or
+     *                                  gives lengths that cannot be right
+     */
+    public static TransferManifest decode(byte[] src, int offset, int length) {
+        if (length < FIXED_LENGTH) {
+            throw new IllegalArgumentException("Manifest truncated");
+        }
+        if (src[offset] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown manifest version " + src[offset]);
+        }
+        int totalLength = getInt(src, offset + 1);
+        int chunkSize = ((src[offset + 5] & 0xFF) << 8) | (src[offset + 6] & 0xFF);
+        long contentVersion = ((long) getInt(src, offset + 7) << 32)
+                | (getInt(src, offset + 11) & 0xFFFFFFFFL);
+        int position = offset + 15;
+        byte[] root = copyHash(src, position);
+        position += MerkleTree.HASH_LENGTH;
+        int codec = src[position++] & 0xFF;
+        int compressedLength = getInt(src, position);
+        position += 4;
+        if (length < FIXED_LENGTH + compressedRootLength(codec)) {
+            throw new IllegalArgumentException("Manifest truncated");
+        }
+        byte[] compressedRoot = null;
+        if (codec != PayloadCodec.NONE) {
+            compressedRoot = copyHash(src, position);
+            position += MerkleTree.HASH_LENGTH;
+        }
+        int accountLength = src[position++] & 0xFF;
+        if (length < position - offset + accountLength || chunkSize == 0) {
+            throw new IllegalArgumentException("Manifest truncated");
+        }
+        if (totalLength < 0) {
+            throw new IllegalArgumentException("Bad total length " + totalLength);
+        }
+        // Without a codec the "compressed" content is the content itself. A compressed stream
+        // is never empty, even for empty content.
+        if (codec == PayloadCodec.NONE ? compressedLength != totalLength : compressedLength <= 0) {
+            throw new IllegalArgumentException("Bad compressed length " + compressedLength
+                    + " for codec " + codec);
+        }
+        try {
+            String account = new String(src, position, accountLength, "UTF-8");
+            return new TransferManifest(totalLength, chunkSize, contentVersion, root, codec,
+                    compressedLength, compressedRoot, account);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] accountBytes() {
+        try {
+            byte[] account = mAccount.getBytes("UTF-8");
+            if (account.length > 255) {
+                throw new IllegalStateException("Account ID too long");
+            }
+            return account;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int compressedRootLength(int codec) {
+        return codec == PayloadCodec.NONE ? 0 : MerkleTree.HASH_LENGTH;
+    }
+
+    private static byte[] copyHash(byte[] src, int offset) {
+        byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+        System.arraycopy(src, offset, hash, 0, MerkleTree.HASH_LENGTH);
+        return hash;
+    }
+
+    private static int putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >> 24);
+        dst[offset + 1] = (byte) (value >> 16);
+        dst[offset + 2] = (byte) (value >> 8);
+        dst[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24) | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8) | (src[offset + 3] & 0xFF);
+    }
+}
@@ -17,6 +17,7 @@
 package com.example.android.cardreader;
 
 import android.app.Activity;
+import android.content.Context;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
@@ -25,12 +26,17 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import com.example.android.common.TransferManifest;
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 /**
  * Generic UI for sample discovery.
  */
-public class CardReaderFragment extends Fragment implements LoyaltyCardReader.AccountCallback {
+public class CardReaderFragment extends Fragment implements PayloadConsumer {
 
     public static final String TAG = "CardReaderFragment";
     // Recommend NfcAdapter flags for reading from other Android devices. Indicates that this
@@ -38,10 +44,24 @@ public class CardReaderFragment extends Fragment implements LoyaltyCardReader.Ac
     // system should not check for the presence of NDEF-formatted data (e.g. Android Beam).
     public static int READER_FLAGS =
             NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+    // Upper bound on the content kept from earlier taps.
+    private static final long PAYLOAD_CACHE_BYTES = 4 * 1024 * 1024;
+    // Chunks asked for ahead of the one being shown. Fetching pauses once the UI falls this far
+    // behind.
+    private static final int CHUNKS_IN_FLIGHT = 4;
+    // Only the start of the content is shown; the rest is counted but not kept.
+    private static final int PREVIEW_LENGTH = 4096;
     public LoyaltyCardReader mLoyaltyCardReader;
+    private LinkTuner mLinkTuner;
+    // The reader only holds a weak reference to its consumer, so the sink is kept here.
+    private PayloadFileSink mPayloadSink;
     private TextView mAccountField;
 
-    StringBuilder stringReceived = new StringBuilder();
+    // The fields below are only used by the transfer being delivered, on a reader thread.
+    private final TextAssembler mPreview = new TextAssembler(Charset.forName("UTF-8"));
+    private PayloadConsumer.Demand mDemand;
+    private int mTotalLength;
+    private int mReceived;
 
     /** Called when sample is created. Displays generic UI with welcome text. */
     @Override
@@ -58,7 +78,14 @@ public class CardReaderFragment extends Fragment implements LoyaltyCardReader.Ac
             mAccountField = (TextView) v.findViewById(R.id.card_account_field);
             mAccountField.setText("Waiting...");
 
-            mLoyaltyCardReader = new LoyaltyCardReader(this);
+            PayloadCache payloadCache = new PayloadCache(
+                    new File(getActivity().getCacheDir(), "payloads"), PAYLOAD_CACHE_BYTES);
+            // Received content is written to disk as it arrives, then shown from here.
+            mPayloadSink = new PayloadFileSink(
+                    new File(getActivity().getFilesDir(), "received"), payloadCache, this);
+            mLinkTuner = new LinkTuner(getActivity().getSharedPreferences("link_tuning",
+                    Context.MODE_PRIVATE));
+            mLoyaltyCardReader = new LoyaltyCardReader(mPayloadSink, payloadCache, mLinkTuner);
 
             // Disable Android Beam and register our card reader callback
             enableReaderMode();
@@ -67,6 +94,16 @@ public class CardReaderFragment extends Fragment implements LoyaltyCardReader.Ac
         return v;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // A new reader is made along with the next view, so this one's threads must stop here.
+        if (mLoyaltyCardReader != null) {
+            mLoyaltyCardReader.close();
+            mLoyaltyCardReader = null;
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -84,7 +121,12 @@ public class CardReaderFragment extends Fragment implements LoyaltyCardReader.Ac
         Activity activity = getActivity();
         NfcAdapter nfc = NfcAdapter.getDefaultAdapter(activity);
         if (nfc != null) {
-            nfc.enableReaderMode(activity, mLoyaltyCardReader, READER_FLAGS, null);
+            // The presence check delay suits the transfers seen lately; it is chosen again
+            // each time reader mode is enabled.
+            Bundle extras = new Bundle();
+            extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY,
+                    mLinkTuner.getPresenceCheckDelay());
+            nfc.enableReaderMode(activity, mLoyaltyCardReader, READER_FLAGS, extras);
         }
     }
 
@@ -98,17 +140,53 @@ public class CardReaderFragment extends Fragment implements LoyaltyCardReader.Ac
     }
 
     @Override
-    public void onAccountReceived(final String account) {
+    public int onStart(TransferManifest manifest, PayloadConsumer.Demand demand) {
+        mDemand = demand;
+        mTotalLength = manifest.getTotalLength();
+        mReceived = 0;
+        mPreview.reset(Math.min(mTotalLength, PREVIEW_LENGTH));
+        demand.request(CHUNKS_IN_FLIGHT);
+        return 0;
+    }
+
+    @Override
+    public void onChunk(ByteBuffer chunk) {
+        mReceived += chunk.remaining();
+        if (mPreview.length() < PREVIEW_LENGTH) {
+            mPreview.append(chunk);
+        }
+        final String progress = "Received " + mReceived + " of " + mTotalLength + " bytes";
+        final PayloadConsumer.Demand demand = mDemand;
         // This callback is run on a background thread, but updates to UI elements must be performed
-        // on the UI thread.
-        stringReceived.append(account);
-        if (account.contains("END")) {
+        // on the UI thread. The next chunk is only asked for once this one is shown.
+        showText(progress, demand);
+    }
+
+    @Override
+    public void onComplete() {
+        showText(mPreview.finish(), null);
+    }
 
+    @Override
+    public void onError(Exception e) {
+        showText("Transfer failed: " + e.getMessage(), null);
+    }
+
+    /**
+     * Show {@code text} on the UI thread, then ask for one more chunk if {@code demand} is set.
+     */
+    private void showText(final String text, final PayloadConsumer.Demand demand) {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
         }
-        getActivity().runOnUiThread(new Runnable() {
+        activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mAccountField.setText(account);
+                mAccountField.setText(text);
+                if (demand != null) {
+                    demand.request(1);
+                }
             }
         });
     }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import com.example.android.common.MerkleTree;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Checks received chunks against the {@link MerkleTree} root advertised in the manifest.
+ *
+ * <p>The verifier starts out knowing only the root, and learns every node on the path of each
+ * chunk it verifies. Before a chunk is fetched, {@link #planProof} works out how much of its
+ * proof is needed, assuming the chunks planned before it verify: usually only a level or two,
+ * since the rest of the path was learnt from earlier chunks. A chunk that fails, or that relied
+ * on one that failed, is fetched again with its whole proof, see {@link #getLevelCount}.
+ *
+ * <p>Chunk hashes are computed on the given pool, if any, so a large window of chunks is hashed
+ * in parallel; checking the hashes against the tree is cheap and done on the calling thread.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class ChunkVerifier {
+    /** The chunk matches the tree. */
+    public static final int VALID = 0;
+    /** The chunk, or the proof it came with, does not match the tree. */
+    public static final int CORRUPT = 1;
+    /** Part of the chunk's proof is missing, because a chunk it was planned with failed. */
+    public static final int INCOMPLETE = 2;
+
+    private final int mLength;
+    private final int mChunkSize;
+    private final int mChunkCount;
+    private final ExecutorService mPool;
+    private final MessageDigest mDigest = MerkleTree.newDigest();
+    // Node hashes of each level, from the leaves up, MerkleTree.HASH_LENGTH bytes per node.
+    private final byte[][] mNodes;
+    // Nodes known to be part of the tree.
+    private final BitSet[] mVerified;
+    // Nodes sent by the card in a proof, not yet verified.
+    private final BitSet[] mSupplied;
+    // Nodes that will be verified once every chunk planned so far has been.
+    private final BitSet[] mPlanned;
+    // Scratch space for the path of the chunk being verified.
+    private final int[] mPathIndex;
+    private final byte[][] mPathNodes;
+
+    /**
+     * @param root Root of the tree over the data's chunks
+     * @param length Length of the data in bytes
+     * @param pool Executor to hash chunks on, or null to hash them on the calling thread
+     */
+    public ChunkVerifier(byte[] root, int length, int chunkSize, ExecutorService pool) {
+        mLength = length;
+        mChunkSize = chunkSize;
+        mChunkCount = (length + chunkSize - 1) / chunkSize;
+        mPool = pool;
+        int levelCount = MerkleTree.getLevelCount(mChunkCount);
+        mNodes = new byte[levelCount][];
+        mVerified = new BitSet[levelCount];
+        mSupplied = new BitSet[levelCount];
+        mPlanned = new BitSet[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            int size = MerkleTree.getLevelSize(mChunkCount, level);
+            mNodes[level] = new byte[size * MerkleTree.HASH_LENGTH];
+            mVerified[level] = new BitSet(size);
+            mSupplied[level] = new BitSet(size);
+            mPlanned[level] = new BitSet(size);
+        }
+        int top = levelCount - 1;
+        System.arraycopy(root, 0, mNodes[top], 0, MerkleTree.HASH_LENGTH);
+        mVerified[top].set(0);
+        mPlanned[top].set(0);
+        mPathIndex = new int[levelCount];
+        mPathNodes = new byte[levelCount][MerkleTree.HASH_LENGTH];
+    }
+
+    /** Returns the length of a chunk, which is shorter than the others if it is the last. */
+    public int getChunkLength(int chunk) {
+        return Math.min(mChunkSize, mLength - chunk * mChunkSize);
+    }
+
+    /** Returns the number of levels in the tree, enough to ask for any chunk's whole proof. */
+    public int getLevelCount() {
+        return mNodes.length;
+    }
+
+    /**
+     * Plan the verification of a chunk that is about to be fetched.
+     *
+     * @return Number of levels of the chunk's proof to ask the card for; 0 if none is needed
+     */
+    public int planProof(int chunk) {
+        int levels = 0;
+        int index = chunk;
+        for (int level = 0; level < mNodes.length - 1; level++, index >>= 1) {
+            if (mPlanned[level].get(index)) {
+                break;
+            }
+            mPlanned[level].set(index);
+            int sibling = index ^ 1;
+            if (sibling < MerkleTree.getLevelSize(mChunkCount, level)
+                    && !mPlanned[level].get(sibling)) {
+                mPlanned[level].set(sibling);
+                levels = level + 1;
+            }
+        }
+        return levels;
+    }
+
+    /** Returns the length of the proof the card sends for {@code levels} levels of a chunk. */
+    public int getProofLength(int chunk, int levels) {
+        return MerkleTree.getProofLength(mChunkCount, chunk, levels);
+    }
+
+    /**
+     * Take the proof of a chunk from a GET PROOF response. Its nodes are only trusted once a
+     * chunk verifies with them.
+     */
+    public void addProof(int chunk, int levels, byte[] proof, int offset) {
+        int last = Math.min(levels, mNodes.length - 1);
+        for (int level = 0; level < last; level++) {
+            int sibling = (chunk >> level) ^ 1;
+            if (sibling >= MerkleTree.getLevelSize(mChunkCount, level)) {
+                continue;
+            }
+            if (!mVerified[level].get(sibling)) {
+                System.arraycopy(proof, offset, mNodes[level], sibling * MerkleTree.HASH_LENGTH,
+                        MerkleTree.HASH_LENGTH);
+                mSupplied[level].set(sibling);
+            }
+            offset += MerkleTree.HASH_LENGTH;
+        }
+    }
+
+    /**
+     * Verify received chunks, in the order given. Chunk {@code chunks[i]} is at the start of
+     * {@code data[i]}.
+     *
+     * @param results Set to {@link #VALID}, {@link #CORRUPT} or {@link #INCOMPLETE} for each
+     *                chunk
+     * @return Number of chunks that are not valid
+     */
+    public int verify(final int[] chunks, final byte[][] data, int count, int[] results)
+            throws IOException {
+        byte[][] hashes = new byte[count][];
+        if (mPool != null && count > 1) {
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(count);
+            for (int i = 0; i < count; i++) {
+                final int item = i;
+                futures.add(mPool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return hashChunk(MerkleTree.newDigest(), chunks[item], data[item]);
+                    }
+                }));
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    hashes[i] = futures.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted verifying chunks");
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to hash chunk", e.getCause());
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                hashes[i] = hashChunk(mDigest, chunks[i], data[i]);
+            }
+        }
+        int failed = 0;
+        for (int i = 0; i < count; i++) {
+            results[i] = verifyHash(chunks[i], hashes[i]);
+            if (results[i] != VALID) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private byte[] hashChunk(MessageDigest digest, int chunk, byte[] data) {
+        byte[] hash = new byte[MerkleTree.HASH_LENGTH];
+        MerkleTree.hashLeaf(digest, data, 0, getChunkLength(chunk), hash, 0);
+        return hash;
+    }
+
+    /**
+     * Climb from a chunk's hash towards the root until reaching a known node, and check that
+     * the two agree. On success, every node on the way becomes known.
+     */
+    private int verifyHash(int chunk, byte[] hash) {
+        int index = chunk;
+        byte[] node = hash;
+        int level = 0;
+        while (!mVerified[level].get(index)) {
+            mPathIndex[level] = index;
+            System.arraycopy(node, 0, mPathNodes[level], 0, MerkleTree.HASH_LENGTH);
+            int sibling = index ^ 1;
+            if (sibling < MerkleTree.getLevelSize(mChunkCount, level)) {
+                if (!mVerified[level].get(sibling) && !mSupplied[level].get(sibling)) {
+                    // The proof this chunk was planned with came with a chunk that failed.
+                    return INCOMPLETE;
+                }
+                byte[] parent = new byte[MerkleTree.HASH_LENGTH];
+                int siblingOffset = sibling * MerkleTree.HASH_LENGTH;
+                if ((index & 1) == 0) {
+                    MerkleTree.hashNode(mDigest, node, 0, mNodes[level], siblingOffset,
+                            parent, 0);
+                } else {
+                    MerkleTree.hashNode(mDigest, mNodes[level], siblingOffset, node, 0,
+                            parent, 0);
+                }
+                node = parent;
+            }
+            index >>= 1;
+            level++;
+        }
+        int offset = index * MerkleTree.HASH_LENGTH;
+        for (int i = 0; i < MerkleTree.HASH_LENGTH; i++) {
+            if (mNodes[level][offset + i] != node[i]) {
+                // Any supplied node on the path may be the bad one; don't use them again.
+                for (int l = 0; l < level; l++) {
+                    mSupplied[l].clear(mPathIndex[l] ^ 1);
+                }
+                return CORRUPT;
+            }
+        }
+        for (int l = 0; l < level; l++) {
+            int pathIndex = mPathIndex[l];
+            System.arraycopy(mPathNodes[l], 0, mNodes[l], pathIndex * MerkleTree.HASH_LENGTH,
+                    MerkleTree.HASH_LENGTH);
+            mVerified[l].set(pathIndex);
+            mPlanned[l].set(pathIndex);
+            int sibling = pathIndex ^ 1;
+            if (sibling < MerkleTree.getLevelSize(mChunkCount, l)) {
+                mVerified[l].set(sibling);
+                mPlanned[l].set(sibling);
+            }
+        }
+        return VALID;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.IsoDep;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of commands for the card that coalesces as many as possible into each exchange.
+ *
+ * <p>Commands are queued with {@link #enqueue} and sent by {@link #flush}. Consecutive commands
+ * are packed into ENVELOPE (INS C2) APDUs, which the card executes in order and answers with all
+ * of their responses at once. Each command declares the longest response it can produce, so
+ * that an envelope never asks for more than fits in a short response APDU; a command that
+ * cannot share is sent on its own, exactly as it would be without the queue.
+ *
+ * <p>Envelope command data is a sequence of [LENGTH (1) | COMMAND APDU] entries, and its response
+ * data a sequence of [LENGTH (2) | RESPONSE APDU] entries.
+ *
+ * <p>A glitch on the link need not end the session. An exchange that fails, other than by
+ * losing the tag, is sent again, and a command whose handler finds its response damaged with
+ * {@link CorruptResponseException} is sent again on its own, without the commands it shared an
+ * envelope with. Each command is tried up to {@link #MAX_ATTEMPTS} times, waiting
+ * {@link #RETRY_BASE_DELAY_MS} before the first retry and twice as long before each one after.
+ */
+public class CommandQueue {
+    private static final String TAG = "CommandQueue";
+    // Envelope header: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH]
+    private static final byte[] ENVELOPE_HEADER = {0x00, (byte) 0xC2, 0x00, 0x00, 0x00};
+    private static final int MAX_COMMAND_DATA_LENGTH = 255;
+    private static final int MAX_RESPONSE_DATA_LENGTH = 256;
+    // Status word ending an envelope that ran out of response space (0x6310)
+    private static final byte[] ENVELOPE_INCOMPLETE_SW = {(byte) 0x63, (byte) 0x10};
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_BASE_DELAY_MS = 10;
+
+    /** Receives the response to a queued command. */
+    public interface ResponseHandler {
+        /**
+         * @param response Response APDU, including the status word
+         * @throws CorruptResponseException if the response was damaged in transit, to have the
+         *         command sent again. It may then be answered after commands queued behind it.
+         */
+        void onResponse(byte[] response) throws IOException;
+    }
+
+    /** Told of every exchange with the card, to learn how the link behaves. */
+    public interface LinkObserver {
+        /** An exchange completed, {@code rttNanos} after it was sent. */
+        void onExchange(long rttNanos);
+
+        /**
+         * An exchange failed other than by losing the tag, {@code elapsedNanos} after it was
+         * sent. It is about to be retried.
+         */
+        void onExchangeFailed(long elapsedNanos);
+    }
+
+    /** Thrown by a {@link ResponseHandler} to have its command sent again. */
+    public static class CorruptResponseException extends IOException {
+        public CorruptResponseException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Entry {
+        final byte[] command;
+        final int maxResponseLength;
+        final ResponseHandler handler;
+        // Set instead of the fields above for entries that only run code.
+        final Runnable callback;
+        // Number of times the command failed so far.
+        int failures;
+
+        Entry(byte[] command, int maxResponseLength, ResponseHandler handler) {
+            this.command = command;
+            this.maxResponseLength = maxResponseLength;
+            this.handler = handler;
+            this.callback = null;
+        }
+
+        Entry(Runnable callback) {
+            this.command = null;
+            this.maxResponseLength = 0;
+            this.handler = null;
+            this.callback = callback;
+        }
+    }
+
+    private final IsoDep mIsoDep;
+    private final LinkObserver mObserver;
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+
+    public CommandQueue(IsoDep isoDep) {
+        this(isoDep, null);
+    }
+
+    /**
+     * @param observer Told of every exchange, or null
+     */
+    public CommandQueue(IsoDep isoDep, LinkObserver observer) {
+        mIsoDep = isoDep;
+        mObserver = observer;
+    }
+
+    /**
+     * Queue a command. It is not sent until {@link #flush} is called.
+     *
+     * @param command Command APDU
+     * @param maxResponseLength Longest response APDU the command can produce, including the
+     *                          status word
+     * @param handler Receives the response
+     */
+    public void enqueue(byte[] command, int maxResponseLength, ResponseHandler handler) {
+        mQueue.add(new Entry(command, maxResponseLength, handler));
+    }
+
+    /**
+     * Queue code to run once every command queued before it has been answered. It may queue
+     * more commands; they are sent by the same {@link #flush}.
+     */
+    public void enqueueCallback(Runnable callback) {
+        mQueue.add(new Entry(callback));
+    }
+
+    /** Send every queued command, in order, in as few exchanges as possible. */
+    public void flush() throws IOException {
+        while (!mQueue.isEmpty()) {
+            if (mQueue.peek().callback != null) {
+                mQueue.poll().callback.run();
+                continue;
+            }
+            int count = countBatchable();
+            if (count <= 1) {
+                send(mQueue.poll());
+            } else {
+                sendEnvelope(count);
+            }
+        }
+    }
+
+    /** Returns how many commands from the head of the queue fit in one envelope. */
+    private int countBatchable() {
+        int commandLength = 0;
+        int responseLength = 0;
+        int count = 0;
+        for (Entry entry : mQueue) {
+            if (entry.callback != null) {
+                break;
+            }
+            commandLength += 1 + entry.command.length;
+            responseLength += 2 + entry.maxResponseLength;
+            if (commandLength > MAX_COMMAND_DATA_LENGTH
+                    || responseLength > MAX_RESPONSE_DATA_LENGTH) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private void sendEnvelope(int count) throws IOException {
+        Entry[] entries = new Entry[count];
+        int dataLength = 0;
+        for (int i = 0; i < count; i++) {
+            entries[i] = mQueue.poll();
+            dataLength += 1 + entries[i].command.length;
+        }
+        byte[] envelope = new byte[ENVELOPE_HEADER.length + dataLength];
+        System.arraycopy(ENVELOPE_HEADER, 0, envelope, 0, ENVELOPE_HEADER.length);
+        envelope[4] = (byte) dataLength;
+        int offset = ENVELOPE_HEADER.length;
+        for (Entry entry : entries) {
+            envelope[offset++] = (byte) entry.command.length;
+            System.arraycopy(entry.command, 0, envelope, offset, entry.command.length);
+            offset += entry.command.length;
+        }
+        Log.i(TAG, "Sending " + count + " commands in envelope: "
+                + LoyaltyCardReader.ByteArrayToHexString(envelope));
+        byte[] result;
+        try {
+            result = transceive(envelope);
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            retry(e, entries);
+            return;
+        }
+        int end = result.length - 2;
+        if (end < 0) {
+            throw new IOException("Empty envelope response");
+        }
+        boolean incomplete = result[end] == ENVELOPE_INCOMPLETE_SW[0]
+                && result[end + 1] == ENVELOPE_INCOMPLETE_SW[1];
+        if (!incomplete && (result[end] != (byte) 0x90 || result[end + 1] != 0x00)) {
+            throw new IOException("Envelope failed: "
+                    + LoyaltyCardReader.ByteArrayToHexString(result));
+        }
+        offset = 0;
+        int answered = 0;
+        List<Entry> damaged = null;
+        CorruptResponseException damage = null;
+        while (offset < end && answered < count) {
+            int length = ((result[offset] & 0xFF) << 8) | (result[offset + 1] & 0xFF);
+            offset += 2;
+            if (offset + length > end) {
+                throw new IOException("Envelope response truncated");
+            }
+            byte[] response = new byte[length];
+            System.arraycopy(result, offset, response, 0, length);
+            offset += length;
+            Entry entry = entries[answered++];
+            try {
+                entry.handler.onResponse(response);
+            } catch (CorruptResponseException e) {
+                if (damaged == null) {
+                    damaged = new ArrayList<Entry>();
+                }
+                damaged.add(entry);
+                damage = e;
+            }
+        }
+        // Commands the card had no room to answer go back to the head of the queue. They will
+        // be sent again, on their own if need be.
+        for (int i = count - 1; i >= answered; i--) {
+            mQueue.addFirst(entries[i]);
+        }
+        if (answered < count && !incomplete) {
+            throw new IOException("Envelope answered " + answered + " of " + count);
+        }
+        if (damaged != null) {
+            retry(damage, damaged.toArray(new Entry[damaged.size()]));
+        } else if (answered == 0) {
+            // Make progress: send the head command on its own next time round.
+            send(mQueue.poll());
+        }
+    }
+
+    /** Send a command on its own and hand its response to its handler. */
+    private void send(Entry entry) throws IOException {
+        Log.i(TAG, "Sending: " + LoyaltyCardReader.ByteArrayToHexString(entry.command));
+        byte[] response;
+        try {
+            response = transceive(entry.command);
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            retry(e, entry);
+            return;
+        }
+        try {
+            entry.handler.onResponse(response);
+        } catch (CorruptResponseException e) {
+            retry(e, entry);
+        }
+    }
+
+    private byte[] transceive(byte[] command) throws IOException {
+        long start = System.nanoTime();
+        byte[] response;
+        try {
+            response = mIsoDep.transceive(command);
+        } catch (IOException e) {
+            if (mObserver != null && !(e instanceof TagLostException)) {
+                mObserver.onExchangeFailed(System.nanoTime() - start);
+            }
+            throw e;
+        }
+        if (mObserver != null) {
+            mObserver.onExchange(System.nanoTime() - start);
+        }
+        return response;
+    }
+
+    /**
+     * Put commands that failed back at the head of the queue, in order, and wait before they
+     * are sent again; or give up if one of them has failed too often.
+     *
+     * @param cause The failure, thrown if the commands are not retried
+     */
+    private void retry(IOException cause, Entry... entries) throws IOException {
+        int failures = 0;
+        for (Entry entry : entries) {
+            failures = Math.max(failures, ++entry.failures);
+        }
+        if (failures >= MAX_ATTEMPTS) {
+            throw cause;
+        }
+        for (int i = entries.length - 1; i >= 0; i--) {
+            mQueue.addFirst(entries[i]);
+        }
+        long delay = RETRY_BASE_DELAY_MS << (failures - 1);
+        Log.w(TAG, cause.getMessage() + ", retrying " + entries.length + " commands in "
+                + delay + " ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import com.example.android.common.BlockChecksum;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Finds the blocks of new content that a reader already holds in an older copy.
+ *
+ * <p>The card publishes a weak and a strong {@link BlockChecksum} for every block of its
+ * content. The weak checksum is slid over the old copy one byte at a time, so blocks are found
+ * even when an edit shifted them; each weak match is confirmed with the strong checksum before
+ * the old bytes are reused. Only blocks without a match need to cross the link.
+ */
+public class DeltaSync {
+    // Format: [Class | Instruction | Parameter 1 | Parameter 2]
+    private static final String GET_CHECKSUMS_APDU_HEADER = "00CC0000";
+
+    private final int mBlockSize;
+    private final int mTotalLength;
+    private final int mBlockCount;
+    private final int[] mWeak;
+    private final long[] mStrong;
+    private final boolean[] mReceivedBlocks;
+    private int mReceived;
+
+    /**
+     * @param blockSize Size of every block but the last, in bytes
+     * @param totalLength Length of the new content
+     */
+    public DeltaSync(int blockSize, int totalLength) {
+        mBlockSize = blockSize;
+        mTotalLength = totalLength;
+        mBlockCount = (totalLength + blockSize - 1) / blockSize;
+        mWeak = new int[mBlockCount];
+        mStrong = new long[mBlockCount];
+        mReceivedBlocks = new boolean[mBlockCount];
+    }
+
+    /**
+     * Build APDU for GET CHECKSUMS, requesting checksums from {@code firstBlock} onwards.
+     */
+    public static byte[] BuildGetChecksumsApdu(int firstBlock) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LE]
+        byte[] command = LoyaltyCardReader.HexStringToByteArray(GET_CHECKSUMS_APDU_HEADER + "00");
+        command[2] = (byte) (firstBlock >> 8);
+        command[3] = (byte) firstBlock;
+        return command;
+    }
+
+    /** Number of block checksums a single GET CHECKSUMS response carries. */
+    public static int getBlocksPerResponse() {
+        return LoyaltyCardReader.MAX_RESPONSE_DATA_LENGTH / BlockChecksum.ENTRY_LENGTH;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /** Returns true once checksums for every block have been received. */
+    public boolean isComplete() {
+        return mReceived == mBlockCount;
+    }
+
+    /**
+     * Store the checksums from a GET CHECKSUMS response.
+     *
+     * @param firstBlock Block the request started from
+     * @param response Response APDU, including the status word
+     */
+    public void addChecksums(int firstBlock, byte[] response) throws IOException {
+        int end = response.length - 2;
+        if (end < 0 || response[end] != (byte) 0x90 || response[end + 1] != 0x00
+                || end % BlockChecksum.ENTRY_LENGTH != 0) {
+            throw new IOException("GET CHECKSUMS failed: "
+                    + LoyaltyCardReader.ByteArrayToHexString(response));
+        }
+        int block = firstBlock;
+        for (int offset = 0; offset < end && block < mBlockCount;
+                offset += BlockChecksum.ENTRY_LENGTH, block++) {
+            mWeak[block] = getInt(response, offset);
+            mStrong[block] = ((long) getInt(response, offset + 4) << 32)
+                    | (getInt(response, offset + 8) & 0xFFFFFFFFL);
+            if (!mReceivedBlocks[block]) {
+                mReceivedBlocks[block] = true;
+                mReceived++;
+            }
+        }
+    }
+
+    /**
+     * Copy every block of the new content found in {@code previous} into {@code content}.
+     *
+     * @param previous Older copy of the content
+     * @param content Buffer for the new content, {@code totalLength} bytes long
+     * @return Which blocks were filled in
+     */
+    public boolean[] reuseBlocks(byte[] previous, byte[] content) {
+        boolean[] have = new boolean[mBlockCount];
+        if (mBlockCount == 0) {
+            return have;
+        }
+        // Every block but the last is full size; the last may need a window of its own.
+        int lastLength = mTotalLength - (mBlockCount - 1) * mBlockSize;
+        scan(previous, content, have, mBlockSize, 0, lastLength == mBlockSize
+                ? mBlockCount : mBlockCount - 1);
+        if (lastLength != mBlockSize) {
+            scan(previous, content, have, lastLength, mBlockCount - 1, mBlockCount);
+        }
+        return have;
+    }
+
+    /**
+     * Slide a window of {@code length} bytes over {@code previous}, looking for blocks
+     * {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    private void scan(byte[] previous, byte[] content, boolean[] have, int length, int from,
+                      int to) {
+        if (previous.length < length || from >= to) {
+            return;
+        }
+        HashMap<Integer, int[]> byWeak = new HashMap<Integer, int[]>();
+        for (int i = from; i < to; i++) {
+            int[] blocks = byWeak.get(mWeak[i]);
+            int[] grown = new int[blocks == null ? 1 : blocks.length + 1];
+            if (blocks != null) {
+                System.arraycopy(blocks, 0, grown, 0, blocks.length);
+            }
+            grown[grown.length - 1] = i;
+            byWeak.put(mWeak[i], grown);
+        }
+        int weak = BlockChecksum.weak(previous, 0, length);
+        for (int offset = 0; ; offset++) {
+            int[] blocks = byWeak.get(weak);
+            if (blocks != null) {
+                long strong = BlockChecksum.strong(previous, offset, length);
+                for (int block : blocks) {
+                    if (!have[block] && mStrong[block] == strong) {
+                        System.arraycopy(previous, offset, content, block * mBlockSize, length);
+                        have[block] = true;
+                    }
+                }
+            }
+            if (offset + length >= previous.length) {
+                break;
+            }
+            weak = BlockChecksum.roll(weak, previous[offset], previous[offset + length], length);
+        }
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24) | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8) | (src[offset + 3] & 0xFF);
+    }
+}
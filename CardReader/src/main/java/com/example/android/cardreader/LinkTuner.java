@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import android.content.SharedPreferences;
+import android.nfc.tech.IsoDep;
+
+import com.example.android.common.logger.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tunes the link to each card from the round trip times measured on it.
+ *
+ * <p>The round trip time of every exchange is counted in a histogram with buckets half an octave
+ * wide, one for each account (card emulators use a random UID, so the account is what tells them
+ * apart) and one for all of them. The transceive timeout of a session is set to cover
+ * {@link #TIMEOUT_PERMILLE} per mille of the card's round trips, with a margin, falling back to
+ * the overall histogram for a card seen too rarely and to {@link #DEFAULT_TIMEOUT_MS} before
+ * anything is known. Too long a timeout makes a failed exchange slow to fail; too short a one
+ * fails exchanges that would have succeeded, so whenever an exchange runs into the timeout, the
+ * timeout doubles for the rest of the session and the exchange is counted as a round trip as
+ * long as it. Exchanges that fail sooner say nothing about the timeout and are ignored. Once a
+ * histogram holds {@link #MAX_SAMPLES} round trips its counts are halved, so it follows a link
+ * that changes.
+ *
+ * <p>The presence check delay given to reader mode is chosen from the number of exchanges in
+ * recent sessions. Quick taps get a short delay, so a card that left is noticed and the next one
+ * discovered sooner; long transfers get a longer one, so that presence checks are less likely to
+ * hold up an exchange when the transfer pauses for the consumer.
+ *
+ * <p>Histograms of the {@link #MAX_PROFILES} most recently seen accounts are kept in
+ * {@link SharedPreferences} across restarts.
+ *
+ * <p>This class is thread-safe.
+ */
+public class LinkTuner {
+    private static final String TAG = "LinkTuner";
+    // Timeout used until enough round trips have been measured.
+    static final int DEFAULT_TIMEOUT_MS = 3600;
+    private static final int MIN_TIMEOUT_MS = 250;
+    private static final int MAX_TIMEOUT_MS = 5000;
+    private static final int MARGIN_MS = 100;
+    private static final int TIMEOUT_PERMILLE = 990;
+    // Round trips a histogram needs before the timeout is based on it.
+    private static final int MIN_SAMPLES = 32;
+    private static final int MAX_SAMPLES = 1024;
+    // Upper bound of each bucket in ms; round trips longer than the last fall in an extra bucket.
+    private static final int[] BUCKET_LIMITS_MS = {1, 2, 3, 4, 6, 8, 12, 16, 24, 32, 48, 64, 96,
+            128, 192, 256, 384, 512, 768, 1024, 1536, 2048, 3072, 4096};
+    private static final int MAX_PROFILES = 32;
+    static final int SHORT_PRESENCE_CHECK_DELAY_MS = 100;
+    static final int LONG_PRESENCE_CHECK_DELAY_MS = 500;
+    // Sessions averaging at least this many exchanges count as long transfers.
+    private static final int LONG_SESSION_EXCHANGES = 16;
+    // Average exchanges per session are kept in fixed point, with this many fractional bits,
+    // and each session moves the average a quarter of the way to its own count.
+    private static final int AVERAGE_SHIFT = 8;
+    private static final String PREF_PROFILE_PREFIX = "profile:";
+    private static final String PREF_GLOBAL_PROFILE = "global";
+    private static final String PREF_AVERAGE_EXCHANGES = "average_exchanges";
+
+    private final SharedPreferences mPreferences;
+    private final Profile mGlobal;
+    // Account -> histogram, least recently used first.
+    private final LinkedHashMap<String, Profile> mProfiles =
+            new LinkedHashMap<String, Profile>(16, 0.75f, true);
+    private int mAverageExchanges;
+
+    /** Round trip time histogram. */
+    private static class Profile {
+        final int[] counts = new int[BUCKET_LIMITS_MS.length + 1];
+        int total;
+
+        void add(long rttMs) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && rttMs > BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            if (++total >= MAX_SAMPLES) {
+                total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] /= 2;
+                    total += counts[i];
+                }
+            }
+        }
+
+        /** Returns the timeout this histogram calls for, or 0 if it holds too few samples. */
+        int getTimeout() {
+            if (total < MIN_SAMPLES) {
+                return 0;
+            }
+            long target = ((long) total * TIMEOUT_PERMILLE + 999) / 1000;
+            int seen = 0;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && (seen += counts[bucket]) < target) {
+                bucket++;
+            }
+            if (bucket == BUCKET_LIMITS_MS.length) {
+                return MAX_TIMEOUT_MS;
+            }
+            int rtt = BUCKET_LIMITS_MS[bucket];
+            return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, rtt * 3 / 2 + MARGIN_MS));
+        }
+
+        String encode() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(counts[i]);
+            }
+            return builder.toString();
+        }
+
+        /** Returns the histogram encoded by {@link #encode}, or an empty one if malformed. */
+        static Profile decode(String encoded) {
+            Profile profile = new Profile();
+            String[] fields = encoded == null ? new String[0] : encoded.split(",");
+            if (fields.length != profile.counts.length) {
+                return profile;
+            }
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    profile.counts[i] = Math.max(0, Integer.parseInt(fields[i]));
+                    profile.total += profile.counts[i];
+                }
+            } catch (NumberFormatException e) {
+                return new Profile();
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * @param preferences Where histograms are kept; nothing else should be stored there
+     */
+    public LinkTuner(SharedPreferences preferences) {
+        mPreferences = preferences;
+        mGlobal = Profile.decode(preferences.getString(PREF_GLOBAL_PROFILE, null));
+        mAverageExchanges = preferences.getInt(PREF_AVERAGE_EXCHANGES, 0);
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(PREF_PROFILE_PREFIX) && entry.getValue() instanceof String) {
+                mProfiles.put(key.substring(PREF_PROFILE_PREFIX.length()),
+                        Profile.decode((String) entry.getValue()));
+            }
+        }
+    }
+
+    /** Returns the presence check delay to pass to reader mode, in ms. */
+    public synchronized int getPresenceCheckDelay() {
+        return mAverageExchanges >= LONG_SESSION_EXCHANGES << AVERAGE_SHIFT
+                ? LONG_PRESENCE_CHECK_DELAY_MS : SHORT_PRESENCE_CHECK_DELAY_MS;
+    }
+
+    /** Start tuning a session with a connected card. */
+    public Session startSession(IsoDep isoDep) {
+        Session session = new Session(isoDep);
+        session.applyTimeout(getTimeout(null));
+        return session;
+    }
+
+    /** Returns the timeout for an account, or for an unknown card if {@code account} is null. */
+    private synchronized int getTimeout(String account) {
+        Profile profile = account == null ? null : mProfiles.get(account);
+        int timeout = profile == null ? 0 : profile.getTimeout();
+        if (timeout == 0) {
+            timeout = mGlobal.getTimeout();
+        }
+        return timeout == 0 ? DEFAULT_TIMEOUT_MS : timeout;
+    }
+
+    private synchronized void record(String account, long rttMs) {
+        mGlobal.add(rttMs);
+        if (account != null) {
+            Profile profile = mProfiles.get(account);
+            if (profile == null) {
+                profile = new Profile();
+                mProfiles.put(account, profile);
+            }
+            profile.add(rttMs);
+        }
+    }
+
+    private synchronized void finish(String account, int exchanges) {
+        mAverageExchanges += ((exchanges << AVERAGE_SHIFT) - mAverageExchanges) / 4;
+        SharedPreferences.Editor editor = mPreferences.edit()
+                .putString(PREF_GLOBAL_PROFILE, mGlobal.encode())
+                .putInt(PREF_AVERAGE_EXCHANGES, mAverageExchanges);
+        Profile profile = account == null ? null : mProfiles.get(account);
+        if (profile != null) {
+            editor.putString(PREF_PROFILE_PREFIX + account, profile.encode());
+        }
+        Iterator<String> accounts = mProfiles.keySet().iterator();
+        for (int excess = mProfiles.size() - MAX_PROFILES; excess > 0; excess--) {
+            editor.remove(PREF_PROFILE_PREFIX + accounts.next());
+            accounts.remove();
+        }
+        editor.apply();
+    }
+
+    /**
+     * Tuning of one session with a card. Round trips are credited to the card's account once
+     * {@link #setAccount} names it.
+     *
+     * <p>This class is not thread-safe.
+     */
+    public class Session implements CommandQueue.LinkObserver {
+        private final IsoDep mIsoDep;
+        private String mAccount;
+        private int mTimeout;
+        private int mExchanges;
+
+        private Session(IsoDep isoDep) {
+            mIsoDep = isoDep;
+        }
+
+        /** Name the account the card serves, and use its timeout from now on. */
+        public void setAccount(String account) {
+            mAccount = account;
+            applyTimeout(getTimeout(account));
+        }
+
+        @Override
+        public void onExchange(long rttNanos) {
+            mExchanges++;
+            record(mAccount, rttNanos / 1000000);
+        }
+
+        @Override
+        public void onExchangeFailed(long elapsedNanos) {
+            mExchanges++;
+            long elapsedMs = elapsedNanos / 1000000;
+            // Allow for the timeout being measured from slightly later than elapsedNanos.
+            if (elapsedMs >= mTimeout - mTimeout / 8) {
+                record(mAccount, elapsedMs);
+                applyTimeout(Math.min(MAX_TIMEOUT_MS, mTimeout * 2));
+            }
+        }
+
+        /** Record the session for the choice of presence check delay, and persist it. */
+        public void finish() {
+            LinkTuner.this.finish(mAccount, mExchanges);
+        }
+
+        private void applyTimeout(int timeout) {
+            if (timeout != mTimeout) {
+                mTimeout = timeout;
+                mIsoDep.setTimeout(timeout);
+                Log.i(TAG, "Timeout = " + timeout);
+            }
+        }
+    }
+}
@@ -19,16 +19,32 @@ import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
 
+import com.example.android.common.BlockChecksum;
+import com.example.android.common.Crc32c;
+import com.example.android.common.PayloadCodec;
+import com.example.android.common.TlvReader;
+import com.example.android.common.TransferManifest;
 import com.example.android.common.logger.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Callback class, invoked when an NFC card is scanned while the device is running in reader mode.
  * <p>
  * Reader mode can be invoked by calling NfcAdapter
+ * <p>
+ * The discovery callback only hands the tag to a pipeline of {@link PipelineStage}s and returns,
+ * so the next card can be served while the last one's content is still being processed. The I/O
+ * stage talks to the card, verifying each chunk as it arrives, since a chunk that fails must be
+ * fetched again while the card is still there. The content it received is then decompressed on
+ * the decode stage, cached on the persist stage and handed to the consumer on the deliver stage.
  */
 public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
     private static final String TAG = "LoyaltyCardReader";
@@ -39,6 +55,8 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
     private static final String SELECT_APDU_HEADER = "00A40400";
     // Format: [Class | Instruction | Parameter 1 | Parameter 2]
     private static final String GET_DATA_APDU_HEADER = "00CA0000";
+    // Format: [Class | Instruction | Parameter 1 | Parameter 2 | Length]
+    private static final String GET_PROOF_APDU_HEADER = "00CE000001";
     // "OK" status word sent in response to SELECT AID command (0x9000)
     private static final byte[] SELECT_OK_SW = {(byte) 0x90, (byte) 0x00};
 
@@ -47,23 +65,129 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
     private static final String READ_DATA_APDU_HEADER = "00EA0000";
     private static final byte[] WRITE_DATA_APDU = BuildWriteDataApdu();
     private static final byte[] READ_DATA_APDU = BuildReadDataApdu();
+    // Longest response data a short APDU can carry, excluding the status word.
+    static final int MAX_RESPONSE_DATA_LENGTH = 256;
+    // Delta transfers only pay for their checksum exchange on content at least this many chunks
+    // long.
+    private static final int DELTA_MIN_CHUNKS = 4;
+    // Longest response expected to WRITE DATA and READ DATA, including the status word.
+    private static final int MAX_MESSAGE_RESPONSE_LENGTH = 32;
+    // Set in P1 of GET DATA and GET PROOF to address the compressed copy of the content.
+    private static final int P1_COMPRESSED = 0x80;
+    // Tags of the data objects in WRITE DATA and READ DATA responses, as agreed with the card.
+    private static final int TAG_RESULT = 0x80;
+    private static final int TAG_MESSAGE = 0x81;
+    private static final int RESULT_OK = 0x00;
+    // Whether buffered transfers start with a test message written with WRITE DATA and read back
+    // with READ DATA, to exercise the card's message handling. Only for debugging the card.
+    private static final boolean SEND_TEST_MESSAGE = false;
+    // Content longer than this is streamed to the consumer as it is fetched rather than
+    // received whole, so it is neither cached nor eligible for delta transfers.
+    private static final int MAX_BUFFERED_CONTENT_LENGTH = 256 * 1024;
+    // Most GET DATA commands sent ahead of the consumer's demand being used up.
+    private static final int MAX_FETCH_WINDOW = 8;
+    // How long a consumer may go without asking for more before the transfer is abandoned.
+    static final long DEMAND_TIMEOUT_MS = 5000;
+    // Times a chunk is fetched before a transfer it keeps failing verification in is abandoned.
+    private static final int MAX_FETCH_ATTEMPTS = 3;
+    // Chunks are hashed on a pool of HASH_THREADS threads for data at least this many chunks
+    // long.
+    private static final int PARALLEL_HASH_MIN_CHUNKS = 64;
+    private static final int HASH_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Cards waiting for the I/O stage; any more found meanwhile are turned away.
+    private static final int MAX_QUEUED_TAGS = 2;
+    // Transfers waiting for each of the stages after it.
+    private static final int MAX_QUEUED_TRANSFERS = 4;
+    // Cards remembered to tell a card discovered again from a new tap.
+    private static final int RECENT_TAGS = 16;
+    // How long after a session a card discovered again is taken to be the same tap.
+    private static final long DEFAULT_REPEAT_WINDOW_MS = 3000;
 
-    // Weak reference to prevent retain loop. mAccountCallback is responsible for exiting
+    // Weak reference to prevent retain loop. mPayloadConsumer is responsible for exiting
     // foreground mode before it becomes invalid (e.g. during onPause() or onStop()).
-    private WeakReference<AccountCallback> mAccountCallback;
+    private WeakReference<PayloadConsumer> mPayloadConsumer;
+
+    // Content received on earlier taps, keyed by account and content version. May be null.
+    private final PayloadCache mPayloadCache;
+    // May be null.
+    private final LinkTuner mLinkTuner;
+    // Reused to parse every TLV response; tags are discovered one at a time.
+    private final TlvReader mTlvReader = new TlvReader();
+    private final RecentTags mRecentTags = new RecentTags(RECENT_TAGS, DEFAULT_REPEAT_WINDOW_MS);
+    // Pool chunks of large transfers are hashed on, created on first use.
+    private ExecutorService mHashPool;
+    // Set by close(); no hashing pool is created from then on.
+    private boolean mClosed;
+    private final PipelineStage mIoStage = new PipelineStage("io", MAX_QUEUED_TAGS);
+    private final PipelineStage mDecodeStage = new PipelineStage("decode", MAX_QUEUED_TRANSFERS);
+    private final PipelineStage mPersistStage =
+            new PipelineStage("persist", MAX_QUEUED_TRANSFERS);
+    private final PipelineStage mDeliverStage =
+            new PipelineStage("deliver", MAX_QUEUED_TRANSFERS);
+
+    /** Thrown to stop a transfer the consumer cancelled. */
+    private static class TransferCancelledException extends InterruptedIOException {
+        TransferCancelledException() {
+            super("Transfer cancelled");
+        }
+    }
+
+    public LoyaltyCardReader(PayloadConsumer payloadConsumer) {
+        this(payloadConsumer, null);
+    }
+
+    /**
+     * @param payloadCache Cache used to skip transfers of content already received, or null
+     */
+    public LoyaltyCardReader(PayloadConsumer payloadConsumer, PayloadCache payloadCache) {
+        this(payloadConsumer, payloadCache, null);
+    }
+
+    /**
+     * @param payloadCache Cache used to skip transfers of content already received, or null
+     * @param linkTuner Tuner setting each session's timeout, or null to use
+     *                  {@link LinkTuner#DEFAULT_TIMEOUT_MS} throughout
+     */
+    public LoyaltyCardReader(PayloadConsumer payloadConsumer, PayloadCache payloadCache,
+                             LinkTuner linkTuner) {
+        mPayloadConsumer = new WeakReference<PayloadConsumer>(payloadConsumer);
+        mPayloadCache = payloadCache;
+        mLinkTuner = linkTuner;
+    }
 
-    public interface AccountCallback {
-        public void onAccountReceived(String account);
+    /**
+     * Set how long after a session with a card it is ignored if discovered again, so that a card
+     * hovering at the edge of the field is not read and delivered once per discovery.
+     */
+    public void setRepeatWindow(long windowMs) {
+        mRecentTags.setTtl(windowMs);
     }
 
-    public LoyaltyCardReader(AccountCallback accountCallback) {
-        mAccountCallback = new WeakReference<AccountCallback>(accountCallback);
+    /**
+     * Stop the pipeline's threads and the hashing pool, once the reader is no longer needed. A
+     * session in progress is interrupted and transfers not delivered yet are dropped; cards
+     * discovered from now on are turned away.
+     */
+    public void close() {
+        mIoStage.quit();
+        mDecodeStage.quit();
+        mPersistStage.quit();
+        mDeliverStage.quit();
+        synchronized (this) {
+            mClosed = true;
+            if (mHashPool != null) {
+                mHashPool.shutdown();
+            }
+        }
     }
 
     /**
      * Callback when a new tag is discovered by the system.
      *
-     * <p>Communication with the card should take place here.
+     * <p>Communication with the card takes place on the I/O stage, so this returns at once. A
+     * card discovered again while its session is queued or running, or within the repeat window
+     * after it succeeded, is ignored; its content has been or is being delivered already.
      *
      * @param tag Discovered tag
      */
@@ -75,45 +199,303 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
         //
         // In order to communicate with a device using HCE, the discovered tag should be processed
         // using the IsoDep class.
-        IsoDep isoDep = IsoDep.get(tag);
+        final IsoDep isoDep = IsoDep.get(tag);
         if (isoDep != null) {
-            try {
-                // Connect to the remote NFC device
-                isoDep.connect();
-                Log.i(TAG, "Timeout = " + isoDep.getTimeout());
-                isoDep.setTimeout(3600);
-                Log.i(TAG, "Timeout = " + isoDep.getTimeout());
-                Log.i(TAG, "MaxTransceiveLength = " + isoDep.getMaxTransceiveLength());
-
-                // Build SELECT AID command for our loyalty card service.
-                // This command tells the remote device which service we wish to communicate with.
-                Log.i(TAG, "Requesting remote AID: " + SAMPLE_LOYALTY_CARD_AID);
-                byte[] selCommand = BuildSelectApdu(SAMPLE_LOYALTY_CARD_AID);
-                // Send command to remote device
-                Log.i(TAG, "Sending: " + ByteArrayToHexString(selCommand));
-                byte[] result = isoDep.transceive(selCommand);
-                // If AID is successfully selected, 0x9000 is returned as the status word (last 2
-                // bytes of the result) by convention. Everything before the status word is
-                // optional payload, which is used here to hold the account number.
-                int resultLength = result.length;
-                byte[] statusWord = {result[resultLength - 2], result[resultLength - 1]};
-                byte[] payload = Arrays.copyOf(result, resultLength - 2);
-                if (Arrays.equals(SELECT_OK_SW, statusWord)) {
-                    String accountNumber = new String(payload, "UTF-8");
-                    Log.i(TAG, "Received: " + accountNumber);
-                    //todo test sample
-                    setAPDUMsg(isoDep,"test");
-                    getAPDUMsg(isoDep);
+            final byte[] uid = tag.getId();
+            // Held until the session ends, however long it waits and runs.
+            if (!mRecentTags.claim(uid)) {
+                Log.i(TAG, "Same card as last tap, ignoring");
+                return;
+            }
+            boolean queued = mIoStage.offer(new Runnable() {
+                @Override
+                public void run() {
+                    communicate(isoDep, uid);
                 }
+            });
+            if (!queued) {
+                Log.w(TAG, "Reader busy, ignoring card");
+                mRecentTags.remove(uid);
+            }
+        }
+    }
 
+    /**
+     * Run a whole session with a card, on the I/O stage. The card is remembered for the repeat
+     * window from the end of a session that succeeded, and forgotten after one that failed so
+     * that it can be tapped again straight away.
+     */
+    private void communicate(IsoDep isoDep, byte[] uid) {
+        LinkTuner.Session link = null;
+        boolean received = false;
+        try {
+            // Connect to the remote NFC device
+            isoDep.connect();
+            Log.i(TAG, "Timeout = " + isoDep.getTimeout());
+            if (mLinkTuner != null) {
+                link = mLinkTuner.startSession(isoDep);
+            } else {
+                isoDep.setTimeout(LinkTuner.DEFAULT_TIMEOUT_MS);
+                Log.i(TAG, "Timeout = " + isoDep.getTimeout());
+            }
+            Log.i(TAG, "MaxTransceiveLength = " + isoDep.getMaxTransceiveLength());
+
+            // Build SELECT AID command for our loyalty card service.
+            // This command tells the remote device which service we wish to communicate with.
+            Log.i(TAG, "Requesting remote AID: " + SAMPLE_LOYALTY_CARD_AID);
+            byte[] selCommand = BuildSelectApdu(SAMPLE_LOYALTY_CARD_AID);
+            // Send command to remote device
+            Log.i(TAG, "Sending: " + ByteArrayToHexString(selCommand));
+            long start = System.nanoTime();
+            byte[] result = isoDep.transceive(selCommand);
+            if (link != null) {
+                link.onExchange(System.nanoTime() - start);
+            }
+            // If AID is successfully selected, 0x9000 is returned as the status word (last 2
+            // bytes of the result) by convention. Everything before the status word is
+            // optional payload, which is used here to hold the transfer manifest followed by
+            // the first chunk of content.
+            int resultLength = result.length;
+            if (resultLength < 2) {
+                throw new IllegalArgumentException("SELECT response too short: "
+                        + ByteArrayToHexString(result));
+            }
+            byte[] statusWord = {result[resultLength - 2], result[resultLength - 1]};
+            byte[] payload = Arrays.copyOf(result, resultLength - 2);
+            if (Arrays.equals(SELECT_OK_SW, statusWord)) {
+                TransferManifest manifest = TransferManifest.decode(payload, 0, payload.length);
+                Log.i(TAG, "Received: account " + manifest.getAccount() + ", "
+                        + manifest.getTotalLength() + " bytes in "
+                        + manifest.getChunkCount() + " chunks");
+                if (mPayloadConsumer.get() == null) {
+                    Log.w(TAG, "Nobody to deliver the content to, ignoring card");
+                    return;
+                }
+                if (link != null) {
+                    link.setAccount(manifest.getAccount());
+                }
+                CommandQueue queue = new CommandQueue(isoDep, link);
+                if (manifest.getTotalLength() > MAX_BUFFERED_CONTENT_LENGTH) {
+                    stream(queue, manifest, payload);
+                } else {
+                    receive(queue, manifest, payload);
+                }
+                received = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error communicating with card: " + e.toString());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid response from card: " + e.toString());
+        } finally {
+            if (received) {
+                mRecentTags.touch(uid);
+            } else {
+                mRecentTags.remove(uid);
+            }
+            if (link != null) {
+                link.finish();
+            }
+            try {
+                isoDep.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error communicating with card: " + e.toString());
+                Log.w(TAG, "Unable to close tag: " + e);
+            }
+        }
+    }
+
+    /**
+     * Receive content small enough to hold whole, then pass it down the pipeline. Holding the
+     * content whole lets it be cached and fetched as a delta of an earlier version. A session
+     * that fails before the content is complete never reaches the consumer; the card can simply
+     * be tapped again.
+     *
+     * @param selectPayload SELECT response payload, without the status word
+     */
+    private void receive(CommandQueue queue, final TransferManifest manifest,
+                         byte[] selectPayload) throws IOException {
+        // The data after the manifest is the start of chunk 0, compressed if the card offered
+        // a codec.
+        byte[] firstChunk = Arrays.copyOfRange(selectPayload, manifest.getEncodedLength(),
+                selectPayload.length);
+        // A codec we don't know is declined by fetching the uncompressed content.
+        final PayloadCodec codec = PayloadCodec.forId(manifest.getCodec());
+        byte[] content = mPayloadCache == null ? null : mPayloadCache.get(
+                manifest.getAccount(), manifest.getContentVersion());
+        if (content != null) {
+            Log.i(TAG, "Content unchanged since last tap, skipping transfer");
+            submitDelivery(manifest, content);
+            return;
+        }
+        if (SEND_TEST_MESSAGE) {
+            // Queued first, so that it shares the first envelope sent with whatever the transfer
+            // needs.
+            setAPDUMsg(queue, "test", codec);
+            getAPDUMsg(queue);
+        }
+        content = new byte[manifest.getTotalLength()];
+        boolean[] reused = null;
+        // Compression alone may already leave too little to fetch for a delta transfer to pay
+        // off.
+        if (codec == null || manifest.getCompressedChunkCount() >= DELTA_MIN_CHUNKS) {
+            reused = reusePreviousBlocks(queue, manifest, content);
+        }
+        if (reused == null && codec != null) {
+            final byte[] compressed = new byte[manifest.getCompressedLength()];
+            Log.i(TAG, "Fetching " + compressed.length + " compressed bytes for "
+                    + content.length + " bytes of content");
+            fetchContent(queue, manifest, true, firstChunk, compressed, null);
+            queue.flush();
+            mDecodeStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        submitPersist(manifest, inflateContent(codec, compressed,
+                                manifest.getTotalLength(), manifest.getChunkSize()));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to decompress content: " + e);
+                    }
+                }
+            });
+        } else {
+            byte[] rawFirstChunk = manifest.getCodec() == PayloadCodec.NONE
+                    ? firstChunk : new byte[0];
+            fetchContent(queue, manifest, false, rawFirstChunk, content, reused);
+            queue.flush();
+            submitPersist(manifest, content);
+        }
+    }
+
+    /** Cache content received whole on the persist stage, then pass it on for delivery. */
+    private void submitPersist(final TransferManifest manifest, final byte[] content) {
+        mPersistStage.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mPayloadCache != null) {
+                    mPayloadCache.put(manifest.getAccount(), manifest.getContentVersion(),
+                            content);
+                }
+                submitDelivery(manifest, content);
+            }
+        });
+    }
+
+    /**
+     * Hand content received whole to the consumer on the deliver stage, as the consumer asks
+     * for it.
+     */
+    private void submitDelivery(final TransferManifest manifest, final byte[] content) {
+        mDeliverStage.submit(new Runnable() {
+            @Override
+            public void run() {
+                PayloadConsumer consumer = mPayloadConsumer.get();
+                if (consumer == null) {
+                    Log.w(TAG, "Nobody to deliver the content to, dropping it");
+                    return;
+                }
+                PayloadConsumer.Demand demand = new PayloadConsumer.Demand();
+                int resumeOffset = consumer.onStart(manifest, demand);
+                try {
+                    checkResumeOffset(manifest, resumeOffset);
+                    deliver(consumer, demand, content, resumeOffset,
+                            content.length - resumeOffset, manifest.getChunkSize());
+                    consumer.onComplete();
+                } catch (TransferCancelledException e) {
+                    Log.i(TAG, "Transfer cancelled");
+                    consumer.onError(e);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to deliver content: " + e);
+                    consumer.onError(e);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Unable to deliver content: " + e);
+                    consumer.onError(e);
+                }
+                Log.i(TAG, "Pipeline: " + mIoStage + "; " + mDecodeStage + "; " + mPersistStage
+                        + "; " + mDeliverStage);
             }
+        });
+    }
 
+    /**
+     * Stream content too large to hold to the consumer as it is fetched. It is fetched only as
+     * fast as the consumer asks for it, so the consumer is called from the I/O stage, once the
+     * transfers ahead of it have been delivered. A transfer the consumer is resuming fetches only
+     * the chunks it does not hold yet.
+     *
+     * @param selectPayload SELECT response payload, without the status word
+     */
+    private void stream(CommandQueue queue, TransferManifest manifest, byte[] selectPayload)
+            throws IOException {
+        try {
+            // Each stage is idle once the one before it is and its own queue has drained.
+            mDecodeStage.awaitIdle();
+            mPersistStage.awaitIdle();
+            mDeliverStage.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for earlier transfers");
+        }
+        PayloadConsumer consumer = mPayloadConsumer.get();
+        if (consumer == null) {
+            Log.w(TAG, "Nobody to deliver the content to, ignoring card");
+            return;
+        }
+        byte[] firstChunk = Arrays.copyOfRange(selectPayload, manifest.getEncodedLength(),
+                selectPayload.length);
+        PayloadCodec codec = PayloadCodec.forId(manifest.getCodec());
+        byte[] rawFirstChunk = manifest.getCodec() == PayloadCodec.NONE
+                ? firstChunk : new byte[0];
+        PayloadConsumer.Demand demand = new PayloadConsumer.Demand();
+        int resumeOffset = consumer.onStart(manifest, demand);
+        try {
+            checkResumeOffset(manifest, resumeOffset);
+            // A compressed stream can only be decompressed from its start, so a resumed
+            // transfer declines the codec.
+            if (codec != null && resumeOffset == 0) {
+                streamCompressedContent(queue, manifest, codec, firstChunk, consumer, demand);
+            } else {
+                streamContent(queue, manifest, rawFirstChunk, resumeOffset, consumer, demand);
+            }
+            queue.flush();
+            consumer.onComplete();
+        } catch (TransferCancelledException e) {
+            Log.i(TAG, "Transfer cancelled");
+            consumer.onError(e);
+        } catch (IOException e) {
+            consumer.onError(e);
+            throw e;
+        } catch (IllegalArgumentException e) {
+            consumer.onError(e);
+            throw e;
         }
     }
 
+    private static void checkResumeOffset(TransferManifest manifest, int resumeOffset) {
+        int totalLength = manifest.getTotalLength();
+        if (resumeOffset < 0 || resumeOffset > totalLength
+                || (resumeOffset % manifest.getChunkSize() != 0 && resumeOffset != totalLength)) {
+            throw new IllegalArgumentException("Cannot resume at offset " + resumeOffset);
+        }
+    }
 
+    /**
+     * Hand {@code length} bytes of {@code src} to the consumer, in pieces of at most
+     * {@code chunkSize} bytes, each once the consumer has asked for it.
+     */
+    private static void deliver(PayloadConsumer consumer, PayloadConsumer.Demand demand,
+                                byte[] src, int offset, int length, int chunkSize)
+            throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (demand.await(DEMAND_TIMEOUT_MS) == 0) {
+                throw new TransferCancelledException();
+            }
+            int pieceLength = Math.min(chunkSize, end - offset);
+            demand.consume();
+            consumer.onChunk(ByteBuffer.wrap(src, offset, pieceLength).slice()
+                    .asReadOnlyBuffer());
+            offset += pieceLength;
+        }
+    }
 
     /**
      * Build APDU for SELECT AID command. This command indicates which service a reader is
@@ -137,6 +519,420 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
         return HexStringToByteArray(GET_DATA_APDU_HEADER + "0FFF");
     }
 
+    /**
+     * Build APDU for GET_DATA command requesting one chunk of content. See ISO 7816-4.
+     *
+     * @param index Index of the chunk, sent in P1-P2
+     * @return APDU for GET_DATA command
+     */
+    public static byte[] BuildGetDataApdu(int index) {
+        return BuildGetDataApdu(index, false);
+    }
+
+    /**
+     * Build APDU for GET_DATA command requesting one chunk of content or of its compressed copy.
+     * See ISO 7816-4.
+     *
+     * @param index Index of the chunk, sent in P1-P2
+     * @param compressed Whether to address the compressed copy of the content
+     * @return APDU for GET_DATA command
+     */
+    public static byte[] BuildGetDataApdu(int index, boolean compressed) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LE]
+        byte[] command = HexStringToByteArray(GET_DATA_APDU_HEADER + "00");
+        command[2] = (byte) ((index >> 8) | (compressed ? P1_COMPRESSED : 0));
+        command[3] = (byte) index;
+        return command;
+    }
+
+    /**
+     * Build APDU for GET PROOF command requesting part of the Merkle proof of one chunk.
+     *
+     * @param index Index of the chunk, sent in P1-P2
+     * @param compressed Whether to address the compressed copy of the content
+     * @param levels Number of levels of the chunk's path to get siblings for, sent as data
+     * @return APDU for GET PROOF command
+     */
+    public static byte[] BuildGetProofApdu(int index, boolean compressed, int levels) {
+        // Format: [CLASS | INSTRUCTION | PARAMETER 1 | PARAMETER 2 | LENGTH | LEVELS]
+        byte[] command = HexStringToByteArray(GET_PROOF_APDU_HEADER + "00");
+        command[2] = (byte) ((index >> 8) | (compressed ? P1_COMPRESSED : 0));
+        command[3] = (byte) index;
+        command[5] = (byte) levels;
+        return command;
+    }
+
+    /**
+     * Fetch the content described by a manifest, or its compressed copy, into {@code content},
+     * verifying every chunk. The part of the first chunk piggybacked on the SELECT response is
+     * used if it is whole.
+     *
+     * @param compressed Whether to fetch the compressed copy
+     * @param firstChunk Start of the first chunk, as received with SELECT
+     * @param content Buffer the content is written into, exactly as long as it
+     * @param reused Chunks already present in {@code content}, or null if there are none. They
+     *               are verified like the rest and fetched only if they fail.
+     */
+    private void fetchContent(CommandQueue queue, TransferManifest manifest, boolean compressed,
+                              byte[] firstChunk, byte[] content, boolean[] reused)
+            throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        int chunkCount = compressed ? manifest.getCompressedChunkCount()
+                : manifest.getChunkCount();
+        ChunkVerifier verifier = newVerifier(
+                compressed ? manifest.getCompressedRoot() : manifest.getRoot(), content.length,
+                chunkSize);
+        byte[][] frames = new byte[chunkCount][];
+        int reusedCount = 0;
+        if (reused != null) {
+            for (int i = 0; i < chunkCount; i++) {
+                if (reused[i]) {
+                    int offset = i * chunkSize;
+                    frames[i] = Arrays.copyOfRange(content, offset,
+                            offset + verifier.getChunkLength(i));
+                    reusedCount++;
+                }
+            }
+        }
+        if (reusedCount > 0) {
+            Log.i(TAG, "Reusing " + reusedCount + " of " + chunkCount
+                    + " chunks from the previous version");
+        }
+        fetchVerified(queue, verifier, compressed, 0, chunkCount, firstChunk, frames);
+        for (int i = 0; i < chunkCount; i++) {
+            System.arraycopy(frames[i], 0, content, i * chunkSize, verifier.getChunkLength(i));
+        }
+    }
+
+    /**
+     * Fetch the chunks {@code first} to {@code first + count - 1} into {@code frames}, along
+     * with as much of their proofs as the verifier needs, and verify each. A chunk that fails is
+     * fetched again with its whole proof, up to {@link #MAX_FETCH_ATTEMPTS} times, so a
+     * corrupted response costs a single chunk rather than the transfer. Chunks whose proofs
+     * relied on it are checked again once it is put right.
+     *
+     * @param compressed Whether the chunks are those of the compressed copy
+     * @param firstChunk Start of chunk 0, as received with SELECT, used if it is whole
+     * @param frames Receives the data of each chunk, at offset 0. Entries already set hold data
+     *               received some other way, which is verified rather than fetched.
+     */
+    private void fetchVerified(CommandQueue queue, ChunkVerifier verifier, boolean compressed,
+                               int first, int count, byte[] firstChunk, byte[][] frames)
+            throws IOException {
+        if (first == 0 && count > 0 && frames[0] == null
+                && firstChunk.length >= verifier.getChunkLength(0)) {
+            frames[0] = firstChunk;
+        }
+        int[] chunks = new int[count];
+        int[] positions = new int[count];
+        int[] attempts = new int[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = first + i;
+            positions[i] = i;
+            attempts[i] = frames[i] == null ? 1 : 0;
+            queueChunk(queue, verifier, compressed, chunks[i], verifier.planProof(chunks[i]),
+                    frames, i);
+        }
+        queue.flush();
+        int[] results = new int[count];
+        byte[][] data = new byte[count][];
+        int pending = count;
+        while (pending > 0) {
+            for (int i = 0; i < pending; i++) {
+                data[i] = frames[positions[i]];
+            }
+            if (verifier.verify(chunks, data, pending, results) == 0) {
+                return;
+            }
+            boolean corrupt = false;
+            for (int i = 0; i < pending; i++) {
+                corrupt |= results[i] == ChunkVerifier.CORRUPT;
+            }
+            int remaining = 0;
+            for (int i = 0; i < pending; i++) {
+                if (results[i] == ChunkVerifier.VALID) {
+                    continue;
+                }
+                int position = positions[i];
+                chunks[remaining] = chunks[i];
+                positions[remaining] = position;
+                remaining++;
+                if (results[i] == ChunkVerifier.CORRUPT) {
+                    if (attempts[position] == MAX_FETCH_ATTEMPTS) {
+                        throw new IOException("Chunk " + chunks[i] + " failed verification "
+                                + attempts[position] + " times");
+                    }
+                    Log.w(TAG, "Chunk " + chunks[i] + " failed verification, fetching it again");
+                    attempts[position]++;
+                    frames[position] = null;
+                } else if (corrupt) {
+                    // Its proof may be complete once the corrupt chunks have been put right.
+                    continue;
+                }
+                // Fetch the whole proof, and the chunk itself if it was corrupt.
+                queueChunk(queue, verifier, compressed, chunks[i],
+                        verifier.getLevelCount() - 1, frames, position);
+            }
+            queue.flush();
+            pending = remaining;
+        }
+    }
+
+    /**
+     * Queue GET PROOF for {@code levels} levels of a chunk's proof, unless 0, then GET DATA for
+     * the chunk unless {@code frames[position]} already holds it. A chunk that fails its CRC is
+     * sent for again by the queue before it ever reaches the verifier.
+     */
+    private static void queueChunk(CommandQueue queue, final ChunkVerifier verifier,
+                                   boolean compressed, final int index, final int levels,
+                                   final byte[][] frames, final int position) {
+        if (levels > 0) {
+            final int proofLength = verifier.getProofLength(index, levels);
+            queue.enqueue(BuildGetProofApdu(index, compressed, levels), proofLength + 2,
+                    new CommandQueue.ResponseHandler() {
+                        @Override
+                        public void onResponse(byte[] result) throws IOException {
+                            checkResponse("GET PROOF", index, proofLength, result);
+                            verifier.addProof(index, levels, result, 0);
+                        }
+                    });
+        }
+        if (frames[position] == null) {
+            final int expected = verifier.getChunkLength(index);
+            queue.enqueue(BuildGetDataApdu(index, compressed), expected + Crc32c.LENGTH + 2,
+                    new CommandQueue.ResponseHandler() {
+                        @Override
+                        public void onResponse(byte[] result) throws IOException {
+                            checkResponse("GET DATA", index, expected + Crc32c.LENGTH, result);
+                            if (!Crc32c.check(result, 0, expected)) {
+                                throw new CommandQueue.CorruptResponseException(
+                                        "GET DATA " + index + " failed its CRC");
+                            }
+                            frames[position] = result;
+                        }
+                    });
+        }
+    }
+
+    /** Returns a verifier for data with the given root, hashing on a pool if it is large. */
+    private ChunkVerifier newVerifier(byte[] root, int length, int chunkSize) {
+        ExecutorService pool = null;
+        if (length / chunkSize >= PARALLEL_HASH_MIN_CHUNKS) {
+            synchronized (this) {
+                if (mClosed) {
+                    // Hash on the calling thread while the interrupted session winds down.
+                    return new ChunkVerifier(root, length, chunkSize, null);
+                }
+                if (mHashPool == null) {
+                    mHashPool = Executors.newFixedThreadPool(HASH_THREADS, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ChunkHasher");
+                            // Idle hashing threads must not keep the process alive.
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                pool = mHashPool;
+            }
+        }
+        return new ChunkVerifier(root, length, chunkSize, pool);
+    }
+
+    /**
+     * Check that a response succeeded and carries {@code expected} bytes of data.
+     *
+     * @param command Name of the command, for the error message
+     */
+    private static void checkResponse(String command, int index, int expected, byte[] result)
+            throws IOException {
+        int resultLength = result.length;
+        if (resultLength != expected + 2
+                || result[resultLength - 2] != SELECT_OK_SW[0]
+                || result[resultLength - 1] != SELECT_OK_SW[1]) {
+            throw new IOException(command + " " + index + " failed: "
+                    + ByteArrayToHexString(result));
+        }
+    }
+
+    /**
+     * Decompress content fetched compressed, a chunk's worth at a time.
+     *
+     * @param length Length of the decompressed content
+     */
+    private static byte[] inflateContent(PayloadCodec codec, byte[] compressed, int length,
+                                         int chunkSize) throws IOException {
+        PayloadCodec.Decoder decoder = codec.newDecoder();
+        byte[] content = new byte[length];
+        decoder.setInput(compressed, 0, compressed.length);
+        int position = inflate(decoder, new byte[chunkSize], content, 0);
+        checkInflated(decoder, position, length);
+        return content;
+    }
+
+    /**
+     * Decompress all pending input into {@code content} from {@code position}, through
+     * {@code window}.
+     *
+     * @return Position just past the last byte decompressed
+     */
+    private static int inflate(PayloadCodec.Decoder decoder, byte[] window, byte[] content,
+                               int position) throws IOException {
+        int length;
+        while ((length = decoder.decode(window, 0, window.length)) > 0) {
+            if (length > content.length - position) {
+                throw new IOException("Decompressed content longer than expected");
+            }
+            System.arraycopy(window, 0, content, position, length);
+            position += length;
+        }
+        return position;
+    }
+
+    private static void checkInflated(PayloadCodec.Decoder decoder, int length, int expected)
+            throws IOException {
+        if (!decoder.isFinished() || length != expected) {
+            throw new IOException("Compressed content truncated");
+        }
+    }
+
+
+    /**
+     * Fetch the chunks of content too large to hold, no further ahead than the consumer has
+     * asked for, and hand each to the consumer once it is verified.
+     *
+     * @param firstChunk Start of the first chunk, as received with SELECT
+     * @param resumeOffset Offset of the first chunk to fetch
+     */
+    private void streamContent(CommandQueue queue, TransferManifest manifest, byte[] firstChunk,
+                               int resumeOffset, PayloadConsumer consumer,
+                               PayloadConsumer.Demand demand) throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        int chunkCount = manifest.getChunkCount();
+        ChunkVerifier verifier = newVerifier(manifest.getRoot(), manifest.getTotalLength(),
+                chunkSize);
+        byte[][] frames = new byte[MAX_FETCH_WINDOW][];
+        int next = (resumeOffset + chunkSize - 1) / chunkSize;
+        while (next < chunkCount) {
+            int count = awaitWindow(demand, chunkCount - next);
+            Arrays.fill(frames, null);
+            fetchVerified(queue, verifier, false, next, count, firstChunk, frames);
+            for (int i = 0; i < count; i++) {
+                deliver(consumer, demand, frames[i], 0, verifier.getChunkLength(next + i),
+                        chunkSize);
+            }
+            next += count;
+        }
+    }
+
+    /**
+     * Fetch the compressed copy of content too large to hold, no further ahead than the
+     * consumer has asked for, and hand the consumer each piece as it is decompressed from a
+     * verified chunk. Only one chunk of decompressed content is held at a time.
+     *
+     * @param firstChunk Start of the first compressed chunk, as received with SELECT
+     */
+    private void streamCompressedContent(CommandQueue queue, TransferManifest manifest,
+                                         PayloadCodec codec, byte[] firstChunk,
+                                         PayloadConsumer consumer,
+                                         PayloadConsumer.Demand demand)
+            throws IOException {
+        int chunkSize = manifest.getChunkSize();
+        int chunkCount = manifest.getCompressedChunkCount();
+        int totalLength = manifest.getTotalLength();
+        ChunkVerifier verifier = newVerifier(manifest.getCompressedRoot(),
+                manifest.getCompressedLength(), chunkSize);
+        PayloadCodec.Decoder decoder = codec.newDecoder();
+        byte[] window = new byte[chunkSize];
+        byte[][] frames = new byte[MAX_FETCH_WINDOW][];
+        // Number of bytes of content delivered so far.
+        int delivered = 0;
+        int next = 0;
+        while (next < chunkCount) {
+            int count = awaitWindow(demand, chunkCount - next);
+            Arrays.fill(frames, null);
+            fetchVerified(queue, verifier, true, next, count, firstChunk, frames);
+            for (int i = 0; i < count; i++) {
+                decoder.setInput(frames[i], 0, verifier.getChunkLength(next + i));
+                delivered = inflateAndDeliver(decoder, window, consumer, demand, delivered,
+                        totalLength);
+            }
+            next += count;
+        }
+        checkInflated(decoder, delivered, totalLength);
+    }
+
+    /**
+     * Wait for the consumer to ask for more, and return how many chunks to fetch next: no more
+     * than it asked for, {@link #MAX_FETCH_WINDOW} or {@code remaining}.
+     */
+    private static int awaitWindow(PayloadConsumer.Demand demand, int remaining)
+            throws IOException {
+        long window = Math.min(demand.await(DEMAND_TIMEOUT_MS), MAX_FETCH_WINDOW);
+        if (window == 0) {
+            throw new TransferCancelledException();
+        }
+        return (int) Math.min(window, remaining);
+    }
+
+    /**
+     * Decompress all pending input through {@code window}, handing the consumer each piece.
+     *
+     * @param delivered Number of bytes of content delivered before this call
+     * @return Number of bytes of content delivered after this call
+     */
+    private static int inflateAndDeliver(PayloadCodec.Decoder decoder, byte[] window,
+                                         PayloadConsumer consumer,
+                                         PayloadConsumer.Demand demand, int delivered,
+                                         int totalLength) throws IOException {
+        int length;
+        while ((length = decoder.decode(window, 0, window.length)) > 0) {
+            if (length > totalLength - delivered) {
+                throw new IOException("Decompressed content longer than expected");
+            }
+            deliver(consumer, demand, window, 0, length, window.length);
+            delivered += length;
+        }
+        return delivered;
+    }
+
+    /**
+     * Fetch the card's block checksums and copy every block still present in the previous
+     * version of this account's content into {@code content}.
+     *
+     * @return Which chunks were filled in, or null if there is no usable previous version
+     */
+    private boolean[] reusePreviousBlocks(CommandQueue queue, TransferManifest manifest,
+                                          byte[] content) throws IOException {
+        if (mPayloadCache == null || manifest.getChunkCount() < DELTA_MIN_CHUNKS) {
+            return null;
+        }
+        byte[] previous = mPayloadCache.getLatest(manifest.getAccount());
+        if (previous == null) {
+            return null;
+        }
+        final DeltaSync delta = new DeltaSync(manifest.getChunkSize(), content.length);
+        int perResponse = DeltaSync.getBlocksPerResponse();
+        for (int first = 0; first < delta.getBlockCount(); first += perResponse) {
+            final int firstBlock = first;
+            int count = Math.min(perResponse, delta.getBlockCount() - first);
+            queue.enqueue(DeltaSync.BuildGetChecksumsApdu(firstBlock),
+                    count * BlockChecksum.ENTRY_LENGTH + 2, new CommandQueue.ResponseHandler() {
+                        @Override
+                        public void onResponse(byte[] result) throws IOException {
+                            delta.addChecksums(firstBlock, result);
+                        }
+                    });
+        }
+        queue.flush();
+        if (!delta.isComplete()) {
+            Log.w(TAG, "Incomplete block checksums, fetching everything");
+            return null;
+        }
+        return delta.reuseBlocks(previous, content);
+    }
+
     /**
      * Utility class to convert a byte array to a hexadecimal string.
      *
@@ -197,51 +993,65 @@ public class LoyaltyCardReader implements NfcAdapter.ReaderCallback {
         return result;
     }
 
-    private String getAPDUMsg(IsoDep isoDep) {
-        if (isoDep == null) {
-            return "";
-        }
-        String msg = null;
-        try {
-            Log.i(TAG, "Sending: " + ByteArrayToHexString(READ_DATA_APDU));
-            byte[] result = isoDep.transceive(READ_DATA_APDU);
-            int resultLength = result.length;
-            byte[] statusWord = {result[resultLength - 2], result[resultLength - 1]};
-            byte[] payload = Arrays.copyOf(result, resultLength - 2);
-            if (Arrays.equals(SELECT_OK_SW, statusWord)) {
-                msg = new String(payload, "UTF-8");
-                Log.i(TAG, "Received msg: " + msg);
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "getAPDUMsg Exception:" + e);
-        }
-        return msg;
+    private void getAPDUMsg(CommandQueue queue) {
+        Log.i(TAG, "Queueing: " + ByteArrayToHexString(READ_DATA_APDU));
+        queue.enqueue(READ_DATA_APDU, MAX_MESSAGE_RESPONSE_LENGTH,
+                new CommandQueue.ResponseHandler() {
+                    @Override
+                    public void onResponse(byte[] result) throws IOException {
+                        int resultLength = result.length;
+                        if (result[resultLength - 2] != SELECT_OK_SW[0]
+                                || result[resultLength - 1] != SELECT_OK_SW[1]) {
+                            Log.w(TAG, "getAPDUMsg failed: " + ByteArrayToHexString(result));
+                            return;
+                        }
+                        TlvReader tlv = mTlvReader;
+                        tlv.reset(result, 0, resultLength - 2);
+                        while (tlv.next()) {
+                            if (tlv.getTag() == TAG_MESSAGE) {
+                                Log.i(TAG, "Received msg: " + new String(result,
+                                        tlv.getValueOffset(), tlv.getValueLength(), "UTF-8"));
+                            } else if (tlv.getTag() == TAG_RESULT) {
+                                Log.w(TAG, "getAPDUMsg failed with result "
+                                        + tlv.getValueInt());
+                            }
+                        }
+                    }
+                });
     }
 
-    private void setAPDUMsg(IsoDep isoDep, String msg) {
-        if (isoDep == null) {
-            return;
-        }
-
-        try {
-            Log.i(TAG, "write: " + WRITE_DATA_APDU_HEADER);
-            byte[] selCommand = ConcatArrays(WRITE_DATA_APDU, msg.getBytes());
-            Log.i(TAG, "Sending: " + ByteArrayToHexString(selCommand));
-            byte[] result = isoDep.transceive(selCommand);
-            int resultLength = result.length;
-            byte[] statusWord = {result[resultLength - 2], result[resultLength - 1]};
-            byte[] payload1 = Arrays.copyOf(result, resultLength - 2);
-            if (Arrays.equals(SELECT_OK_SW, statusWord)) {
-                // The remote NFC device will immediately respond with its stored account number
-                String accountNumber = new String(payload1, "UTF-8");
-                Log.i(TAG, "Received payload: " + accountNumber);
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "setAPDUMsg Exception:" + e);
+    /**
+     * @param codec Codec the card accepts, used if the message compresses well, or null
+     */
+    private void setAPDUMsg(CommandQueue queue, String msg, PayloadCodec codec) {
+        Log.i(TAG, "write: " + WRITE_DATA_APDU_HEADER);
+        byte[] data = msg.getBytes();
+        byte[] selCommand;
+        if (codec != null && codec.isWorthCompressing(data, 0, data.length)) {
+            selCommand = ConcatArrays(WRITE_DATA_APDU, codec.encode(data, 0, data.length));
+            // P1 names the codec the message is compressed with.
+            selCommand[2] = (byte) codec.getId();
+        } else {
+            selCommand = ConcatArrays(WRITE_DATA_APDU, data);
         }
-
-
-        return;
+        Log.i(TAG, "Queueing: " + ByteArrayToHexString(selCommand));
+        queue.enqueue(selCommand, MAX_MESSAGE_RESPONSE_LENGTH,
+                new CommandQueue.ResponseHandler() {
+                    @Override
+                    public void onResponse(byte[] result) throws IOException {
+                        int resultLength = result.length;
+                        TlvReader tlv = mTlvReader;
+                        tlv.reset(result, 0, resultLength - 2);
+                        // The remote NFC device will immediately respond with its status
+                        if (result[resultLength - 2] == SELECT_OK_SW[0]
+                                && result[resultLength - 1] == SELECT_OK_SW[1]
+                                && tlv.find(TAG_RESULT) && tlv.getValueInt() == RESULT_OK) {
+                            Log.i(TAG, "Message written");
+                        } else {
+                            Log.w(TAG, "setAPDUMsg failed: " + ByteArrayToHexString(result));
+                        }
+                    }
+                });
     }
 
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of content received from cards, kept on disk across taps.
+ *
+ * <p>Entries are keyed by the account and content version from the card's
+ * {@link com.example.android.common.TransferManifest}, so a repeat tap of unchanged content can
+ * be served from here without a single GET DATA. When the content did change, the latest copy
+ * held for the account is the base for a delta transfer. Each entry is one file in the cache
+ * directory; recency survives restarts through the files' modification times, and the least
+ * recently used entries are deleted once the total size exceeds the limit.
+ *
+ * <p>The directory is only read on first use, which should be off the UI thread.
+ *
+ * <p>This class is thread-safe.
+ */
+public class PayloadCache {
+    private static final String TAG = "PayloadCache";
+    private static final String SUFFIX = ".payload";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // File name -> size, in access order.
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mTotalBytes;
+    // Whether the entries on disk have been indexed yet.
+    private boolean mLoaded;
+
+    /**
+     * @param directory Directory holding the cache. It is created on first use if needed.
+     * @param maxBytes Upper bound on the total size of cached content
+     */
+    public PayloadCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached content for an account and content version, or null on a miss.
+     */
+    public synchronized byte[] get(String account, long version) {
+        load();
+        String name = fileName(account, version);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        try {
+            byte[] content = readFully(file);
+            file.setLastModified(System.currentTimeMillis());
+            return content;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + name + ": " + e);
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file holding the cached content for an account and content version, or null
+     * on a miss. The entry may be evicted once this returns, so open the file before relying on
+     * it.
+     */
+    public synchronized File getFile(String account, long version) {
+        load();
+        String name = fileName(account, version);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Returns the most recently used content held for an account, whatever its version, or null
+     * if there is none.
+     */
+    public synchronized byte[] getLatest(String account) {
+        load();
+        String prefix = accountPrefix(account);
+        String latest = null;
+        // Iteration runs from least to most recently used.
+        for (String name : mEntries.keySet()) {
+            if (name.startsWith(prefix)) {
+                latest = name;
+            }
+        }
+        if (latest == null) {
+            return null;
+        }
+        try {
+            return readFully(new File(mDirectory, latest));
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + latest + ": " + e);
+            remove(latest);
+            return null;
+        }
+    }
+
+    /**
+     * Store content for an account and content version, evicting least recently used entries
+     * as needed. Content larger than the whole cache is not stored.
+     */
+    public synchronized void put(String account, long version, byte[] content) {
+        load();
+        if (content.length > mMaxBytes) {
+            return;
+        }
+        String name = fileName(account, version);
+        File tmp = new File(mDirectory, name + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(mDirectory, name))) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache " + name + ": " + e);
+            tmp.delete();
+            return;
+        }
+        Long previous = mEntries.put(name, (long) content.length);
+        mTotalBytes += content.length - (previous != null ? previous : 0);
+        trim();
+    }
+
+    /**
+     * Move a file holding the complete content for an account and content version into the
+     * cache, evicting least recently used entries as needed. A file larger than the whole cache
+     * is deleted instead.
+     *
+     * @throws IOException if the file could not be moved, in which case it is left in place
+     */
+    public synchronized void putFile(String account, long version, File file)
+            throws IOException {
+        load();
+        long length = file.length();
+        if (length > mMaxBytes) {
+            file.delete();
+            return;
+        }
+        String name = fileName(account, version);
+        File entry = new File(mDirectory, name);
+        if (!file.renameTo(entry)) {
+            throw new IOException("Unable to move " + file + " to " + entry);
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        Long previous = mEntries.put(name, length);
+        mTotalBytes += length - (previous != null ? previous : 0);
+        trim();
+    }
+
+    /** Index the entries on disk, the first time the cache is used. */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                mEntries.put(file.getName(), file.length());
+                mTotalBytes += file.length();
+            } else {
+                // Leftover from an interrupted write.
+                file.delete();
+            }
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mTotalBytes -= eldest.getValue();
+            new File(mDirectory, eldest.getKey()).delete();
+        }
+    }
+
+    private void remove(String name) {
+        Long size = mEntries.remove(name);
+        if (size != null) {
+            mTotalBytes -= size;
+        }
+        new File(mDirectory, name).delete();
+    }
+
+    static String fileName(String account, long version) {
+        return accountPrefix(account) + Long.toHexString(version) + SUFFIX;
+    }
+
+    /** Account IDs are arbitrary text, so entries are named after a hash of the account. */
+    static String accountPrefix(String account) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(account.getBytes("UTF-8"));
+            return LoyaltyCardReader.ByteArrayToHexString(hash) + "-";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < content.length) {
+                int read = in.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                offset += read;
+            }
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import com.example.android.common.TransferManifest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the content read from a card, a chunk at a time.
+ *
+ * <p>The consumer controls the pace of the transfer: the reader only delivers as many chunks as
+ * have been asked for through {@link Demand#request}, and stops fetching from the card while
+ * there is no outstanding demand. A consumer that processes chunks slower than the link delivers
+ * them therefore holds up the card rather than having the payload pile up in memory.
+ *
+ * <p>All methods are called on one of the reader's worker threads, never on the NFC discovery
+ * callback, in order: {@link #onStart}, any number of {@link #onChunk} calls, then either
+ * {@link #onComplete} or {@link #onError}. Transfers are delivered one at a time, so one has
+ * ended before the next starts. A cancelled transfer ends with {@link #onError}, passing an
+ * {@link InterruptedIOException}.
+ *
+ * <p>A consumer that kept part of the same content from an interrupted transfer can have the
+ * transfer resume where it stopped by returning the length of that part from {@link #onStart}.
+ */
+public interface PayloadConsumer {
+    /**
+     * A transfer is starting. No chunks are delivered until demand is signalled.
+     *
+     * @param manifest Description of the content about to be delivered
+     * @param demand Used to ask for chunks, at any time and from any thread
+     * @return Number of bytes from the start of the content the consumer already holds, which
+     *         are not delivered again: 0, a multiple of the manifest's chunk size, or the total
+     *         length
+     */
+    int onStart(TransferManifest manifest, Demand demand);
+
+    /**
+     * The next part of the content, in order. The buffer is read-only and only valid for the
+     * duration of the call; copy anything that is needed later.
+     */
+    void onChunk(ByteBuffer chunk);
+
+    /** Every chunk of the content has been delivered. */
+    void onComplete();
+
+    /** The transfer failed. Chunks delivered so far may not make up a consistent payload. */
+    void onError(Exception e);
+
+    /**
+     * Outstanding demand for chunks, shared between a consumer and the reader delivering to it.
+     *
+     * <p>This class is thread-safe.
+     */
+    final class Demand {
+        private long mRequested;
+        private boolean mCancelled;
+
+        /** Ask for up to {@code chunks} more chunks. */
+        public synchronized void request(long chunks) {
+            if (chunks <= 0) {
+                throw new IllegalArgumentException("Demand must be positive");
+            }
+            mRequested = Math.min(Long.MAX_VALUE - chunks, mRequested) + chunks;
+            notifyAll();
+        }
+
+        /** Stop the transfer. The reader stops fetching once the current exchange completes. */
+        public synchronized void cancel() {
+            mCancelled = true;
+            notifyAll();
+        }
+
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Wait until at least one chunk is asked for.
+         *
+         * @return Number of chunks asked for and not yet delivered, or 0 if cancelled
+         * @throws InterruptedIOException if there is still no demand after {@code timeoutMs}
+         */
+        synchronized long await(long timeoutMs) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (mRequested == 0 && !mCancelled) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("No demand for " + timeoutMs + " ms");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for demand");
+                }
+            }
+            return mCancelled ? 0 : mRequested;
+        }
+
+        /** Record that one chunk was delivered. */
+        synchronized void consume() {
+            mRequested--;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import com.example.android.common.TransferManifest;
+import com.example.android.common.logger.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes received content straight to a file, then passes every callback on to another
+ * {@link PayloadConsumer}, which keeps control of the demand.
+ *
+ * <p>Content is written to a partial file in the sink's directory, preallocated to its full
+ * length, with each chunk written at its offset through a {@link FileChannel}. Nothing is kept
+ * on the heap beyond the chunk being written. Every {@link #CHECKPOINT_INTERVAL} bytes, and when
+ * a transfer fails, the file is synced and the length written so far is recorded in a trailer
+ * after the content. A later transfer of the same content version resumes from there; starting
+ * on another version of the same account's content deletes it. Once complete, the trailer is cut
+ * off, the file is synced once more and moved into the {@link PayloadCache}, which keeps it
+ * within the cache's size limit like any other entry.
+ *
+ * <p>When the cache already holds the content, whether from an earlier tap or because the reader
+ * has just cached it, the transfer is not needed: the reader is told the whole content is held,
+ * and once it completes the cached file is read back and handed to the other consumer a chunk at
+ * a time, as it asks for it, just as if it had been received.
+ */
+public class PayloadFileSink implements PayloadConsumer {
+    private static final String TAG = "PayloadFileSink";
+    private static final String PARTIAL_SUFFIX = ".part";
+    // Number of bytes written between two syncs of a partial file.
+    private static final long CHECKPOINT_INTERVAL = 256 * 1024;
+    // Trailer of a partial file: [LENGTH WRITTEN (4) | MAGIC (4)].
+    private static final int TRAILER_LENGTH = 8;
+    private static final int TRAILER_MAGIC = 0x50415254;
+
+    private final File mDirectory;
+    private final PayloadCache mCache;
+    private final PayloadConsumer mDelegate;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private File mPartialFile;
+    // Cached file being read back, if the cache already held the content.
+    private File mHeldFile;
+    private String mAccount;
+    private long mContentVersion;
+    private PayloadConsumer.Demand mDemand;
+    private int mTotalLength;
+    private int mChunkSize;
+    // Whether mFile is a complete file read back rather than a partial one being written.
+    private boolean mReplaying;
+    private long mPosition;
+    private long mCheckpoint;
+    // Why the file could not be written, reported in place of the cancellation that follows.
+    private IOException mWriteError;
+    private final ByteBuffer mTrailer = ByteBuffer.allocate(TRAILER_LENGTH);
+
+    /**
+     * @param directory Directory to write partial files to. It is created on first use.
+     * @param cache Cache complete files are moved to, and read back from
+     * @param delegate Consumer every callback is passed on to
+     */
+    public PayloadFileSink(File directory, PayloadCache cache, PayloadConsumer delegate) {
+        mDirectory = directory;
+        mCache = cache;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public int onStart(TransferManifest manifest, PayloadConsumer.Demand demand) {
+        close();
+        mDemand = demand;
+        mWriteError = null;
+        mTotalLength = manifest.getTotalLength();
+        mChunkSize = manifest.getChunkSize();
+        mAccount = manifest.getAccount();
+        mContentVersion = manifest.getContentVersion();
+        mPartialFile = new File(mDirectory,
+                PayloadCache.fileName(mAccount, mContentVersion) + PARTIAL_SUFFIX);
+        mDelegate.onStart(manifest, demand);
+        mHeldFile = mCache.getFile(mAccount, mContentVersion);
+        if (mHeldFile != null && mHeldFile.length() == mTotalLength) {
+            try {
+                // Opened now so that it can still be read back if the cache evicts it meanwhile.
+                mFile = new RandomAccessFile(mHeldFile, "r");
+                mChannel = mFile.getChannel();
+                mReplaying = true;
+                Log.i(TAG, "Already holding " + mHeldFile.getName());
+                return mTotalLength;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read " + mHeldFile + ", receiving it again: " + e);
+            }
+        }
+        deleteStalePartialFiles();
+        try {
+            mFile = new RandomAccessFile(mPartialFile, "rw");
+            mChannel = mFile.getChannel();
+            mPosition = readTrailer(manifest.getChunkSize());
+            mFile.setLength(mTotalLength + TRAILER_LENGTH);
+            mCheckpoint = mPosition;
+            if (mPosition > 0) {
+                Log.i(TAG, "Resuming " + mPartialFile.getName() + " at " + mPosition);
+            }
+            return (int) mPosition;
+        } catch (IOException e) {
+            fail(e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void onChunk(ByteBuffer chunk) {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            ByteBuffer data = chunk.duplicate();
+            while (data.hasRemaining()) {
+                mPosition += mChannel.write(data, mPosition);
+            }
+            if (mPosition - mCheckpoint >= CHECKPOINT_INTERVAL) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        mDelegate.onChunk(chunk);
+    }
+
+    @Override
+    public void onComplete() {
+        if (mReplaying) {
+            try {
+                replay();
+            } catch (IOException e) {
+                close();
+                mDelegate.onError(e);
+                return;
+            }
+            close();
+        } else if (mChannel != null) {
+            try {
+                // Drop the trailer and make the content durable before it gets its final name.
+                mFile.setLength(mTotalLength);
+                mChannel.force(false);
+                close();
+                mCache.putFile(mAccount, mContentVersion, mPartialFile);
+                Log.i(TAG, "Received " + mPartialFile.getName());
+            } catch (IOException e) {
+                close();
+                mDelegate.onError(e);
+                return;
+            }
+        }
+        mDelegate.onComplete();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        if (mChannel != null && !mReplaying) {
+            try {
+                checkpoint();
+            } catch (IOException checkpointError) {
+                Log.w(TAG, "Unable to record progress: " + checkpointError);
+            }
+        }
+        close();
+        mDelegate.onError(mWriteError != null ? mWriteError : e);
+    }
+
+    /**
+     * Returns the length of content a partial file already holds, rounded down to a chunk
+     * boundary, or 0 if it is missing or not a partial file of the right length.
+     */
+    private long readTrailer(int chunkSize) throws IOException {
+        if (mFile.length() != mTotalLength + TRAILER_LENGTH) {
+            return 0;
+        }
+        mTrailer.clear();
+        while (mTrailer.hasRemaining()) {
+            if (mChannel.read(mTrailer, mTotalLength + mTrailer.position()) < 0) {
+                return 0;
+            }
+        }
+        int written = mTrailer.getInt(0);
+        if (mTrailer.getInt(4) != TRAILER_MAGIC || written < 0 || written > mTotalLength) {
+            return 0;
+        }
+        return written == mTotalLength ? written : written - written % chunkSize;
+    }
+
+    /**
+     * Hand the delegate the content of the complete file, a chunk at a time, each once it has
+     * asked for it.
+     */
+    private void replay() throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(mChunkSize);
+        long position = 0;
+        while (position < mTotalLength) {
+            if (mDemand.await(LoyaltyCardReader.DEMAND_TIMEOUT_MS) == 0) {
+                throw new InterruptedIOException("Transfer cancelled");
+            }
+            chunk.clear();
+            chunk.limit((int) Math.min(mChunkSize, mTotalLength - position));
+            while (chunk.hasRemaining()) {
+                if (mChannel.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException(mHeldFile + " is shorter than expected");
+                }
+            }
+            chunk.flip();
+            position += chunk.remaining();
+            mDemand.consume();
+            mDelegate.onChunk(chunk.asReadOnlyBuffer());
+        }
+    }
+
+    /** Sync what was written so far, then record its length in the trailer and sync that. */
+    private void checkpoint() throws IOException {
+        mChannel.force(false);
+        mTrailer.clear();
+        mTrailer.putInt((int) mPosition).putInt(TRAILER_MAGIC).flip();
+        while (mTrailer.hasRemaining()) {
+            mChannel.write(mTrailer, mTotalLength + mTrailer.position());
+        }
+        mChannel.force(false);
+        mCheckpoint = mPosition;
+    }
+
+    /**
+     * Abandon the file after a write failed and stop the transfer. The reader ends it with
+     * {@link #onError}, which passes on {@code e}.
+     */
+    private void fail(IOException e) {
+        Log.e(TAG, "Unable to write " + mPartialFile + ": " + e);
+        close();
+        mWriteError = e;
+        mDemand.cancel();
+    }
+
+    private void close() {
+        mChannel = null;
+        mReplaying = false;
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + mPartialFile + ": " + e);
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * Delete the partial files of other versions of the account's content, which can no longer
+     * be resumed, so that at most one is kept per account.
+     */
+    private void deleteStalePartialFiles() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        String prefix = PayloadCache.accountPrefix(mAccount);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && !file.equals(mPartialFile)) {
+                Log.i(TAG, "Deleting stale " + file.getName());
+                file.delete();
+            }
+        }
+    }
+}
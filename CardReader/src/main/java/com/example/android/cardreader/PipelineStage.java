@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One stage of the reader's processing pipeline: a worker thread fed by a bounded queue.
+ *
+ * <p>Stages pass work on with {@link #submit}, which waits while the next stage's queue is full,
+ * so a slow stage holds up the ones feeding it rather than letting work pile up. Work arriving
+ * from outside, where waiting is not an option, is passed with {@link #offer}, which turns it
+ * away instead. {@link #quit} stops the stage's thread once it is no longer needed.
+ *
+ * <p>Each stage counts the tasks it ran, failed and turned away, and tracks the deepest its
+ * queue got and how long tasks waited in it and took to run; {@link #toString} sums these up.
+ *
+ * <p>This class is thread-safe.
+ */
+public class PipelineStage {
+    private static final String TAG = "PipelineStage";
+
+    private final String mName;
+    private final BlockingQueue<Task> mQueue;
+    private final Thread mThread;
+    private volatile boolean mQuit;
+    // Tasks submitted and not finished yet, including the one running.
+    private int mPending;
+    private long mCompleted;
+    private long mFailed;
+    private long mRejected;
+    private int mMaxDepth;
+    private long mTotalWaitNanos;
+    private long mTotalRunNanos;
+
+    private static class Task {
+        final Runnable runnable;
+        final long queuedAt = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * @param name Name of the stage, also given to its thread
+     * @param capacity Most tasks that can wait in the queue
+     */
+    public PipelineStage(String name, int capacity) {
+        mName = name;
+        mQueue = new ArrayBlockingQueue<Task>(capacity);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "Reader-" + name);
+        // An idle pipeline must not keep the process alive.
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queue a task, waiting for room if the queue is full.
+     *
+     * @return False if interrupted while waiting or the stage has quit, in which case the task
+     *         is dropped
+     */
+    public boolean submit(Runnable task) {
+        synchronized (this) {
+            mPending++;
+        }
+        if (mQuit) {
+            reject();
+            return false;
+        }
+        Task queued = new Task(task);
+        try {
+            mQueue.put(queued);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reject();
+            return false;
+        }
+        return afterQueued(queued);
+    }
+
+    /**
+     * Queue a task if there is room for it.
+     *
+     * @return False if the queue is full or the stage has quit, in which case the task is
+     *         dropped
+     */
+    public boolean offer(Runnable task) {
+        synchronized (this) {
+            mPending++;
+        }
+        Task queued = new Task(task);
+        if (mQuit || !mQueue.offer(queued)) {
+            reject();
+            return false;
+        }
+        return afterQueued(queued);
+    }
+
+    /**
+     * Stop the stage's thread. The task running, if any, is interrupted and the stage stops once
+     * it returns; tasks still queued, and any submitted from now on, are dropped. Returns at once.
+     */
+    public void quit() {
+        mQuit = true;
+        mThread.interrupt();
+    }
+
+    /** Wait until every task submitted so far has run. */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (mPending > 0) {
+            wait();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long finished = mCompleted + mFailed;
+        return mName + ": " + mCompleted + " done, " + mFailed + " failed, " + mRejected
+                + " rejected, " + mQueue.size() + " queued (max " + mMaxDepth + "), avg wait "
+                + averageMillis(mTotalWaitNanos, finished) + " ms, avg run "
+                + averageMillis(mTotalRunNanos, finished) + " ms";
+    }
+
+    private void work() {
+        while (!mQuit) {
+            Task task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, mName + " task failed: " + e);
+                failed = true;
+            }
+            long end = System.nanoTime();
+            synchronized (this) {
+                if (failed) {
+                    mFailed++;
+                } else {
+                    mCompleted++;
+                }
+                mTotalWaitNanos += start - task.queuedAt;
+                mTotalRunNanos += end - start;
+                mPending--;
+                notifyAll();
+            }
+        }
+        // Drop whatever is still queued, so that nobody waits for it.
+        while (mQueue.poll() != null) {
+            reject();
+        }
+    }
+
+    /**
+     * Finish queueing a task. A task queued just as the stage quit may have missed the final
+     * drain of the queue, so it is taken back out and dropped.
+     */
+    private boolean afterQueued(Task task) {
+        if (mQuit && mQueue.remove(task)) {
+            reject();
+            return false;
+        }
+        recordDepth();
+        return true;
+    }
+
+    private synchronized void reject() {
+        mRejected++;
+        mPending--;
+        notifyAll();
+    }
+
+    private synchronized void recordDepth() {
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+    }
+
+    private static long averageMillis(long totalNanos, long count) {
+        return count == 0 ? 0 : totalNanos / count / 1000000;
+    }
+}
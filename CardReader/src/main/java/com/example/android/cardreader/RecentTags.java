@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tags seen recently, keyed by UID, used to tell a tag discovered again from a new one.
+ *
+ * <p>A tag hovering at the edge of the field drops out and comes back, and is discovered again
+ * each time; a UID is remembered for a configurable time so that these discoveries can be told
+ * apart from a new tap. Card emulators may pick a new random UID each time they enter the field,
+ * so for them this only catches discoveries within one activation. A tag being served can be
+ * {@link #claim}ed, so that it is remembered for however long that takes.
+ *
+ * <p>UIDs are kept in a fixed number of slots chosen by hash, each holding an immutable entry
+ * that is replaced with compare-and-set, so the table never grows and is never locked. A UID
+ * whose slot is taken by another simply pushes it out, which at worst lets a tag through twice.
+ *
+ * <p>This class is thread-safe.
+ */
+public class RecentTags {
+    private final AtomicReferenceArray<Entry> mSlots;
+    private volatile long mTtlNanos;
+
+    private static class Entry {
+        final byte[] uid;
+        final long expiresAt;
+        // Claimed tags are remembered until touched or removed, whatever the time to live.
+        final boolean claimed;
+
+        Entry(byte[] uid, long expiresAt, boolean claimed) {
+            this.uid = uid;
+            this.expiresAt = expiresAt;
+            this.claimed = claimed;
+        }
+
+        boolean isLive(byte[] uid, long now) {
+            return (claimed || now - expiresAt < 0) && Arrays.equals(this.uid, uid);
+        }
+    }
+
+    /**
+     * @param capacity Number of slots; rounded up to a power of two
+     * @param ttlMs How long a tag is remembered, in ms
+     */
+    public RecentTags(int capacity, long ttlMs) {
+        int slots = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new AtomicReferenceArray<Entry>(slots);
+        setTtl(ttlMs);
+    }
+
+    /** Set how long tags added from now on are remembered, in ms. */
+    public void setTtl(long ttlMs) {
+        mTtlNanos = ttlMs * 1000000;
+    }
+
+    /**
+     * Remember a tag unless it is remembered already.
+     *
+     * @return False if the tag was seen within the time to live; always true for a tag without
+     *         a UID, which cannot be told apart from others
+     */
+    public boolean add(byte[] uid) {
+        return add(uid, false);
+    }
+
+    /**
+     * Remember a tag unless it is remembered already, until {@link #touch} or {@link #remove}
+     * is called for it rather than for the time to live.
+     *
+     * @return False if the tag was seen within the time to live or is claimed already; always
+     *         true for a tag without a UID
+     */
+    public boolean claim(byte[] uid) {
+        return add(uid, true);
+    }
+
+    private boolean add(byte[] uid, boolean claimed) {
+        if (uid == null || uid.length == 0) {
+            return true;
+        }
+        int slot = slotOf(uid);
+        while (true) {
+            Entry current = mSlots.get(slot);
+            long now = System.nanoTime();
+            if (current != null && current.isLive(uid, now)) {
+                return false;
+            }
+            Entry entry = new Entry(uid.clone(), now + mTtlNanos, claimed);
+            if (mSlots.compareAndSet(slot, current, entry)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remember a tag for the time to live from now, whether or not it was remembered before. A
+     * claim on it ends.
+     */
+    public void touch(byte[] uid) {
+        if (uid != null && uid.length > 0) {
+            mSlots.set(slotOf(uid), new Entry(uid.clone(), System.nanoTime() + mTtlNanos, false));
+        }
+    }
+
+    /** Forget a tag, so that it is treated as new when discovered again. */
+    public void remove(byte[] uid) {
+        if (uid == null || uid.length == 0) {
+            return;
+        }
+        int slot = slotOf(uid);
+        Entry current = mSlots.get(slot);
+        // A failed compare-and-set means the slot was just given to a newer entry; leave it.
+        if (current != null && Arrays.equals(current.uid, uid)) {
+            mSlots.compareAndSet(slot, current, null);
+        }
+    }
+
+    private int slotOf(byte[] uid) {
+        int hash = Arrays.hashCode(uid);
+        hash ^= hash >>> 16;
+        return hash & (mSlots.length() - 1);
+    }
+}
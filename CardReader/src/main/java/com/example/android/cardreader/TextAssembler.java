@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.cardreader;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes text while its bytes are still arriving.
+ *
+ * <p>Content arrives as a series of chunks, each decoded by {@link #append} as soon as it is
+ * received. The bytes of a character split across two chunks are carried over until the rest of
+ * it arrives, so each byte is decoded exactly once, in order, and the text is ready as soon as
+ * the last chunk is.
+ *
+ * <p>The decoder and character buffer are kept between transfers; {@link #reset} prepares for
+ * the next one. Malformed input is replaced, as {@link String#String(byte[], String)} does.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class TextAssembler {
+    private final CharsetDecoder mDecoder;
+    private CharBuffer mText = CharBuffer.allocate(0);
+    // Start of a character split across a chunk boundary, in write mode.
+    private final ByteBuffer mCarry = ByteBuffer.allocate(16);
+
+    public TextAssembler(Charset charset) {
+        mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Start assembling new text.
+     *
+     * @param expectedLength Length of the encoded text in bytes, used to size the character
+     *                       buffer up front
+     */
+    public void reset(int expectedLength) {
+        mDecoder.reset();
+        int capacity = (int) Math.ceil(expectedLength * (double) mDecoder.maxCharsPerByte());
+        if (mText.capacity() < capacity) {
+            mText = CharBuffer.allocate(capacity);
+        }
+        mText.clear();
+        mCarry.clear();
+    }
+
+    /** Returns the number of characters decoded so far. */
+    public int length() {
+        return mText.position();
+    }
+
+    /** Decode the next chunk of text. The chunk's position is left unchanged. */
+    public void append(ByteBuffer chunk) {
+        ByteBuffer input = chunk.duplicate();
+        // Complete a character left over from the previous chunk, a byte at a time.
+        while (mCarry.position() > 0 && input.hasRemaining()) {
+            mCarry.put(input.get());
+            mCarry.flip();
+            decode(mCarry, false);
+            mCarry.compact();
+        }
+        if (mCarry.position() == 0) {
+            decode(input, false);
+            mCarry.put(input);
+        }
+    }
+
+    /**
+     * Decode whatever is left of the input, replacing a trailing partial character, and return
+     * the assembled text.
+     */
+    public String finish() {
+        mCarry.flip();
+        decode(mCarry, true);
+        mCarry.clear();
+        while (mDecoder.flush(mText).isOverflow()) {
+            grow();
+        }
+        return new String(mText.array(), 0, mText.position());
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) {
+        while (true) {
+            CoderResult result = mDecoder.decode(input, mText, endOfInput);
+            if (!result.isOverflow()) {
+                return;
+            }
+            grow();
+        }
+    }
+
+    private void grow() {
+        CharBuffer larger = CharBuffer.allocate(Math.max(16, mText.capacity() * 2));
+        mText.flip();
+        larger.put(mText);
+        mText = larger;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Raw deflate (RFC 1951) with a preset dictionary.
+ *
+ * <p>Deflate can refer back into the dictionary as if it preceded the payload, so strings that
+ * are common to every payload compress well even in the first few bytes. Raw streams are used
+ * to save the 6 byte zlib header and trailer; the content version in the manifest already
+ * verifies the result.
+ *
+ * <p>Both sides must use the same dictionary, so changing it requires a new codec ID.
+ *
+ * <p>This class is shared between the card emulation and card reader samples.
+ */
+public class DeflateCodec extends PayloadCodec {
+    // Strings common in this sample's payloads. Deflate favours the end of the dictionary, so
+    // the most frequent strings go last.
+    private static final byte[] DEFAULT_DICTIONARY = ("account write success data error "
+            + "some string random data some string random data \n")
+            .getBytes(Charset.forName("UTF-8"));
+    private static final int BUFFER_SIZE = 512;
+
+    static final DeflateCodec DEFAULT = new DeflateCodec(DEFAULT_DICTIONARY);
+
+    private final byte[] mDictionary;
+
+    public DeflateCodec(byte[] dictionary) {
+        mDictionary = dictionary;
+    }
+
+    @Override
+    public int getId() {
+        return DEFLATE;
+    }
+
+    @Override
+    public byte[] encode(byte[] src, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(mDictionary);
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] src, int offset, int length, int maxLength) throws IOException {
+        Inflater inflater = newInflater();
+        try {
+            inflater.setInput(src, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int inflated = inflater.inflate(buffer);
+                if (out.size() + inflated > maxLength) {
+                    throw new ZipException("Payload longer than " + maxLength + " bytes");
+                }
+                out.write(buffer, 0, inflated);
+                if (inflater.finished()) {
+                    break;
+                }
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new ZipException("Compressed payload truncated");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public PayloadCodec.Decoder newDecoder() {
+        return new Decoder(newInflater());
+    }
+
+    private Inflater newInflater() {
+        // Raw streams don't ask for their dictionary; it has to be set up front.
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(mDictionary);
+        return inflater;
+    }
+
+    private static class Decoder implements PayloadCodec.Decoder {
+        private final Inflater mInflater;
+        private boolean mFinished;
+        // Set if input was supplied after the end of the stream.
+        private boolean mTrailingData;
+
+        Decoder(Inflater inflater) {
+            mInflater = inflater;
+        }
+
+        @Override
+        public void setInput(byte[] src, int offset, int length) {
+            if (mFinished) {
+                mTrailingData |= length > 0;
+            } else {
+                mInflater.setInput(src, offset, length);
+            }
+        }
+
+        @Override
+        public int decode(byte[] dst, int offset, int length) throws IOException {
+            if (mFinished) {
+                if (mTrailingData) {
+                    throw new ZipException("Data past the end of the compressed stream");
+                }
+                return 0;
+            }
+            try {
+                int inflated = mInflater.inflate(dst, offset, length);
+                if (mInflater.finished()) {
+                    mFinished = true;
+                    mTrailingData = mInflater.getRemaining() > 0;
+                    mInflater.end();
+                    if (mTrailingData) {
+                        throw new ZipException("Data past the end of the compressed stream");
+                    }
+                }
+                return inflated;
+            } catch (DataFormatException e) {
+                mFinished = true;
+                mInflater.end();
+                throw new ZipException(e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean needsInput() {
+            return !mFinished && mInflater.needsInput();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return mFinished;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+/**
+ * Cursor over BER-TLV data objects, as used by ISO 7816-4.
+ *
+ * <p>The reader never copies: each call to {@link #next()} moves to the next data object and
+ * exposes its tag and the offset and length of its value within the underlying buffer. To read
+ * the objects nested in a constructed value, point a second reader at that value with
+ * {@link #reset}. A reader can be reused for any number of buffers, so parsing a response
+ * allocates nothing.
+ *
+ * <p>Tags of up to three bytes and lengths of up to three bytes are supported. Padding bytes
+ * (00 or FF) between data objects are skipped.
+ *
+ * <p>This class is shared between the card emulation and card reader samples. It is not
+ * thread-safe.
+ */
+public class TlvReader {
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mEnd;
+    private int mTag;
+    private int mValueOffset;
+    private int mValueLength;
+
+    public TlvReader() {
+        reset(new byte[0], 0, 0);
+    }
+
+    public TlvReader(byte[] buffer, int offset, int length) {
+        reset(buffer, offset, length);
+    }
+
+    /** Point the reader at another run of data objects, before the first of them. */
+    public void reset(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+        mTag = 0;
+        mValueOffset = offset;
+        mValueLength = 0;
+    }
+
+    /**
+     * Move to the next data object.
+     *
+     * @return false if there are no more data objects
+     * @throws IllegalArgumentException if the data object is malformed or overruns the buffer
+     */
+    public boolean next() {
+        int position = mPosition;
+        while (position < mEnd && (mBuffer[position] == 0x00 || mBuffer[position] == (byte) 0xFF)) {
+            position++;
+        }
+        if (position == mEnd) {
+            mPosition = position;
+            return false;
+        }
+        int tag = mBuffer[position++] & 0xFF;
+        if ((tag & 0x1F) == 0x1F) {
+            // Subsequent tag bytes have bit 8 set, except the last.
+            int tagBytes = 1;
+            int b;
+            do {
+                if (position == mEnd || ++tagBytes > 3) {
+                    throw new IllegalArgumentException("Malformed tag");
+                }
+                b = mBuffer[position++] & 0xFF;
+                tag = (tag << 8) | b;
+            } while ((b & 0x80) != 0);
+        }
+        if (position == mEnd) {
+            throw new IllegalArgumentException("Missing length of tag " + Integer.toHexString(tag));
+        }
+        int length = mBuffer[position++] & 0xFF;
+        if (length > 0x80) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3 || mEnd - position < lengthBytes) {
+                throw new IllegalArgumentException("Malformed length");
+            }
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (mBuffer[position++] & 0xFF);
+            }
+        } else if (length == 0x80) {
+            throw new IllegalArgumentException("Indefinite length not supported");
+        }
+        if (mEnd - position < length) {
+            throw new IllegalArgumentException("Value of tag " + Integer.toHexString(tag)
+                    + " overruns the buffer");
+        }
+        mTag = tag;
+        mValueOffset = position;
+        mValueLength = length;
+        mPosition = position + length;
+        return true;
+    }
+
+    /**
+     * Move forward to the next data object with the given tag.
+     *
+     * @return false if there is none
+     */
+    public boolean find(int tag) {
+        while (next()) {
+            if (mTag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the tag of the current data object, with all of its bytes, e.g. 0x9F27. */
+    public int getTag() {
+        return mTag;
+    }
+
+    /** Returns true if the current data object is constructed, i.e. holds other data objects. */
+    public boolean isConstructed() {
+        int firstByte = mTag;
+        while (firstByte > 0xFF) {
+            firstByte >>>= 8;
+        }
+        return (firstByte & 0x20) != 0;
+    }
+
+    /** Returns the buffer the reader is iterating over. */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getValueOffset() {
+        return mValueOffset;
+    }
+
+    public int getValueLength() {
+        return mValueLength;
+    }
+
+    /**
+     * Returns the value of the current data object as an unsigned big-endian integer.
+     *
+     * @throws IllegalArgumentException if the value is longer than 4 bytes
+     */
+    public int getValueInt() {
+        if (mValueLength > 4) {
+            throw new IllegalArgumentException("Value of tag " + Integer.toHexString(mTag)
+                    + " is not an integer");
+        }
+        int value = 0;
+        for (int i = 0; i < mValueLength; i++) {
+            value = (value << 8) | (mBuffer[mValueOffset + i] & 0xFF);
+        }
+        return value;
+    }
+}
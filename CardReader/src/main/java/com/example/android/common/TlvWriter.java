@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+/**
+ * Writes BER-TLV data objects, as used by ISO 7816-4, straight into a caller supplied frame.
+ *
+ * <p>Size the frame with {@link #getEncodedLength} so that a response, status word included,
+ * is built in a single buffer without intermediate copies. Tags are given with all of their
+ * bytes, e.g. 0x9F27, and lengths are written in the shortest form.
+ *
+ * <p>This class is shared between the card emulation and card reader samples. It is not
+ * thread-safe.
+ */
+public class TlvWriter {
+    private byte[] mFrame;
+    private int mPosition;
+
+    public TlvWriter(byte[] frame, int offset) {
+        reset(frame, offset);
+    }
+
+    /** Start writing into another frame. */
+    public void reset(byte[] frame, int offset) {
+        mFrame = frame;
+        mPosition = offset;
+    }
+
+    /** Returns the offset just past the last data object written. */
+    public int getOffset() {
+        return mPosition;
+    }
+
+    /** Returns the length of a data object with the given tag and value length. */
+    public static int getEncodedLength(int tag, int valueLength) {
+        return tagLength(tag) + lengthLength(valueLength) + valueLength;
+    }
+
+    /** Write a data object whose value is {@code length} bytes of {@code value}. */
+    public TlvWriter put(int tag, byte[] value, int offset, int length) {
+        putHeader(tag, length);
+        System.arraycopy(value, offset, mFrame, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    public TlvWriter put(int tag, byte[] value) {
+        return put(tag, value, 0, value.length);
+    }
+
+    /** Write a data object with a one byte value. */
+    public TlvWriter putByte(int tag, int value) {
+        putHeader(tag, 1);
+        mFrame[mPosition++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Write the tag and length of a data object, leaving the caller to write its value, e.g. the
+     * data objects of a constructed value.
+     */
+    public TlvWriter putHeader(int tag, int length) {
+        for (int shift = (tagLength(tag) - 1) * 8; shift >= 0; shift -= 8) {
+            mFrame[mPosition++] = (byte) (tag >> shift);
+        }
+        int lengthBytes = lengthLength(length) - 1;
+        if (lengthBytes > 0) {
+            mFrame[mPosition++] = (byte) (0x80 | lengthBytes);
+        }
+        for (int shift = (lengthBytes - 1) * 8; shift >= 0; shift -= 8) {
+            mFrame[mPosition++] = (byte) (length >> shift);
+        }
+        if (lengthBytes == 0) {
+            mFrame[mPosition++] = (byte) length;
+        }
+        return this;
+    }
+
+    private static int tagLength(int tag) {
+        return tag > 0xFFFF ? 3 : tag > 0xFF ? 2 : 1;
+    }
+
+    private static int lengthLength(int length) {
+        return length < 0x80 ? 1 : length <= 0xFF ? 2 : length <= 0xFFFF ? 3 : 4;
+    }
+}
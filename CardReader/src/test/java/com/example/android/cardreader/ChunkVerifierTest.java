@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import com.example.android.common.MerkleTree;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ChunkVerifier}, driven the way the reader drives it: plan a window of chunks,
+ * take the proofs the card would send for them, then verify the window and fetch whatever failed
+ * again with its whole proof.
+ */
+public class ChunkVerifierTest {
+    private static final int CHUNK_SIZE = 8;
+
+    @Test
+    public void verifiesChunksInOrderWithShortProofs() throws IOException {
+        for (int chunks = 1; chunks <= 33; chunks++) {
+            byte[] data = content(chunks * CHUNK_SIZE - 3);
+            MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+            ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                    null);
+            int proofBytes = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                proofBytes += supplyProof(verifier, tree, chunk, verifier.planProof(chunk));
+                assertEquals(ChunkVerifier.VALID, verify(verifier, chunk, chunk(data, chunk)));
+            }
+            // Each level of the tree is sent at most once per pair of nodes.
+            assertTrue(proofBytes <= chunks * MerkleTree.HASH_LENGTH);
+        }
+    }
+
+    @Test
+    public void verifiesWindowOnPool() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            byte[] data = content(40 * CHUNK_SIZE + 5);
+            MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+            ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                    pool);
+            int window = 8;
+            int chunkCount = 41;
+            for (int first = 0; first < chunkCount; first += window) {
+                int count = Math.min(window, chunkCount - first);
+                int[] chunks = new int[count];
+                byte[][] frames = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    chunks[i] = first + i;
+                    supplyProof(verifier, tree, chunks[i], verifier.planProof(chunks[i]));
+                    frames[i] = chunk(data, chunks[i]);
+                }
+                int[] results = new int[count];
+                assertEquals(0, verifier.verify(chunks, frames, count, results));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void lastChunkIsShorter() {
+        ChunkVerifier verifier = new ChunkVerifier(new byte[MerkleTree.HASH_LENGTH],
+                2 * CHUNK_SIZE + 3, CHUNK_SIZE, null);
+        assertEquals(CHUNK_SIZE, verifier.getChunkLength(0));
+        assertEquals(3, verifier.getChunkLength(2));
+        assertEquals(3, verifier.getLevelCount());
+    }
+
+    @Test
+    public void ignoresBytesPastTheChunk() throws IOException {
+        // Frames still carry their CRC after the chunk.
+        byte[] data = content(2 * CHUNK_SIZE);
+        MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+        ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                null);
+        supplyProof(verifier, tree, 0, verifier.planProof(0));
+        byte[] frame = Arrays.copyOf(chunk(data, 0), CHUNK_SIZE + 4);
+        Arrays.fill(frame, CHUNK_SIZE, frame.length, (byte) 0x5A);
+        assertEquals(ChunkVerifier.VALID, verify(verifier, 0, frame));
+    }
+
+    @Test
+    public void rejectsCorruptChunkUntilFetchedAgain() throws IOException {
+        byte[] data = content(6 * CHUNK_SIZE);
+        MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+        ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                null);
+        int[] chunks = {0, 1, 2, 3};
+        byte[][] frames = new byte[4][];
+        for (int i = 0; i < chunks.length; i++) {
+            supplyProof(verifier, tree, chunks[i], verifier.planProof(chunks[i]));
+            frames[i] = chunk(data, chunks[i]);
+        }
+        frames[2][1] ^= 0x10;
+        int[] results = new int[4];
+
+        assertEquals(2, verifier.verify(chunks, frames, 4, results));
+        // Chunk 3 was planned to climb through the hash of chunk 2, so it can't be checked.
+        assertArrayEquals(new int[]{ChunkVerifier.VALID, ChunkVerifier.VALID,
+                ChunkVerifier.CORRUPT, ChunkVerifier.INCOMPLETE}, results);
+        // Fetched again with their whole proofs, both verify.
+        int[] retry = {2, 3};
+        byte[][] retryFrames = {chunk(data, 2), chunk(data, 3)};
+        for (int chunk : retry) {
+            supplyProof(verifier, tree, chunk, verifier.getLevelCount() - 1);
+        }
+        assertEquals(0, verifier.verify(retry, retryFrames, 2, results));
+        // The rest carries on with short proofs.
+        for (int chunk = 4; chunk < 6; chunk++) {
+            supplyProof(verifier, tree, chunk, verifier.planProof(chunk));
+            assertEquals(ChunkVerifier.VALID, verify(verifier, chunk, chunk(data, chunk)));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptProofAndChunksRelyingOnIt() throws IOException {
+        byte[] data = content(4 * CHUNK_SIZE);
+        MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+        ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                null);
+        int[] chunks = {0, 1, 2, 3};
+        byte[][] frames = new byte[4][];
+        int[] levels = new int[4];
+        for (int i = 0; i < chunks.length; i++) {
+            levels[i] = verifier.planProof(chunks[i]);
+            frames[i] = chunk(data, chunks[i]);
+        }
+        // Chunks 1 and 3 rely on the hashes of chunks 0 and 2, and chunk 2 on chunk 0's proof.
+        assertArrayEquals(new int[]{2, 0, 1, 0}, levels);
+        byte[] proof = proof(tree, 0, levels[0]);
+        proof[proof.length - 1] ^= 1;
+        verifier.addProof(0, levels[0], proof, 0);
+        supplyProof(verifier, tree, 2, levels[2]);
+        int[] results = new int[4];
+
+        assertEquals(4, verifier.verify(chunks, frames, 4, results));
+        assertEquals(ChunkVerifier.CORRUPT, results[0]);
+        for (int i = 1; i < 4; i++) {
+            assertEquals(ChunkVerifier.INCOMPLETE, results[i]);
+        }
+        // Fetch every chunk that failed again with its whole proof.
+        for (int chunk = 0; chunk < 4; chunk++) {
+            supplyProof(verifier, tree, chunk, verifier.getLevelCount() - 1);
+        }
+        assertEquals(0, verifier.verify(chunks, frames, 4, results));
+    }
+
+    @Test
+    public void rejectsChunkFromOtherContent() throws IOException {
+        byte[] data = content(3 * CHUNK_SIZE);
+        byte[] other = data.clone();
+        other[CHUNK_SIZE] ^= 1;
+        MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+        MerkleTree otherTree = new MerkleTree(other, CHUNK_SIZE);
+        ChunkVerifier verifier = new ChunkVerifier(tree.getRoot(), data.length, CHUNK_SIZE,
+                null);
+        // A consistent chunk and proof from different content must not pass.
+        supplyProof(verifier, otherTree, 1, verifier.planProof(1));
+        assertEquals(ChunkVerifier.CORRUPT, verify(verifier, 1, chunk(other, 1)));
+    }
+
+    private static int supplyProof(ChunkVerifier verifier, MerkleTree tree, int chunk,
+                                   int levels) {
+        if (levels == 0) {
+            return 0;
+        }
+        byte[] proof = proof(tree, chunk, levels);
+        assertEquals(verifier.getProofLength(chunk, levels), proof.length);
+        verifier.addProof(chunk, levels, proof, 0);
+        return proof.length;
+    }
+
+    private static byte[] proof(MerkleTree tree, int chunk, int levels) {
+        byte[] proof = new byte[levels * MerkleTree.HASH_LENGTH];
+        return Arrays.copyOf(proof, tree.writeProof(chunk, levels, proof, 0));
+    }
+
+    private static int verify(ChunkVerifier verifier, int chunk, byte[] frame)
+            throws IOException {
+        int[] results = new int[1];
+        verifier.verify(new int[]{chunk}, new byte[][]{frame}, 1, results);
+        return results[0];
+    }
+
+    private static byte[] chunk(byte[] data, int chunk) {
+        int offset = chunk * CHUNK_SIZE;
+        return Arrays.copyOfRange(data, offset, Math.min(data.length, offset + CHUNK_SIZE));
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 17 + 3);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.cardreader;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RecentTags}.
+ */
+public class RecentTagsTest {
+    private static final long TTL_MS = 60 * 1000;
+
+    @Test
+    public void remembersTagUntilRemoved() {
+        RecentTags tags = new RecentTags(16, TTL_MS);
+        assertTrue(tags.add(uid(1)));
+        assertFalse(tags.add(uid(1)));
+        assertTrue(tags.add(uid(2)));
+        tags.remove(uid(1));
+        assertTrue(tags.add(uid(1)));
+        assertFalse(tags.add(uid(2)));
+    }
+
+    @Test
+    public void alwaysLetsThroughTagsWithoutUid() {
+        RecentTags tags = new RecentTags(16, TTL_MS);
+        assertTrue(tags.add(null));
+        assertTrue(tags.add(null));
+        assertTrue(tags.add(new byte[0]));
+        assertTrue(tags.add(new byte[0]));
+        tags.touch(null);
+        tags.remove(new byte[0]);
+    }
+
+    @Test
+    public void keepsOwnCopyOfUid() {
+        RecentTags tags = new RecentTags(16, TTL_MS);
+        byte[] uid = uid(1);
+        assertTrue(tags.add(uid));
+        uid[0] ^= 1;
+        assertFalse(tags.add(uid(1)));
+    }
+
+    @Test
+    public void forgetsTagAfterTtl() throws InterruptedException {
+        RecentTags tags = new RecentTags(16, 0);
+        assertTrue(tags.add(uid(1)));
+        Thread.sleep(1);
+        assertTrue(tags.add(uid(1)));
+        // The new time to live only applies to tags added from now on.
+        tags.setTtl(TTL_MS);
+        assertTrue(tags.add(uid(2)));
+        assertFalse(tags.add(uid(2)));
+    }
+
+    @Test
+    public void touchRemembersTag() throws InterruptedException {
+        RecentTags tags = new RecentTags(16, 0);
+        assertTrue(tags.add(uid(1)));
+        tags.setTtl(TTL_MS);
+        Thread.sleep(1);
+        tags.touch(uid(1));
+        assertFalse(tags.add(uid(1)));
+    }
+
+    @Test
+    public void keepsClaimPastTtlUntilReleased() throws InterruptedException {
+        RecentTags tags = new RecentTags(16, 0);
+        assertTrue(tags.claim(uid(1)));
+        Thread.sleep(1);
+        // However long the session takes, the tag is not let through again.
+        assertFalse(tags.add(uid(1)));
+        assertFalse(tags.claim(uid(1)));
+        // Once the session ends, the time to live applies from then on.
+        tags.touch(uid(1));
+        Thread.sleep(1);
+        assertTrue(tags.claim(uid(1)));
+        tags.remove(uid(1));
+        assertTrue(tags.add(uid(1)));
+    }
+
+    @Test
+    public void pushesOutTagSharingItsSlot() {
+        // A single slot holds only the last tag added.
+        RecentTags tags = new RecentTags(1, TTL_MS);
+        assertTrue(tags.add(uid(1)));
+        assertTrue(tags.add(uid(2)));
+        assertTrue(tags.add(uid(1)));
+        // Removing a tag that was pushed out leaves the slot to the newer one.
+        tags.remove(uid(2));
+        assertFalse(tags.add(uid(1)));
+    }
+
+    @Test
+    public void letsOneOfConcurrentDiscoveriesThrough() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            final RecentTags tags = new RecentTags(16, TTL_MS);
+            final AtomicInteger added = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[8];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (tags.add(uid(1))) {
+                            added.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, added.get());
+        }
+    }
+
+    private static byte[] uid(int n) {
+        return new byte[]{0x04, (byte) (n >> 8), (byte) n, 0x11, 0x22, 0x33, 0x44};
+    }
+}
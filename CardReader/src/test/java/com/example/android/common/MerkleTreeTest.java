@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link MerkleTree}, checking roots and proofs against hashes computed by hand.
+ */
+public class MerkleTreeTest {
+    private static final int CHUNK_SIZE = 10;
+    private static final int H = MerkleTree.HASH_LENGTH;
+
+    private final MessageDigest mDigest = MerkleTree.newDigest();
+
+    @Test
+    public void countsLevelsAndNodes() {
+        assertEquals(1, MerkleTree.getLevelCount(0));
+        assertEquals(1, MerkleTree.getLevelCount(1));
+        assertEquals(2, MerkleTree.getLevelCount(2));
+        assertEquals(3, MerkleTree.getLevelCount(3));
+        assertEquals(3, MerkleTree.getLevelCount(4));
+        assertEquals(4, MerkleTree.getLevelCount(5));
+        assertEquals(5, MerkleTree.getLevelSize(5, 0));
+        assertEquals(3, MerkleTree.getLevelSize(5, 1));
+        assertEquals(2, MerkleTree.getLevelSize(5, 2));
+        assertEquals(1, MerkleTree.getLevelSize(5, 3));
+    }
+
+    @Test
+    public void rootOfSingleChunkIsItsLeafHash() {
+        byte[] data = content(7);
+        assertArrayEquals(leaf(data, 0), new MerkleTree(data, CHUNK_SIZE).getRoot());
+    }
+
+    @Test
+    public void emptyContentIsOneEmptyChunk() {
+        byte[] data = new byte[0];
+        assertArrayEquals(leaf(data, 0), new MerkleTree(data, CHUNK_SIZE).getRoot());
+    }
+
+    @Test
+    public void hashesPairsAndCarriesOddNodeUp() {
+        byte[] data = content(3 * CHUNK_SIZE - 4);
+        byte[] expected = node(node(leaf(data, 0), leaf(data, 1)), leaf(data, 2));
+        assertArrayEquals(expected, new MerkleTree(data, CHUNK_SIZE).getRoot());
+    }
+
+    @Test
+    public void separatesLeavesFromNodes() {
+        // A leaf holding two hashes must not hash like the node over them.
+        byte[] data = content(2 * CHUNK_SIZE);
+        byte[] pair = new byte[2 * H];
+        System.arraycopy(leaf(data, 0), 0, pair, 0, H);
+        System.arraycopy(leaf(data, 1), 0, pair, H, H);
+        assertFalse(Arrays.equals(new MerkleTree(data, CHUNK_SIZE).getRoot(),
+                new MerkleTree(pair, pair.length).getRoot()));
+    }
+
+    @Test
+    public void rootChangesWithAnyByte() {
+        byte[] data = content(5 * CHUNK_SIZE + 3);
+        byte[] root = new MerkleTree(data, CHUNK_SIZE).getRoot();
+        for (int i = 0; i < data.length; i++) {
+            data[i] ^= 1;
+            assertFalse(Arrays.equals(root, new MerkleTree(data, CHUNK_SIZE).getRoot()));
+            data[i] ^= 1;
+        }
+    }
+
+    @Test
+    public void everyProofLeadsToTheRoot() {
+        for (int chunks = 1; chunks <= 17; chunks++) {
+            byte[] data = content(chunks * CHUNK_SIZE - 1);
+            MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+            int levels = MerkleTree.getLevelCount(chunks) - 1;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                byte[] proof = new byte[levels * H];
+                int length = tree.writeProof(chunk, levels, proof, 0);
+                assertEquals(MerkleTree.getProofLength(chunks, chunk, levels), length);
+                assertArrayEquals("Chunk " + chunk + " of " + chunks, tree.getRoot(),
+                        climb(chunks, chunk, leaf(data, chunk), proof, levels));
+            }
+        }
+    }
+
+    @Test
+    public void partialProofStopsAtRequestedLevel() {
+        byte[] data = content(8 * CHUNK_SIZE);
+        MerkleTree tree = new MerkleTree(data, CHUNK_SIZE);
+        byte[] proof = new byte[3 * H];
+        assertEquals(H, tree.writeProof(5, 1, proof, 0));
+        assertArrayEquals(leaf(data, 4), Arrays.copyOf(proof, H));
+        assertEquals(2 * H, MerkleTree.getProofLength(8, 5, 2));
+        // Asking for more levels than the tree has gives the whole proof.
+        assertEquals(3 * H, tree.writeProof(5, 10, proof, 0));
+    }
+
+    /**
+     * Hash a leaf up through its proof, the way a reader holding only the root would.
+     */
+    private byte[] climb(int chunks, int chunk, byte[] hash, byte[] proof, int levels) {
+        int offset = 0;
+        int index = chunk;
+        for (int level = 0; level < levels; level++, index >>= 1) {
+            int sibling = index ^ 1;
+            if (sibling >= MerkleTree.getLevelSize(chunks, level)) {
+                continue;
+            }
+            byte[] other = Arrays.copyOfRange(proof, offset, offset + H);
+            offset += H;
+            hash = (index & 1) == 0 ? node(hash, other) : node(other, hash);
+        }
+        return hash;
+    }
+
+    private byte[] leaf(byte[] data, int chunk) {
+        int offset = chunk * CHUNK_SIZE;
+        int length = Math.max(0, Math.min(CHUNK_SIZE, data.length - offset));
+        byte[] hash = new byte[H];
+        MerkleTree.hashLeaf(mDigest, data, offset, length, hash, 0);
+        return hash;
+    }
+
+    private byte[] node(byte[] left, byte[] right) {
+        byte[] hash = new byte[H];
+        MerkleTree.hashNode(mDigest, left, 0, right, 0, hash, 0);
+        return hash;
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
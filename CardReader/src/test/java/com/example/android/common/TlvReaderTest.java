@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TlvReader} and {@link TlvWriter}, on hand-encoded BER-TLV as well as on
+ * what the writer produces.
+ */
+public class TlvReaderTest {
+
+    @Test
+    public void readsPrimitiveObjects() {
+        byte[] data = bytes(0x80, 0x01, 0x00, 0x81, 0x03, 'a', 'b', 'c');
+        TlvReader reader = new TlvReader(data, 0, data.length);
+
+        assertTrue(reader.next());
+        assertEquals(0x80, reader.getTag());
+        assertFalse(reader.isConstructed());
+        assertEquals(2, reader.getValueOffset());
+        assertEquals(1, reader.getValueLength());
+        assertEquals(0, reader.getValueInt());
+        assertTrue(reader.next());
+        assertEquals(0x81, reader.getTag());
+        assertEquals(5, reader.getValueOffset());
+        assertEquals(3, reader.getValueLength());
+        assertSame(data, reader.getBuffer());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsMultiByteTags() {
+        byte[] data = bytes(0x9F, 0x27, 0x01, 0x42, 0x7F, 0x81, 0x01, 0x00);
+        TlvReader reader = new TlvReader(data, 0, data.length);
+
+        assertTrue(reader.next());
+        assertEquals(0x9F27, reader.getTag());
+        assertEquals(0x42, reader.getValueInt());
+        assertTrue(reader.next());
+        assertEquals(0x7F8101, reader.getTag());
+        assertTrue(reader.isConstructed());
+        assertEquals(0, reader.getValueLength());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsLongLengths() {
+        byte[] data = new byte[3 + 200 + 4 + 300];
+        data[0] = (byte) 0x81;
+        data[1] = (byte) 0x81;
+        data[2] = (byte) 200;
+        data[203] = (byte) 0x82;
+        data[204] = (byte) 0x82;
+        data[205] = 0x01;
+        data[206] = 0x2C;
+        TlvReader reader = new TlvReader(data, 0, data.length);
+
+        assertTrue(reader.next());
+        assertEquals(3, reader.getValueOffset());
+        assertEquals(200, reader.getValueLength());
+        assertTrue(reader.next());
+        assertEquals(0x82, reader.getTag());
+        assertEquals(207, reader.getValueOffset());
+        assertEquals(300, reader.getValueLength());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void skipsPadding() {
+        byte[] data = bytes(0x00, 0xFF, 0x80, 0x01, 0x07, 0xFF, 0x00, 0x00);
+        TlvReader reader = new TlvReader(data, 0, data.length);
+
+        assertTrue(reader.next());
+        assertEquals(0x80, reader.getTag());
+        assertEquals(7, reader.getValueInt());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsNestedObjectsWithSecondReader() {
+        byte[] data = bytes(0x70, 0x06, 0x80, 0x01, 0x05, 0x81, 0x01, 0x06, 0x82, 0x01, 0x07);
+        TlvReader outer = new TlvReader(data, 0, data.length);
+        TlvReader inner = new TlvReader();
+
+        assertTrue(outer.next());
+        assertTrue(outer.isConstructed());
+        inner.reset(outer.getBuffer(), outer.getValueOffset(), outer.getValueLength());
+        assertTrue(inner.find(0x81));
+        assertEquals(6, inner.getValueInt());
+        assertFalse(inner.next());
+        // The inner reader stops at the end of the constructed value.
+        assertTrue(outer.next());
+        assertEquals(0x82, outer.getTag());
+        assertFalse(outer.next());
+    }
+
+    @Test
+    public void findSkipsOtherTags() {
+        byte[] data = bytes(0x80, 0x01, 0x01, 0x81, 0x00, 0x82, 0x02, 0x12, 0x34);
+        TlvReader reader = new TlvReader(data, 0, data.length);
+
+        assertTrue(reader.find(0x82));
+        assertEquals(0x1234, reader.getValueInt());
+        reader.reset(data, 0, data.length);
+        assertFalse(reader.find(0x83));
+    }
+
+    @Test
+    public void readsWithinWindow() {
+        // Bytes outside the window, before or after it, must not be seen.
+        byte[] data = bytes(0xAA, 0x80, 0x01, 0x01, 0x81, 0x01, 0x02);
+        TlvReader reader = new TlvReader(data, 1, 3);
+
+        assertTrue(reader.next());
+        assertEquals(1, reader.getValueInt());
+        assertFalse(reader.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIntegerLongerThanFourBytes() {
+        byte[] data = bytes(0x80, 0x05, 1, 2, 3, 4, 5);
+        TlvReader reader = new TlvReader(data, 0, data.length);
+        reader.next();
+        reader.getValueInt();
+    }
+
+    @Test
+    public void rejectsMalformedObjects() {
+        int[][] malformed = {
+                // Tag without a length.
+                {0x80},
+                // Tag of more than three bytes.
+                {0x9F, 0x81, 0x81, 0x01, 0x00},
+                // Multi-byte tag cut short.
+                {0x9F, 0x81},
+                // Indefinite length.
+                {0x80, 0x80, 0x00, 0x00},
+                // Length of more than three bytes.
+                {0x80, 0x84, 0x00, 0x00, 0x00, 0x01, 0x00},
+                // Length bytes cut short.
+                {0x80, 0x82, 0x01},
+                // Value overrunning the buffer.
+                {0x80, 0x03, 0x01, 0x02},
+                {0x80, 0x83, 0x7F, 0xFF, 0xFF, 0x00},
+        };
+        for (int[] object : malformed) {
+            byte[] data = bytes(object);
+            TlvReader reader = new TlvReader(data, 0, data.length);
+            try {
+                reader.next();
+                fail("Accepted " + Arrays.toString(object));
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void readsWhatWriterWrites() {
+        int[] tags = {0x80, 0x9F27, 0xDF8101, 0x81, 0x82, 0x83};
+        int[] lengths = {1, 0x7F, 0x80, 0xFF, 0x100, 0x1234};
+        int total = 0;
+        for (int i = 0; i < tags.length; i++) {
+            total += TlvWriter.getEncodedLength(tags[i], lengths[i]);
+        }
+        byte[] frame = new byte[total + 2];
+        TlvWriter writer = new TlvWriter(frame, 1);
+        for (int i = 0; i < tags.length; i++) {
+            byte[] value = new byte[lengths[i]];
+            Arrays.fill(value, (byte) i);
+            writer.put(tags[i], value);
+        }
+        assertEquals(1 + total, writer.getOffset());
+
+        TlvReader reader = new TlvReader(frame, 1, total);
+        for (int i = 0; i < tags.length; i++) {
+            assertTrue(reader.next());
+            assertEquals(tags[i], reader.getTag());
+            assertEquals(lengths[i], reader.getValueLength());
+            for (int j = 0; j < lengths[i]; j++) {
+                assertEquals(i, frame[reader.getValueOffset() + j]);
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void readsWriterConstructedObject() {
+        int inner = TlvWriter.getEncodedLength(0x80, 1) + TlvWriter.getEncodedLength(0x81, 2);
+        byte[] frame = new byte[TlvWriter.getEncodedLength(0x70, inner)];
+        new TlvWriter(frame, 0)
+                .putHeader(0x70, inner)
+                .putByte(0x80, 0x7F)
+                .put(0x81, bytes(0xCA, 0xFE));
+        TlvReader reader = new TlvReader(frame, 0, frame.length);
+
+        assertTrue(reader.next());
+        assertEquals(0x70, reader.getTag());
+        TlvReader nested = new TlvReader(frame, reader.getValueOffset(), reader.getValueLength());
+        assertTrue(nested.find(0x80));
+        assertEquals(0x7F, nested.getValueInt());
+        assertTrue(nested.next());
+        assertEquals(0xCAFE, nested.getValueInt());
+        assertFalse(nested.next());
+        assertFalse(reader.next());
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
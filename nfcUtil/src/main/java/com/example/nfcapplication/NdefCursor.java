@@ -0,0 +1,333 @@
+package com.example.nfcapplication;
+
+import android.nfc.FormatException;
+import android.nfc.NdefRecord;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * 直接在NDEF消息的原始字节上逐条遍历记录，不建NdefRecord，也不复制负载
+ * 支持短记录（SR）和长记录、带ID的记录（IL），以及分块记录（CF）：分块记录的各块合成一条记录，
+ * 负载是原始字节里的几段，用getSegmentOffset()/getSegmentLength()访问
+ * 文本和URI解码复用本对象的CharsetDecoder和CharBuffer；一个对象只能在一个线程里用，
+ * 可以用reset()换一条消息接着用
+ */
+public class NdefCursor {
+    //记录头的标志位
+    private static final int FLAG_MB = 0x80;
+    private static final int FLAG_ME = 0x40;
+    private static final int FLAG_CF = 0x20;
+    private static final int FLAG_SR = 0x10;
+    private static final int FLAG_IL = 0x08;
+    private static final int TNF_MASK = 0x07;
+    //well-known记录类型，同NdefRecord.RTD_TEXT和RTD_URI
+    private static final byte[] TYPE_TEXT = {'T'};
+    private static final byte[] TYPE_URI = {'U'};
+    //文本记录状态字节：最高位为1是UTF-16，低6位是语言代码长度
+    private static final int TEXT_UTF16 = 0x80;
+    private static final int TEXT_LANGUAGE_LENGTH_MASK = 0x3f;
+    //只查一次，不用每次按名字找
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    //URI记录第一个字节对应的前缀，见NFC Forum URI RTD
+    private static final String[] URI_PREFIXES = {
+            "", "http://www.", "https://www.", "http://", "https://", "tel:", "mailto:",
+            "ftp://anonymous:anonymous@", "ftp://ftp.", "ftps://", "sftp://", "smb://", "nfs://",
+            "ftp://", "dav://", "news:", "telnet://", "imap:", "rtsp://", "urn:", "pop:", "sip:",
+            "sips:", "tftp:", "btspp://", "btl2cap://", "btgoep://", "tcpobex://",
+            "irdaobex://", "file://", "urn:epc:id:", "urn:epc:tag:", "urn:epc:pat:",
+            "urn:epc:raw:", "urn:epc:", "urn:nfc:"};
+
+    private byte[] mData;
+    private int mEnd;
+    private int mNext;
+    //已读的记录数，读到ME后为-1
+    private int mRecords;
+    //当前记录
+    private int mTnf;
+    private int mTypeOffset;
+    private int mTypeLength;
+    private int mIdOffset;
+    private int mIdLength;
+    private int mPayloadLength;
+    //负载各段的偏移和长度交替存放，非分块记录只有一段
+    private int[] mSegments = new int[8];
+    private int mSegmentCount;
+
+    private CharsetDecoder mUtf8;
+    private CharsetDecoder mUtf16;
+    private CharBuffer mChars = CharBuffer.allocate(64);
+
+    public NdefCursor(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * 换一条消息，从第一条记录前开始
+     */
+    public void reset(byte[] data, int offset, int length) {
+        mData = data;
+        mNext = offset;
+        mEnd = offset + length;
+        mRecords = 0;
+        mSegmentCount = 0;
+        mPayloadLength = 0;
+    }
+
+    /**
+     * 移到下一条记录
+     *
+     * @return 读完ME标志的记录后返回false
+     */
+    public boolean next() throws FormatException {
+        if (mRecords < 0) {
+            return false;
+        }
+        mSegmentCount = 0;
+        mPayloadLength = 0;
+        int header = readChunk();
+        if (((header & FLAG_MB) != 0) != (mRecords == 0)) {
+            throw new FormatException("MB标志不对");
+        }
+        mTnf = header & TNF_MASK;
+        if (mTnf == NdefRecord.TNF_UNCHANGED) {
+            throw new FormatException("记录的第一块不能是TNF_UNCHANGED");
+        }
+        int typeOffset = mTypeOffset;
+        int typeLength = mTypeLength;
+        int idOffset = mIdOffset;
+        int idLength = mIdLength;
+        //分块记录的后续块：TNF为UNCHANGED，没有类型和ID，负载接在前面的块后面
+        while ((header & FLAG_CF) != 0) {
+            if ((header & FLAG_ME) != 0) {
+                throw new FormatException("分块记录没有结束就遇到ME");
+            }
+            header = readChunk();
+            if ((header & TNF_MASK) != NdefRecord.TNF_UNCHANGED || (header & FLAG_MB) != 0
+                    || mTypeLength != 0 || mIdLength != 0) {
+                throw new FormatException("分块记录的后续块格式不对");
+            }
+        }
+        mTypeOffset = typeOffset;
+        mTypeLength = typeLength;
+        mIdOffset = idOffset;
+        mIdLength = idLength;
+        if (mTnf == NdefRecord.TNF_EMPTY && (mTypeLength != 0 || mIdLength != 0
+                || mPayloadLength != 0)) {
+            throw new FormatException("TNF_EMPTY记录不能有类型、ID和负载");
+        }
+        mRecords = (header & FLAG_ME) != 0 ? -1 : mRecords + 1;
+        return true;
+    }
+
+    /**
+     * 读一块：头、类型长度、负载长度（SR时1字节，否则4字节）、ID长度（IL时）、类型、ID、负载，
+     * 负载作为一段记下
+     */
+    private int readChunk() throws FormatException {
+        int pos = mNext;
+        int lengthFields = 2;
+        if (pos < mEnd) {
+            int flags = mData[pos] & 0xff;
+            lengthFields += ((flags & FLAG_SR) != 0 ? 1 : 4) + ((flags & FLAG_IL) != 0 ? 1 : 0);
+        }
+        if (pos + lengthFields > mEnd) {
+            throw new FormatException("记录头不完整");
+        }
+        int header = mData[pos++] & 0xff;
+        mTypeLength = mData[pos++] & 0xff;
+        long payloadLength;
+        if ((header & FLAG_SR) != 0) {
+            payloadLength = mData[pos++] & 0xff;
+        } else {
+            payloadLength = ((mData[pos] & 0xffL) << 24) | ((mData[pos + 1] & 0xff) << 16)
+                    | ((mData[pos + 2] & 0xff) << 8) | (mData[pos + 3] & 0xff);
+            pos += 4;
+        }
+        mIdLength = (header & FLAG_IL) != 0 ? mData[pos++] & 0xff : 0;
+        mTypeOffset = pos;
+        mIdOffset = pos + mTypeLength;
+        int payloadOffset = mIdOffset + mIdLength;
+        if (payloadOffset + payloadLength > mEnd) {
+            throw new FormatException("记录超出消息长度");
+        }
+        addSegment(payloadOffset, (int) payloadLength);
+        mNext = payloadOffset + (int) payloadLength;
+        return header;
+    }
+
+    private void addSegment(int offset, int length) {
+        if (mSegmentCount * 2 == mSegments.length) {
+            mSegments = Arrays.copyOf(mSegments, mSegments.length * 2);
+        }
+        mSegments[mSegmentCount * 2] = offset;
+        mSegments[mSegmentCount * 2 + 1] = length;
+        mSegmentCount++;
+        mPayloadLength += length;
+    }
+
+    /**
+     * 消息的原始字节，各偏移都相对于它
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getTnf() {
+        return mTnf;
+    }
+
+    public int getTypeOffset() {
+        return mTypeOffset;
+    }
+
+    public int getTypeLength() {
+        return mTypeLength;
+    }
+
+    /**
+     * 当前记录的类型是否为type，不用复制类型
+     */
+    public boolean isType(int tnf, byte[] type) {
+        if (mTnf != tnf || mTypeLength != type.length) {
+            return false;
+        }
+        for (int i = 0; i < type.length; i++) {
+            if (mData[mTypeOffset + i] != type[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getIdOffset() {
+        return mIdOffset;
+    }
+
+    public int getIdLength() {
+        return mIdLength;
+    }
+
+    /**
+     * 负载总长度，分块记录为各段之和
+     */
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * 负载的段数，只有分块记录多于1段
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    public int getSegmentOffset(int segment) {
+        return mSegments[segment * 2];
+    }
+
+    public int getSegmentLength(int segment) {
+        return mSegments[segment * 2 + 1];
+    }
+
+    /**
+     * 负载第index个字节，分块记录跨段也可以用
+     */
+    public int getPayloadByte(int index) {
+        for (int i = 0; i < mSegmentCount; i++) {
+            int length = mSegments[i * 2 + 1];
+            if (index < length) {
+                return mData[mSegments[i * 2] + index] & 0xff;
+            }
+            index -= length;
+        }
+        throw new IndexOutOfBoundsException("负载只有" + mPayloadLength + "字节");
+    }
+
+    /**
+     * 当前记录是文本记录时返回文本，否则返回null
+     */
+    public String decodeText() throws FormatException {
+        if (!isType(NdefRecord.TNF_WELL_KNOWN, TYPE_TEXT) || mPayloadLength == 0) {
+            return null;
+        }
+        int status = getPayloadByte(0);
+        int skip = 1 + (status & TEXT_LANGUAGE_LENGTH_MASK);
+        if (skip > mPayloadLength) {
+            throw new FormatException("文本记录语言代码超出负载");
+        }
+        if ((status & TEXT_UTF16) != 0) {
+            if (mUtf16 == null) {
+                mUtf16 = newDecoder(UTF_16);
+            }
+            return decode(mUtf16, skip, "");
+        }
+        if (mUtf8 == null) {
+            mUtf8 = newDecoder(UTF_8);
+        }
+        return decode(mUtf8, skip, "");
+    }
+
+    /**
+     * 当前记录是URI记录时返回完整的URI，否则返回null
+     */
+    public String decodeUri() throws FormatException {
+        if (!isType(NdefRecord.TNF_WELL_KNOWN, TYPE_URI) || mPayloadLength == 0) {
+            return null;
+        }
+        int prefix = getPayloadByte(0);
+        if (mUtf8 == null) {
+            mUtf8 = newDecoder(UTF_8);
+        }
+        return decode(mUtf8, 1, prefix < URI_PREFIXES.length ? URI_PREFIXES[prefix] : "");
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * 跳过负载的前skip个字节，把其余各段依次送进decoder，结果前面加上prefix
+     */
+    private String decode(CharsetDecoder decoder, int skip, String prefix) {
+        decoder.reset();
+        //UTF-8最多每字节一个字符，UTF-16更少
+        int maxChars = prefix.length() + mPayloadLength - skip;
+        if (mChars.capacity() < maxChars) {
+            mChars = CharBuffer.allocate(Math.max(maxChars, mChars.capacity() * 2));
+        }
+        mChars.clear();
+        mChars.put(prefix);
+        //分块时多字节字符可能被切开，剩下的字节留到下一段
+        ByteBuffer carry = null;
+        for (int i = 0; i < mSegmentCount; i++) {
+            int offset = mSegments[i * 2];
+            int length = mSegments[i * 2 + 1];
+            int cut = Math.min(skip, length);
+            skip -= cut;
+            ByteBuffer in = ByteBuffer.wrap(mData, offset + cut, length - cut);
+            if (carry != null && carry.hasRemaining()) {
+                ByteBuffer joined = ByteBuffer.allocate(carry.remaining() + in.remaining());
+                joined.put(carry).put(in).flip();
+                in = joined;
+            }
+            CoderResult result = decoder.decode(in, mChars, i == mSegmentCount - 1);
+            if (result.isOverflow()) {
+                //按上面的容量不会发生
+                throw new IllegalStateException("CharBuffer容量不够");
+            }
+            carry = in;
+        }
+        decoder.flush(mChars);
+        mChars.flip();
+        return mChars.toString();
+    }
+}
@@ -4,12 +4,29 @@ import android.app.Activity;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
-import android.nfc.tech.Ndef;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class NfcReadActivity extends Activity {
     private static final String TAG = "NfcReadActivity";
+    //同一标签在此时间内再次触发，直接用上次的读取结果
+    private static final long REPEAT_READ_TTL_MS = 3000;
+    private static final int RECENT_TAG_SLOTS = 16;
+    private final RecentTagCache<String> mRecentTags =
+            new RecentTagCache<>(RECENT_TAG_SLOTS, REPEAT_READ_TTL_MS);
+    //批量写标签的数据文件和日志，数据文件存在时进入批量写模式
+    private static final String[] PROVISION_FILES = {"provision.csv", "provision.json"};
+    private static final String PROVISION_JOURNAL = "provision_journal.csv";
+    //批量写模式下不为null
+    private ProvisioningEngine mProvisioning;
+    //批量写在后台线程依次执行，写卡、校验和写日志都不占用主线程
+    private ExecutorService mProvisioningExecutor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -20,6 +37,52 @@ public class NfcReadActivity extends Activity {
 
     private void initData(){
         NfcUtils nfcUtils = new NfcUtils(this);
+        initProvisioning();
+    }
+
+    /**
+     * 应用外部文件目录下有provision.csv或provision.json时进入批量写模式，碰卡写入而不是读取
+     */
+    private void initProvisioning() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        for (String name : PROVISION_FILES) {
+            File payloads = new File(dir, name);
+            if (payloads.exists()) {
+                try {
+                    File journal = new File(dir, PROVISION_JOURNAL);
+                    mProvisioning = new ProvisioningEngine(payloads, journal);
+                    mProvisioningExecutor = Executors.newSingleThreadExecutor();
+                    Log.i(TAG, "initProvisioning 批量写模式，待写" + mProvisioning.getRemaining()
+                            + "条");
+                } catch (Exception e) {
+                    Log.e(TAG, "initProvisioning 加载" + name + "失败", e);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mProvisioning != null) {
+            //排在还没写完的标签后面关闭日志
+            final ProvisioningEngine provisioning = mProvisioning;
+            mProvisioningExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        provisioning.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            mProvisioningExecutor.shutdown();
+        }
     }
 
     @Override
@@ -37,17 +100,36 @@ public class NfcReadActivity extends Activity {
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
-        Tag detectedTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-        String[] techList = detectedTag.getTechList();
-        Ndef ndef = Ndef.get(detectedTag);
-        Log.i(TAG, "onNewIntent 标签支持的tachnology类型：");
-        for (String tech : techList) {
-            Log.i(TAG, "onNewIntent:" + tech);
+        final Tag detectedTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        if (mProvisioning != null) {
+            final ProvisioningEngine provisioning = mProvisioning;
+            mProvisioningExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int result = provisioning.provision(detectedTag);
+                    Log.i(TAG, "onNewIntent 批量写结果:" + result + " 已写"
+                            + provisioning.getWritten() + "张，每分钟"
+                            + provisioning.getTagsPerMinute() + "张");
+                }
+            });
+            return;
+        }
+        String cached = mRecentTags.get(detectedTag.getId());
+        if (cached != null) {
+            //标签停在感应区边缘反复触发，不再读卡
+            Log.i(TAG, "onNewIntent 同一标签重复触发，使用缓存结果 str:" + cached);
+            return;
         }
+        //认识的标签直接用档案，不用再探测
+        Log.i(TAG, "onNewIntent 标签能力档案:" + NfcUtils.getTagProfile(detectedTag));
         try {
             Log.i(TAG, "onNewIntent nfcId:" + NfcUtils.readNFCId(intent));
             String str = NfcUtils.readNFCFromTag(intent);
             Log.i(TAG,"onNewIntent str:"+str);
+            //读取失败时不缓存，下次触发重新读
+            if (!str.isEmpty()) {
+                mRecentTags.put(detectedTag.getId(), str);
+            }
         }catch (Exception e){
             e.printStackTrace();
         }
@@ -2,6 +2,7 @@ package com.example.nfcapplication;
 
 import android.app.Activity;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.nfc.FormatException;
@@ -21,6 +22,7 @@ import androidx.annotation.RequiresApi;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 public class NfcUtils {
@@ -30,7 +32,14 @@ public class NfcUtils {
     public static IntentFilter[] mIntentFilter = null;
     public static PendingIntent mPendingIntent = null;
     public static String[][] mTechList = null;
+    //标签能力档案
+    public static volatile TagProfileCache mTagProfiles = null;
     public static final String TAG = "NfcUtils";
+    //只查一次，不用每次按名字找
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    //解析NDEF消息用，复用其中的解码器
+    private static NdefCursor mNdefCursor = null;
 
     /**
      * 构造函数，用于初始化nfc
@@ -70,6 +79,37 @@ public class NfcUtils {
         }
         mIntentFilter = new IntentFilter[]{filter, filter2};
         mTechList = null;
+        initTagProfiles(activity);
+    }
+
+    /**
+     * 初始化标签能力档案缓存，已初始化过时不重复创建
+     */
+    public static synchronized TagProfileCache initTagProfiles(Context context) {
+        if (mTagProfiles == null) {
+            mTagProfiles = new TagProfileCache(context.getApplicationContext()
+                    .getSharedPreferences("tag_profiles", Context.MODE_PRIVATE));
+        }
+        return mTagProfiles;
+    }
+
+    /**
+     * 取标签的能力档案，认识的标签不用再探测
+     * 档案缓存还没初始化（没有创建NfcUtils对象，也没调用initTagProfiles()）时每次都探测，不缓存
+     */
+    public static TagProfileCache.Profile getTagProfile(Tag tag) {
+        TagProfileCache profiles = mTagProfiles;
+        return profiles != null ? profiles.get(tag) : TagProfileCache.probe(tag);
+    }
+
+    /**
+     * 读写失败时清掉标签的档案，档案缓存还没初始化时什么都不做
+     */
+    private static void invalidateTagProfile(Tag tag) {
+        TagProfileCache profiles = mTagProfiles;
+        if (profiles != null) {
+            profiles.invalidate(tag);
+        }
     }
 
     /**
@@ -82,21 +122,49 @@ public class NfcUtils {
             Log.i(TAG, "不能识别的标签类型");
             return "";
         }
+        //档案里不是NDEF的标签不用连接
+        TagProfileCache.Profile profile = getTagProfile(tag);
+        if (!profile.ndef) {
+            Log.i(TAG, "非NDEF标签，不读取");
+            return "";
+        }
+        //NFC Forum Type 2标签（NTAG、Ultralight）先试FAST_READ，不认识的芯片再用Ndef读
+        if (Ndef.NFC_FORUM_TYPE_2.equals(profile.ndefType)) {
+            try {
+                byte[] ndefBytes = NtagReader.readNdef(tag);
+                if (ndefBytes != null) {
+                    if (ndefBytes.length == 0) {
+                        return "";
+                    }
+                    String msg = parseNdefMessage(ndefBytes);
+                    Log.i(TAG, "FAST_READ数据读取成功 MSG:" + msg);
+                    return msg;
+                }
+            } catch (IOException | FormatException e) {
+                Log.i(TAG, "FAST_READ读取失败，改用Ndef:" + e);
+            }
+        }
         Ndef ndef = Ndef.get(tag);//获取ndef对象
+        if (ndef == null) {
+            invalidateTagProfile(tag);
+            return "";
+        }
         try {
             Log.i(TAG, "readNdef ndef connect ndef:" + ndef);
             ndef.connect();//连接
             NdefMessage ndefMessage = ndef.getNdefMessage();//获取NdefMessage对象
             Log.i(TAG, "readNdef ndef connect ndefMessage:" + ndefMessage);
             if (ndefMessage != null) {
-                String msg = parseTextRecord(ndefMessage.getRecords()[0]);
+                String msg = parseNdefMessage(ndefMessage.toByteArray());
                 Log.i(TAG, "数据读取成功 MSG:" + msg);
                 return msg;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            invalidateTagProfile(tag);
         } catch (FormatException e) {
             e.printStackTrace();
+            invalidateTagProfile(tag);
         } finally {
             try {
                 ndef.close();//关闭链接
@@ -128,32 +196,74 @@ public class NfcUtils {
         NdefRecord ndefRecord = NdefRecord.createTextRecord(null, data);
         NdefRecord[] records = {ndefRecord};
         NdefMessage ndefMessage = new NdefMessage(records);
+        //消息只序列化一次
+        writeNdefToTag(tag, ndefMessage, ndefMessage.toByteArray());
+    }
+
+    /**
+     * 把NDEF消息写入标签，写完读回来校验
+     *
+     * @param ndefBytes ndefMessage.toByteArray()，由调用者事先序列化好
+     * @return 写入成功返回true；标签不可写、容量不够或不支持NDEF时返回false
+     */
+    public static boolean writeNdefToTag(Tag tag, NdefMessage ndefMessage, byte[] ndefBytes)
+            throws IOException, FormatException {
+        //档案里判断是否支持可写、标签的容量是否够用，不够的不用连接
+        TagProfileCache.Profile profile = getTagProfile(tag);
+        if (!profile.canWrite(ndefBytes.length)) {
+            Log.i(TAG, "标签不可写或容量不够:" + profile);
+            return false;
+        }
+        //NFC Forum Type 2标签（NTAG、Ultralight）只写有变化的页，不认识的芯片再用Ndef写
+        if (Ndef.NFC_FORUM_TYPE_2.equals(profile.ndefType)) {
+            try {
+                int pages = NtagWriter.writeNdef(tag, ndefBytes);
+                if (pages >= 0) {
+                    Log.i(TAG, "按页写入数据成功，写入" + pages + "页");
+                    return true;
+                }
+            } catch (IOException | FormatException e) {
+                Log.i(TAG, "按页写入失败，改用Ndef:" + e);
+            }
+        }
         Ndef ndef = Ndef.get(tag);
         if (ndef != null) {
-            ndef.connect();
-            //判断是否支持可写
-            if (!ndef.isWritable()) {
-                return;
-            }
-            //判断标签的容量是否够用
-            if (ndef.getMaxSize() < ndefMessage.toByteArray().length) {
-                return;
-            }
-            ndef.writeNdefMessage(ndefMessage);
-        }else {
-            //当我们买回来的NFC标签是没有格式化的，或者没有分区的执行此步
-            //Ndef格式类
-            NdefFormatable format = NdefFormatable.get(tag);
-            //判断是否获得了NdefFormatable对象，有一些标签是只读的或者不允许格式化的
-            if (format != null) {
-                //连接format.connect();
-                //格式化并将信息写入标签
-                format.format(ndefMessage);
-                Log.i(TAG, "写入数据成功");
-            } else {
-                Log.i(TAG, "写入数据失败");
+            try {
+                ndef.connect();
+                ndef.writeNdefMessage(ndefMessage);
+                //getNdefMessage()会重新从标签读取
+                NdefMessage written = ndef.getNdefMessage();
+                if (written == null || !Arrays.equals(written.toByteArray(), ndefBytes)) {
+                    throw new IOException("写入校验失败");
+                }
+            } catch (IOException | FormatException e) {
+                invalidateTagProfile(tag);
+                throw e;
+            } finally {
+                ndef.close();
             }
+            Log.i(TAG, "写入数据成功");
+            return true;
+        }
+        //当我们买回来的NFC标签是没有格式化的，或者没有分区的执行此步
+        //Ndef格式类
+        NdefFormatable format = NdefFormatable.get(tag);
+        //判断是否获得了NdefFormatable对象，有一些标签是只读的或者不允许格式化的
+        if (format == null) {
+            Log.i(TAG, "写入数据失败");
+            return false;
+        }
+        try {
+            format.connect();
+            //格式化并将信息写入标签；格式化后的标签要重新发现才能用Ndef读，这里不校验
+            format.format(ndefMessage);
+        } finally {
+            format.close();
+            //格式化后成了NDEF标签，档案作废
+            invalidateTagProfile(tag);
         }
+        Log.i(TAG, "格式化并写入数据成功");
+        return true;
     }
 
     /**
@@ -166,6 +276,32 @@ public class NfcUtils {
     }
 
 
+    /**
+     * 解析NDEF消息的原始字节，返回所有文本和URI记录的内容，每条一行；
+     * 直接在原始字节上遍历，不建NdefRecord
+     */
+    public static synchronized String parseNdefMessage(byte[] ndefBytes) throws FormatException {
+        if (mNdefCursor == null) {
+            mNdefCursor = new NdefCursor(ndefBytes, 0, ndefBytes.length);
+        } else {
+            mNdefCursor.reset(ndefBytes, 0, ndefBytes.length);
+        }
+        StringBuilder msg = new StringBuilder();
+        while (mNdefCursor.next()) {
+            String text = mNdefCursor.decodeText();
+            if (text == null) {
+                text = mNdefCursor.decodeUri();
+            }
+            if (text != null) {
+                if (msg.length() > 0) {
+                    msg.append('\n');
+                }
+                msg.append(text);
+            }
+        }
+        return msg.toString();
+    }
+
     public static String parseTextRecord(NdefRecord ndefRecord) {
         /**
          * 判断数据是否为NDEF格式
@@ -184,12 +320,10 @@ public class NfcUtils {
             //下面开始NDEF文本数据第一个字节，状态字节
             //判断文本是基于UTF-8还是UTF-16的，取第一个字节"位与"上16进制的80，16进制的80也就是最高位是1，
             //其他位都是0，所以进行"位与"运算后就会保留最高位
-            String textEncoding = ((payload[0] & 0x80) == 0) ? "UTF-8" : "UTF-16";
+            Charset textEncoding = ((payload[0] & 0x80) == 0) ? UTF_8 : UTF_16;
             //3f最高两位是0，第六位是1，所以进行"位与"运算后获得第六位
             int languageCodeLength = payload[0] & 0x3f;
-            //下面开始NDEF文本数据第二个字节，语言编码
-            //获得语言编码
-            String languageCode = new String(payload, 1, languageCodeLength, "US-ASCII");
+            //下面开始NDEF文本数据第二个字节，语言编码，用不到，跳过
             //下面开始NDEF文本数据后面的字节，解析出文本
             String textRecord = new String(payload, languageCodeLength + 1,
                     payload.length - languageCodeLength - 1, textEncoding);
@@ -202,7 +336,7 @@ public class NfcUtils {
     /**
      * 将字节数组转换为字符串
      */
-    private static String ByteArrayToHexString(byte[] inarray) {
+    static String ByteArrayToHexString(byte[] inarray) {
         int i, j, in;
         String[] hex = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
         String out = "";
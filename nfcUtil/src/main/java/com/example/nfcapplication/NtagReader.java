@@ -0,0 +1,266 @@
+package com.example.nfcapplication;
+
+import android.nfc.FormatException;
+import android.nfc.Tag;
+import android.nfc.tech.NfcA;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 用NfcA直接读NTAG21x/MIFARE Ultralight EV1的NDEF数据
+ * Ndef.getNdefMessage()每次READ只读4页（16字节），读完整个NTAG216要60条命令左右；
+ * 这里先用GET_VERSION识别芯片，再用FAST_READ按getMaxTransceiveLength()一次读尽量多的页，
+ * 在本地解析TLV，只读到NDEF消息结束为止
+ * 读到的用户数据按UID缓存起来，NtagWriter写入时用来比较哪些页变了
+ */
+public class NtagReader {
+    private static final String TAG = "NtagReader";
+    private static final byte CMD_GET_VERSION = 0x60;
+    private static final byte CMD_FAST_READ = 0x3A;
+    private static final int VERSION_LENGTH = 8;
+    private static final int VENDOR_NXP = 0x04;
+    private static final int PRODUCT_ULTRALIGHT = 0x03;
+    private static final int PRODUCT_NTAG = 0x04;
+    static final int PAGE_SIZE = 4;
+    //第3页是Capability Container，第4页开始是用户数据
+    private static final int CC_PAGE = 3;
+    static final int USER_START_PAGE = 4;
+    private static final int CC_MAGIC = 0xE1;
+    //TLV类型
+    private static final int TLV_NULL = 0x00;
+    static final int TLV_NDEF = 0x03;
+    static final int TLV_TERMINATOR = 0xFE;
+    //用户数据缓存的槽位数和有效期
+    private static final int IMAGE_SLOTS = 64;
+    private static final long IMAGE_TTL_MS = 10 * 60 * 1000;
+
+    //UID -> 第4页开始已读出的用户数据
+    static final RecentTagCache<byte[]> IMAGES = new RecentTagCache<>(IMAGE_SLOTS, IMAGE_TTL_MS);
+
+    private final NfcA mNfcA;
+    private final int mLastPage;
+    private final int mPagesPerRead;
+    //第4页开始的用户数据，已读mLoaded字节
+    private final byte[] mData;
+    private int mLoaded;
+
+    NtagReader(NfcA nfcA, int lastPage) {
+        mNfcA = nfcA;
+        mLastPage = lastPage;
+        mPagesPerRead = Math.max(1, nfcA.getMaxTransceiveLength() / PAGE_SIZE);
+        mData = new byte[(lastPage - USER_START_PAGE + 1) * PAGE_SIZE];
+    }
+
+    /**
+     * 读取标签上的NDEF消息
+     *
+     * @return NDEF消息的字节，NDEF TLV为空时返回长度为0的数组；不认识的芯片返回null，
+     * 这时标签可能因为不支持GET_VERSION已经休眠，应改用Ndef重新连接读取
+     */
+    public static byte[] readNdef(Tag tag) throws IOException, FormatException {
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA == null) {
+            return null;
+        }
+        nfcA.connect();
+        try {
+            int lastPage = lastUserPage(nfcA);
+            if (lastPage < 0) {
+                return null;
+            }
+            NtagReader reader = new NtagReader(nfcA, lastPage);
+            reader.readCapabilityContainer();
+            byte[] ndef = reader.readNdef();
+            IMAGES.put(tag.getId(), reader.getImage());
+            return ndef;
+        } finally {
+            nfcA.close();
+        }
+    }
+
+    /**
+     * 用GET_VERSION识别芯片，返回最后一个用户数据页，不认识的芯片返回-1
+     */
+    static int lastUserPage(NfcA nfcA) {
+        byte[] version;
+        try {
+            version = nfcA.transceive(new byte[]{CMD_GET_VERSION});
+        } catch (IOException e) {
+            //老的Ultralight不支持GET_VERSION，会回NAK
+            Log.i(TAG, "lastUserPage GET_VERSION失败:" + e);
+            return -1;
+        }
+        if (version == null || version.length != VERSION_LENGTH || version[1] != VENDOR_NXP
+                || (version[2] != PRODUCT_NTAG && version[2] != PRODUCT_ULTRALIGHT)) {
+            Log.i(TAG, "lastUserPage 不认识的芯片:" + NfcUtils.ByteArrayToHexString(
+                    version == null ? new byte[0] : version));
+            return -1;
+        }
+        //按存储大小字节区分型号，得到用户数据字节数
+        int userBytes;
+        switch (version[6]) {
+            case 0x0B://NTAG210、MF0UL11
+                userBytes = 48;
+                break;
+            case 0x0E://NTAG212、MF0UL21
+                userBytes = 128;
+                break;
+            case 0x0F://NTAG213
+                userBytes = 144;
+                break;
+            case 0x11://NTAG215
+                userBytes = 504;
+                break;
+            case 0x13://NTAG216
+                userBytes = 888;
+                break;
+            default:
+                Log.i(TAG, "lastUserPage 不认识的存储大小:" + version[6]);
+                return -1;
+        }
+        return USER_START_PAGE + userBytes / PAGE_SIZE - 1;
+    }
+
+    /**
+     * 从CC页开始第一次读取，顺便检查标签是否已按NDEF格式化
+     */
+    void readCapabilityContainer() throws IOException, FormatException {
+        int end = Math.min(CC_PAGE + mPagesPerRead - 1, mLastPage);
+        byte[] first = fastRead(CC_PAGE, end);
+        if ((first[0] & 0xff) != CC_MAGIC) {
+            throw new FormatException("标签没有NDEF Capability Container");
+        }
+        mLoaded = first.length - PAGE_SIZE;
+        System.arraycopy(first, PAGE_SIZE, mData, 0, mLoaded);
+    }
+
+    /**
+     * 用缓存的用户数据代替读取，缓存与芯片容量不符时返回false
+     */
+    boolean preload(byte[] image) {
+        if (image == null || image.length > mData.length || image.length % PAGE_SIZE != 0) {
+            return false;
+        }
+        System.arraycopy(image, 0, mData, 0, image.length);
+        mLoaded = image.length;
+        return true;
+    }
+
+    private byte[] readNdef() throws IOException, FormatException {
+        int pos = findNdefTlv();
+        int valueStart = tlvValueStart(pos);
+        int length = tlvLength(pos);
+        Log.i(TAG, "readNdef NDEF消息" + length + "字节，共读" + mLoaded + "字节");
+        return Arrays.copyOfRange(mData, valueStart, valueStart + length);
+    }
+
+    /**
+     * 跳过NDEF之前的TLV，返回NDEF TLV在用户数据里的位置，其内容已读出
+     */
+    int findNdefTlv() throws IOException, FormatException {
+        int pos = 0;
+        while (true) {
+            ensure(pos + 1);
+            int type = mData[pos] & 0xff;
+            if (type == TLV_TERMINATOR) {
+                throw new FormatException("没有NDEF TLV");
+            }
+            if (type == TLV_NULL) {
+                pos++;
+                continue;
+            }
+            ensure(pos + 2);
+            if ((mData[pos + 1] & 0xff) == 0xff) {
+                ensure(pos + 4);
+            }
+            int valueEnd = tlvValueStart(pos) + tlvLength(pos);
+            ensure(valueEnd);
+            if (type == TLV_NDEF) {
+                return pos;
+            }
+            pos = valueEnd;
+        }
+    }
+
+    /**
+     * 长度为1个字节，0xFF时后面2个字节才是长度
+     */
+    private int tlvLength(int pos) {
+        int length = mData[pos + 1] & 0xff;
+        if (length == 0xff) {
+            length = ((mData[pos + 2] & 0xff) << 8) | (mData[pos + 3] & 0xff);
+        }
+        return length;
+    }
+
+    private int tlvValueStart(int pos) {
+        return (mData[pos + 1] & 0xff) == 0xff ? pos + 4 : pos + 2;
+    }
+
+    /**
+     * 第4页开始的用户数据，前getLoaded()字节有效
+     */
+    byte[] getData() {
+        return mData;
+    }
+
+    int getLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * 已读出的用户数据的副本，用于缓存
+     */
+    byte[] getImage() {
+        return Arrays.copyOf(mData, mLoaded);
+    }
+
+    /**
+     * 保证用户数据的前end个字节已经读出来，每次读尽量多的页
+     */
+    void ensure(int end) throws IOException, FormatException {
+        if (end > mData.length) {
+            throw new FormatException("TLV超出用户数据区");
+        }
+        while (mLoaded < end) {
+            int startPage = USER_START_PAGE + mLoaded / PAGE_SIZE;
+            int endPage = Math.min(startPage + mPagesPerRead - 1, mLastPage);
+            byte[] pages = fastRead(startPage, endPage);
+            System.arraycopy(pages, 0, mData, mLoaded, pages.length);
+            mLoaded += pages.length;
+        }
+    }
+
+    /**
+     * 重新从标签读取用户数据的[offset, end)字节，offset和end须按页对齐，每次读尽量多的页
+     */
+    byte[] readRange(int offset, int end) throws IOException {
+        byte[] range = new byte[end - offset];
+        int read = 0;
+        while (read < range.length) {
+            int startPage = USER_START_PAGE + (offset + read) / PAGE_SIZE;
+            int endPage = Math.min(startPage + mPagesPerRead,
+                    USER_START_PAGE + end / PAGE_SIZE) - 1;
+            byte[] pages = fastRead(startPage, endPage);
+            System.arraycopy(pages, 0, range, read, pages.length);
+            read += pages.length;
+        }
+        return range;
+    }
+
+    /**
+     * FAST_READ读取startPage到endPage（含）的所有页
+     */
+    private byte[] fastRead(int startPage, int endPage) throws IOException {
+        byte[] response = mNfcA.transceive(
+                new byte[]{CMD_FAST_READ, (byte) startPage, (byte) endPage});
+        int expected = (endPage - startPage + 1) * PAGE_SIZE;
+        if (response == null || response.length != expected) {
+            throw new IOException("FAST_READ " + startPage + "-" + endPage + " 返回"
+                    + (response == null ? 0 : response.length) + "字节，应为" + expected);
+        }
+        return response;
+    }
+}
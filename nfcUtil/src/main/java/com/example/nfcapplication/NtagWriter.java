@@ -0,0 +1,168 @@
+package com.example.nfcapplication;
+
+import android.nfc.FormatException;
+import android.nfc.Tag;
+import android.nfc.tech.NfcA;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 用NfcA按页写NTAG21x/MIFARE Ultralight EV1的NDEF数据
+ * Ndef.writeNdefMessage()每次都重写整条消息；这里拿标签用户数据的镜像（NtagReader读卡时缓存的，
+ * 没有就用FAST_READ读）和新的NDEF TLV比较，只用WRITE写有变化的4字节页，写完再读回来校验
+ * 改了一个字段的标签只需写几页
+ */
+public class NtagWriter {
+    private static final String TAG = "NtagWriter";
+    private static final byte CMD_WRITE = (byte) 0xA2;
+    //WRITE成功时标签回4位的ACK
+    private static final byte ACK = 0x0A;
+
+    private NtagWriter() {
+    }
+
+    /**
+     * 把NDEF消息写入标签，只写与标签上不同的页
+     *
+     * @param ndef NDEF消息的字节，即NdefMessage.toByteArray()
+     * @return 写入的页数；不认识的芯片返回-1，这时应改用Ndef写入
+     */
+    public static int writeNdef(Tag tag, byte[] ndef) throws IOException, FormatException {
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA == null) {
+            return -1;
+        }
+        nfcA.connect();
+        try {
+            int lastPage = NtagReader.lastUserPage(nfcA);
+            if (lastPage < 0) {
+                return -1;
+            }
+            byte[] uid = tag.getId();
+            byte[] cached = NtagReader.IMAGES.get(uid);
+            NtagReader.IMAGES.remove(uid);
+            if (cached != null) {
+                try {
+                    return write(nfcA, lastPage, uid, cached, ndef);
+                } catch (IOException e) {
+                    //标签可能被别处改过，缓存已过时，读一遍再写
+                    Log.i(TAG, "writeNdef 用缓存写入失败，重新读取:" + e);
+                }
+            }
+            return write(nfcA, lastPage, uid, null, ndef);
+        } finally {
+            nfcA.close();
+        }
+    }
+
+    private static int write(NfcA nfcA, int lastPage, byte[] uid, byte[] cached, byte[] ndef)
+            throws IOException, FormatException {
+        NtagReader image = new NtagReader(nfcA, lastPage);
+        if (!image.preload(cached)) {
+            image.readCapabilityContainer();
+        }
+        //新TLV写在原NDEF TLV的位置，前面的其它TLV不动
+        int start = image.findNdefTlv();
+        byte[] tlv = buildTlv(ndef);
+        int pageSize = NtagReader.PAGE_SIZE;
+        int end = (start + tlv.length + pageSize - 1) / pageSize * pageSize;
+        if (end > image.getData().length) {
+            throw new FormatException("NDEF消息" + ndef.length + "字节，超出标签容量");
+        }
+        image.ensure(end);
+        byte[] expected = Arrays.copyOf(image.getData(), end);
+        System.arraycopy(tlv, 0, expected, start, tlv.length);
+
+        //按NFC Forum Type 2的顺序写：先把NDEF TLV的长度写成0，再写消息，最后写真正的长度；
+        //中途离开时标签上要么是旧消息，要么是空消息，要么是完整的新消息
+        //长度为0时用1字节长度，只改T后面那一个字节所在的页；3字节长度的后两个字节即使在下一页，
+        //也随消息一起写，长度为0时没人看。这样开始和最后都只写一页，每一步都是原子的
+        byte[] data = image.getData();
+        int firstPage = start / pageSize;
+        int endPage = end / pageSize;
+        int lengthPage = (start + 1) / pageSize;
+        boolean messageChanged = false;
+        for (int page = firstPage; page < endPage; page++) {
+            messageChanged |= page != lengthPage && isChanged(expected, page, data);
+        }
+        int written = 0;
+        if (messageChanged) {
+            byte[] empty = Arrays.copyOf(expected, end);
+            empty[start + 1] = 0;
+            written += writeIfChanged(nfcA, lengthPage, empty, data);
+            for (int page = endPage - 1; page >= firstPage; page--) {
+                if (page != lengthPage) {
+                    written += writeIfChanged(nfcA, page, expected, data);
+                }
+            }
+        }
+        written += writeIfChanged(nfcA, lengthPage, expected, data);
+
+        //读回整段TLV校验，缓存里没变的页和标签不符也能发现
+        byte[] readBack = image.readRange(firstPage * pageSize, end);
+        if (!Arrays.equals(readBack, Arrays.copyOfRange(expected, firstPage * pageSize, end))) {
+            throw new IOException("写入校验失败");
+        }
+        System.arraycopy(expected, 0, data, 0, end);
+        NtagReader.IMAGES.put(uid, image.getImage());
+        Log.i(TAG, "write 写入" + written + "页，NDEF消息" + ndef.length + "字节");
+        return written;
+    }
+
+    /**
+     * NDEF TLV加结束TLV，长度不小于0xFF时用3字节长度
+     */
+    private static byte[] buildTlv(byte[] ndef) {
+        int header = ndef.length < 0xff ? 2 : 4;
+        byte[] tlv = new byte[header + ndef.length + 1];
+        tlv[0] = NtagReader.TLV_NDEF;
+        if (header == 2) {
+            tlv[1] = (byte) ndef.length;
+        } else {
+            tlv[1] = (byte) 0xff;
+            tlv[2] = (byte) (ndef.length >> 8);
+            tlv[3] = (byte) ndef.length;
+        }
+        System.arraycopy(ndef, 0, tlv, header, ndef.length);
+        tlv[tlv.length - 1] = (byte) NtagReader.TLV_TERMINATOR;
+        return tlv;
+    }
+
+    private static boolean isChanged(byte[] expected, int page, byte[] data) {
+        int offset = page * NtagReader.PAGE_SIZE;
+        for (int i = offset; i < offset + NtagReader.PAGE_SIZE; i++) {
+            if (expected[i] != data[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 用户数据的第page页与标签上的不同时写入，并更新data
+     *
+     * @return 写入的页数，0或1
+     */
+    private static int writeIfChanged(NfcA nfcA, int page, byte[] expected, byte[] data)
+            throws IOException {
+        if (!isChanged(expected, page, data)) {
+            return 0;
+        }
+        int offset = page * NtagReader.PAGE_SIZE;
+        writePage(nfcA, NtagReader.USER_START_PAGE + page, expected, offset);
+        System.arraycopy(expected, offset, data, offset, NtagReader.PAGE_SIZE);
+        return 1;
+    }
+
+    private static void writePage(NfcA nfcA, int page, byte[] data, int offset)
+            throws IOException {
+        byte[] command = {CMD_WRITE, (byte) page, data[offset], data[offset + 1],
+                data[offset + 2], data[offset + 3]};
+        byte[] response = nfcA.transceive(command);
+        if (response == null || response.length != 1 || (response[0] & 0x0f) != ACK) {
+            throw new IOException("WRITE第" + page + "页失败");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.nfcapplication;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.Tag;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 批量写标签：从CSV或JSON文件读入一批数据，每碰一张标签写下一条，写完校验
+ * 所有NdefMessage和它的字节在加载时就建好，碰卡时只剩写入；
+ * 每张标签的结果追加到日志文件，重新加载时跳过日志里已写成功的数据和标签，可以中断后接着写
+ * CSV每行一条数据，两端有双引号时去掉引号，""表示一个双引号；JSON为字符串数组
+ */
+public class ProvisioningEngine {
+    private static final String TAG = "ProvisioningEngine";
+    public static final int RESULT_WRITTEN = 0;
+    //这张标签这批已经写过，不再占用数据
+    public static final int RESULT_ALREADY_PROVISIONED = 1;
+    public static final int RESULT_FAILED = 2;
+    public static final int RESULT_QUEUE_EMPTY = 3;
+    private static final String JOURNAL_OK = "OK";
+
+    //待写的数据，写失败的放回队头，下次碰卡重写
+    private final ArrayDeque<Payload> mQueue = new ArrayDeque<>();
+    //日志里已写成功的标签UID
+    private final Set<String> mProvisionedTags = new HashSet<>();
+    private final Writer mJournal;
+    private int mWritten;
+    private int mFailed;
+    //本次第一张和最后一张写成功的时间，用来算每分钟写多少张
+    private long mFirstWrittenAt;
+    private long mLastWrittenAt;
+
+    private static class Payload {
+        //在数据文件里的序号，写进日志
+        final int index;
+        final NdefMessage message;
+        final byte[] bytes;
+
+        Payload(int index, NdefMessage message) {
+            this.index = index;
+            this.message = message;
+            this.bytes = message.toByteArray();
+        }
+    }
+
+    /**
+     * @param payloads 数据文件，扩展名为.json时按JSON解析，否则按CSV
+     * @param journal  日志文件，不存在时新建
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public ProvisioningEngine(File payloads, File journal) throws IOException, JSONException {
+        Set<Integer> done = readJournal(journal);
+        List<String> texts = payloads.getName().endsWith(".json")
+                ? readJson(payloads) : readCsv(payloads);
+        for (int i = 0; i < texts.size(); i++) {
+            if (!done.contains(i)) {
+                NdefRecord record = NdefRecord.createTextRecord(null, texts.get(i));
+                mQueue.add(new Payload(i, new NdefMessage(new NdefRecord[]{record})));
+            }
+        }
+        mJournal = new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+        Log.i(TAG, "共" + texts.size() + "条数据，已写" + done.size() + "条，待写" + mQueue.size()
+                + "条");
+    }
+
+    /**
+     * 把下一条数据写入标签并记日志，碰卡时调用
+     *
+     * @return RESULT_WRITTEN、RESULT_ALREADY_PROVISIONED、RESULT_FAILED或RESULT_QUEUE_EMPTY
+     */
+    public synchronized int provision(Tag tag) {
+        String uid = NfcUtils.ByteArrayToHexString(tag.getId());
+        if (mProvisionedTags.contains(uid)) {
+            Log.i(TAG, "provision 标签" + uid + "已写过");
+            return RESULT_ALREADY_PROVISIONED;
+        }
+        Payload payload = mQueue.poll();
+        if (payload == null) {
+            return RESULT_QUEUE_EMPTY;
+        }
+        long start = SystemClock.elapsedRealtime();
+        String result;
+        try {
+            result = NfcUtils.writeNdefToTag(tag, payload.message, payload.bytes)
+                    ? JOURNAL_OK : "标签不可写或容量不够";
+        } catch (IOException | FormatException e) {
+            result = e.toString();
+        }
+        long now = SystemClock.elapsedRealtime();
+        journal(System.currentTimeMillis(), uid, payload.index, result, now - start);
+        if (!JOURNAL_OK.equals(result)) {
+            mFailed++;
+            mQueue.addFirst(payload);
+            Log.i(TAG, "provision 第" + payload.index + "条写入" + uid + "失败:" + result);
+            return RESULT_FAILED;
+        }
+        mProvisionedTags.add(uid);
+        if (mWritten++ == 0) {
+            mFirstWrittenAt = now;
+        }
+        mLastWrittenAt = now;
+        Log.i(TAG, "provision 第" + payload.index + "条写入" + uid + "，用时" + (now - start)
+                + "ms，每分钟" + getTagsPerMinute() + "张，待写" + mQueue.size() + "条");
+        return RESULT_WRITTEN;
+    }
+
+    /**
+     * 待写的数据条数
+     */
+    public synchronized int getRemaining() {
+        return mQueue.size();
+    }
+
+    /**
+     * 本次写成功的标签数
+     */
+    public synchronized int getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * 本次写失败的次数
+     */
+    public synchronized int getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * 本次从第一张到最后一张写成功的标签，平均每分钟写多少张
+     */
+    public synchronized float getTagsPerMinute() {
+        long elapsed = mLastWrittenAt - mFirstWrittenAt;
+        return mWritten < 2 || elapsed <= 0 ? 0 : (mWritten - 1) * 60000f / elapsed;
+    }
+
+    public synchronized void close() throws IOException {
+        mJournal.close();
+    }
+
+    /**
+     * 日志每行：时间,UID,数据序号,结果,用时ms；结果里的逗号和换行换成空格
+     */
+    private void journal(long time, String uid, int index, String result, long elapsed) {
+        try {
+            mJournal.write(time + "," + uid + "," + index + ","
+                    + result.replaceAll("[,\r\n]", " ") + "," + elapsed + "\n");
+            //每张标签都刷到文件，进程被杀也不会丢
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "journal 写日志失败", e);
+        }
+    }
+
+    /**
+     * 读日志，返回已写成功的数据序号，并记下已写过的标签
+     */
+    private Set<Integer> readJournal(File journal) throws IOException {
+        Set<Integer> done = new HashSet<>();
+        if (!journal.exists()) {
+            return done;
+        }
+        for (String line : readLines(journal)) {
+            String[] fields = line.split(",");
+            if (fields.length == 5 && JOURNAL_OK.equals(fields[3])) {
+                try {
+                    done.add(Integer.parseInt(fields[2]));
+                    mProvisionedTags.add(fields[1]);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "readJournal 跳过格式不对的行:" + line);
+                }
+            }
+        }
+        return done;
+    }
+
+    private static List<String> readCsv(File file) throws IOException {
+        List<String> texts = new ArrayList<>();
+        for (String line : readLines(file)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.length() >= 2 && line.startsWith("\"") && line.endsWith("\"")) {
+                line = line.substring(1, line.length() - 1).replace("\"\"", "\"");
+            }
+            texts.add(line);
+        }
+        return texts;
+    }
+
+    private static List<String> readJson(File file) throws IOException, JSONException {
+        StringBuilder json = new StringBuilder();
+        for (String line : readLines(file)) {
+            json.append(line).append('\n');
+        }
+        JSONArray array = new JSONArray(json.toString());
+        List<String> texts = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            texts.add(array.getString(i));
+        }
+        return texts;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.nfcapplication;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 最近读取过的标签的结果缓存，以标签UID（Tag.getId()）为key
+ * 标签停在感应区边缘时会反复离开、进入，每次都会重新触发读取，
+ * 在有效期内再次发现同一标签时直接返回上次的结果，不再读卡
+ * 槽位数固定，按UID的hash选槽，用compareAndSet替换，不加锁；
+ * 两个UID落在同一槽位时新的顶掉旧的，最多多读一次
+ */
+public class RecentTagCache<V> {
+    private final AtomicReferenceArray<Entry<V>> mSlots;
+    private final long mTtlMs;
+
+    private static class Entry<V> {
+        final byte[] uid;
+        final V value;
+        final long expiresAt;
+
+        Entry(byte[] uid, V value, long expiresAt) {
+            this.uid = uid;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param capacity 槽位数，向上取整为2的幂
+     * @param ttlMs    结果的有效期，毫秒
+     */
+    public RecentTagCache(int capacity, long ttlMs) {
+        int slots = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new AtomicReferenceArray<>(slots);
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * 取出有效期内的结果，没有则返回null
+     */
+    public V get(byte[] uid) {
+        if (uid == null || uid.length == 0) {
+            return null;
+        }
+        Entry<V> entry = mSlots.get(slotOf(uid));
+        if (entry == null || !Arrays.equals(entry.uid, uid)) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= entry.expiresAt) {
+            //已过期，清掉；失败说明槽位刚被新结果占用，不用管
+            mSlots.compareAndSet(slotOf(uid), entry, null);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 保存读取结果，有效期从现在算起
+     */
+    public void put(byte[] uid, V value) {
+        if (uid == null || uid.length == 0 || value == null) {
+            return;
+        }
+        long expiresAt = SystemClock.elapsedRealtime() + mTtlMs;
+        mSlots.set(slotOf(uid), new Entry<>(uid.clone(), value, expiresAt));
+    }
+
+    /**
+     * 删除标签的结果；失败说明槽位刚被新结果占用，不用管
+     */
+    public void remove(byte[] uid) {
+        if (uid == null || uid.length == 0) {
+            return;
+        }
+        int slot = slotOf(uid);
+        Entry<V> entry = mSlots.get(slot);
+        if (entry != null && Arrays.equals(entry.uid, uid)) {
+            mSlots.compareAndSet(slot, entry, null);
+        }
+    }
+
+    private int slotOf(byte[] uid) {
+        int hash = Arrays.hashCode(uid);
+        hash ^= hash >>> 16;
+        return hash & (mSlots.length() - 1);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.nfcapplication;
+
+import android.content.SharedPreferences;
+import android.nfc.Tag;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.NfcA;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 标签能力档案缓存，以UID/ATQA/SAK为key，保存在SharedPreferences里，重启后仍有效
+ * 记录标签支持的technology、是否NDEF、是否可格式化、NDEF类型、容量和是否可写，
+ * 认识的标签不用再探测，直接选读写路径；读写失败时调用invalidate()清掉，下次重新探测
+ */
+public class TagProfileCache {
+    private static final String TAG = "TagProfileCache";
+    //最多保存的标签数，超出时删掉最早探测的
+    private static final int MAX_PROFILES = 256;
+    //档案格式变化时加1，旧档案作废
+    private static final int FORMAT_VERSION = 1;
+
+    private final SharedPreferences mPreferences;
+
+    /**
+     * 标签能力档案
+     */
+    public static class Profile {
+        public final String[] techList;
+        public final boolean ndef;
+        public final boolean formatable;
+        //NDEF类型，如Ndef.NFC_FORUM_TYPE_2，非NDEF标签为空
+        public final String ndefType;
+        //NDEF最大容量，字节
+        public final int maxSize;
+        public final boolean writable;
+
+        Profile(String[] techList, boolean ndef, boolean formatable, String ndefType, int maxSize,
+                boolean writable) {
+            this.techList = techList;
+            this.ndef = ndef;
+            this.formatable = formatable;
+            this.ndefType = ndefType;
+            this.maxSize = maxSize;
+            this.writable = writable;
+        }
+
+        /**
+         * 能否写入size字节的NDEF消息
+         */
+        public boolean canWrite(int size) {
+            return ndef ? writable && maxSize >= size : formatable;
+        }
+
+        String encode(long probedAt) {
+            return FORMAT_VERSION + ";" + probedAt + ";" + (ndef ? 1 : 0) + ";"
+                    + (formatable ? 1 : 0) + ";" + ndefType + ";" + maxSize + ";" + (writable ? 1 : 0) + ";"
+                    + TextUtils.join(",", techList);
+        }
+
+        /**
+         * 解析encode()的结果，格式不对返回null
+         */
+        static Profile decode(String encoded) {
+            String[] fields = encoded == null ? new String[0] : encoded.split(";", -1);
+            if (fields.length != 8 || !String.valueOf(FORMAT_VERSION).equals(fields[0])) {
+                return null;
+            }
+            try {
+                return new Profile(fields[7].split(","), "1".equals(fields[2]),
+                        "1".equals(fields[3]), fields[4], Integer.parseInt(fields[5]),
+                        "1".equals(fields[6]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ndef=" + ndef + " type=" + ndefType + " maxSize=" + maxSize + " writable="
+                    + writable + " formatable=" + formatable + " tech="
+                    + Arrays.toString(techList);
+        }
+    }
+
+    public TagProfileCache(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * 取标签的档案，没有缓存或与标签不符时探测一次并保存
+     */
+    public synchronized Profile get(Tag tag) {
+        String key = keyOf(tag);
+        String encoded = mPreferences.getString(key, null);
+        Profile profile = Profile.decode(encoded);
+        //technology列表随标签一起到达，不用通信，对不上说明档案已过时
+        if (profile != null && Arrays.equals(profile.techList, tag.getTechList())) {
+            Log.i(TAG, "get 命中档案 " + key + ":" + profile);
+            return profile;
+        }
+        profile = probe(tag);
+        Log.i(TAG, "get 探测标签 " + key + ":" + profile);
+        SharedPreferences.Editor editor = mPreferences.edit()
+                .putString(key, profile.encode(System.currentTimeMillis()));
+        trim(editor, key);
+        editor.apply();
+        return profile;
+    }
+
+    /**
+     * 读写失败时调用，清掉标签的档案
+     */
+    public synchronized void invalidate(Tag tag) {
+        mPreferences.edit().remove(keyOf(tag)).apply();
+    }
+
+    /**
+     * 探测标签的档案，只看Tag对象，不与标签通信
+     */
+    static Profile probe(Tag tag) {
+        String[] techList = tag.getTechList();
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            return new Profile(techList, true, false, ndef.getType(), ndef.getMaxSize(),
+                    ndef.isWritable());
+        }
+        return new Profile(techList, false, NdefFormatable.get(tag) != null, "", 0, false);
+    }
+
+    /**
+     * 超出MAX_PROFILES时删掉最早探测的档案，keep为本次保存的key
+     */
+    private void trim(SharedPreferences.Editor editor, String keep) {
+        //getAll()返回的Map不能修改
+        Map<String, ?> all = new HashMap<>(mPreferences.getAll());
+        int excess = all.size() + (all.containsKey(keep) ? 0 : 1) - MAX_PROFILES;
+        for (; excess > 0; excess--) {
+            String oldestKey = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                long probedAt = probedAt(entry.getValue());
+                if (!entry.getKey().equals(keep) && probedAt < oldest) {
+                    oldest = probedAt;
+                    oldestKey = entry.getKey();
+                }
+            }
+            if (oldestKey == null) {
+                return;
+            }
+            editor.remove(oldestKey);
+            all.remove(oldestKey);
+        }
+    }
+
+    private static long probedAt(Object value) {
+        String[] fields = value instanceof String ? ((String) value).split(";", 3) : null;
+        try {
+            return fields != null && fields.length == 3 ? Long.parseLong(fields[1]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * UID相同的标签还要比较ATQA和SAK，防止不同种类的标签UID碰巧相同
+     */
+    private static String keyOf(Tag tag) {
+        StringBuilder key = new StringBuilder(NfcUtils.ByteArrayToHexString(tag.getId()));
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA != null) {
+            key.append('/').append(NfcUtils.ByteArrayToHexString(nfcA.getAtqa()))
+                    .append('/').append(Integer.toHexString(nfcA.getSak()));
+        }
+        return key.toString();
+    }
+}
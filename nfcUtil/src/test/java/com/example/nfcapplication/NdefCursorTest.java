@@ -0,0 +1,347 @@
+package com.example.nfcapplication;
+
+import android.nfc.FormatException;
+import android.nfc.NdefRecord;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * NdefCursor的单元测试，NDEF消息按NFC Forum NDEF规范手工拼出来
+ */
+public class NdefCursorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MB = 0x80;
+    private static final int ME = 0x40;
+    private static final int CF = 0x20;
+    private static final int SR = 0x10;
+    private static final int IL = 0x08;
+    private static final byte[] TEXT = {'T'};
+    private static final byte[] URI = {'U'};
+    private static final byte[] NONE = new byte[0];
+
+    @Test
+    public void readsShortTextRecord() throws FormatException {
+        byte[] message = message(record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", "hello")));
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        assertEquals(NdefRecord.TNF_WELL_KNOWN, cursor.getTnf());
+        assertTrue(cursor.isType(NdefRecord.TNF_WELL_KNOWN, TEXT));
+        assertEquals(1, cursor.getTypeLength());
+        assertEquals('T', message[cursor.getTypeOffset()]);
+        assertEquals(0, cursor.getIdLength());
+        assertEquals(1, cursor.getSegmentCount());
+        assertEquals(8, cursor.getPayloadLength());
+        assertEquals("hello", cursor.decodeText());
+        assertNull(cursor.decodeUri());
+        assertFalse(cursor.next());
+        //读完ME后一直返回false
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void iteratesEveryRecord() throws FormatException {
+        byte[] message = message(
+                record(MB, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("zh", "中文")),
+                record(0, NdefRecord.TNF_WELL_KNOWN, URI, null, uriPayload(0x04, "example.com/")),
+                record(0, NdefRecord.TNF_MIME_MEDIA, bytes("text/plain"), null, bytes("mime")),
+                record(ME, NdefRecord.TNF_WELL_KNOWN, URI, null, uriPayload(0x7f, "x:y")));
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        assertEquals("中文", cursor.decodeText());
+        assertTrue(cursor.next());
+        assertEquals("https://example.com/", cursor.decodeUri());
+        assertTrue(cursor.next());
+        assertEquals(NdefRecord.TNF_MIME_MEDIA, cursor.getTnf());
+        assertNull(cursor.decodeText());
+        assertNull(cursor.decodeUri());
+        assertEquals("mime", new String(message, cursor.getSegmentOffset(0),
+                cursor.getSegmentLength(0), UTF_8));
+        assertTrue(cursor.next());
+        //不认识的前缀不加
+        assertEquals("x:y", cursor.decodeUri());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void readsLongRecordWithId() throws FormatException {
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'a');
+        String text = new String(chars);
+        byte[] id = bytes("id-1");
+        byte[] message = message(longRecord(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, id,
+                textPayload("en", text)));
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        assertEquals(4, cursor.getIdLength());
+        assertEquals("id-1", new String(message, cursor.getIdOffset(), 4, UTF_8));
+        assertEquals(303, cursor.getPayloadLength());
+        assertEquals(text, cursor.decodeText());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void readsMessageInsideLargerBuffer() throws FormatException {
+        byte[] message = message(record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", "inside")));
+        byte[] buffer = new byte[message.length + 10];
+        Arrays.fill(buffer, (byte) 0xff);
+        System.arraycopy(message, 0, buffer, 5, message.length);
+        NdefCursor cursor = new NdefCursor(new byte[0], 0, 0);
+        cursor.reset(buffer, 5, message.length);
+
+        assertTrue(cursor.next());
+        assertSame(buffer, cursor.getData());
+        assertEquals("inside", cursor.decodeText());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void mergesChunkedRecord() throws FormatException {
+        byte[] payload = textPayload("en", "abcdefghij");
+        byte[] message = message(
+                record(MB | CF, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                        Arrays.copyOfRange(payload, 0, 4)),
+                record(CF, NdefRecord.TNF_UNCHANGED, NONE, null,
+                        Arrays.copyOfRange(payload, 4, 9)),
+                longRecord(0, NdefRecord.TNF_UNCHANGED, NONE, null,
+                        Arrays.copyOfRange(payload, 9, payload.length)),
+                record(ME, NdefRecord.TNF_WELL_KNOWN, URI, null, uriPayload(0x05, "123")));
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        //分块记录的TNF和类型取自第一块
+        assertTrue(cursor.isType(NdefRecord.TNF_WELL_KNOWN, TEXT));
+        assertEquals(3, cursor.getSegmentCount());
+        assertEquals(payload.length, cursor.getPayloadLength());
+        byte[] joined = new byte[payload.length];
+        int pos = 0;
+        for (int i = 0; i < cursor.getSegmentCount(); i++) {
+            System.arraycopy(message, cursor.getSegmentOffset(i), joined, pos,
+                    cursor.getSegmentLength(i));
+            pos += cursor.getSegmentLength(i);
+        }
+        assertArrayEquals(payload, joined);
+        for (int i = 0; i < payload.length; i++) {
+            assertEquals(payload[i] & 0xff, cursor.getPayloadByte(i));
+        }
+        assertEquals("abcdefghij", cursor.decodeText());
+        assertTrue(cursor.next());
+        assertEquals(1, cursor.getSegmentCount());
+        assertEquals("tel:123", cursor.decodeUri());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void decodesCharactersSplitAcrossChunks() throws FormatException {
+        String text = "中文é€😀";
+        byte[] payload = textPayload("zh-CN", text);
+        //每块1字节：语言代码和每个多字节字符都被切开
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < payload.length; i++) {
+            int flags = (i == 0 ? MB : 0) | (i == payload.length - 1 ? ME : CF);
+            int tnf = i == 0 ? NdefRecord.TNF_WELL_KNOWN : NdefRecord.TNF_UNCHANGED;
+            byte[] chunk = record(flags, tnf, i == 0 ? TEXT : NONE, null,
+                    new byte[]{payload[i]});
+            out.write(chunk, 0, chunk.length);
+        }
+        byte[] message = out.toByteArray();
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        assertEquals(payload.length, cursor.getSegmentCount());
+        assertEquals(text, cursor.decodeText());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void decodesUtf16Text() throws FormatException {
+        byte[] text = "UTF-16 ü".getBytes(Charset.forName("UTF-16"));
+        byte[] payload = new byte[3 + text.length];
+        payload[0] = (byte) (0x80 | 2);
+        payload[1] = 'e';
+        payload[2] = 'n';
+        System.arraycopy(text, 0, payload, 3, text.length);
+        byte[] message = message(record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                payload));
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+
+        assertTrue(cursor.next());
+        assertEquals("UTF-16 ü", cursor.decodeText());
+    }
+
+    @Test
+    public void reusesCursorForAnotherMessage() throws FormatException {
+        byte[] first = message(record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", "first")));
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'b');
+        String longer = new String(chars);
+        byte[] second = message(record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", longer)));
+        NdefCursor cursor = new NdefCursor(first, 0, first.length);
+
+        assertTrue(cursor.next());
+        assertEquals("first", cursor.decodeText());
+        cursor.reset(second, 0, second.length);
+        assertTrue(cursor.next());
+        assertEquals(longer, cursor.decodeText());
+        assertFalse(cursor.next());
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsFirstRecordWithoutMessageBegin() throws FormatException {
+        next(message(record(ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "x"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsMessageBeginOnLaterRecord() throws FormatException {
+        next(message(record(MB, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "x")),
+                record(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "y"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsMissingMessageEnd() throws FormatException {
+        next(message(record(MB, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "x"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsChunkWithMessageEnd() throws FormatException {
+        next(message(record(MB | ME | CF, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", "x"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsContinuationChunkWithType() throws FormatException {
+        next(message(record(MB | CF, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "x")),
+                record(ME, NdefRecord.TNF_UNCHANGED, TEXT, null, bytes("y"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsContinuationChunkWithOtherTnf() throws FormatException {
+        next(message(record(MB | CF, NdefRecord.TNF_WELL_KNOWN, TEXT, null, textPayload("en", "x")),
+                record(ME, NdefRecord.TNF_WELL_KNOWN, NONE, null, bytes("y"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsUnchangedFirstChunk() throws FormatException {
+        next(message(record(MB | ME, NdefRecord.TNF_UNCHANGED, NONE, null, bytes("x"))));
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsEmptyRecordWithPayload() throws FormatException {
+        next(message(record(MB | ME, NdefRecord.TNF_EMPTY, NONE, null, bytes("x"))));
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[] message = message(
+                record(MB, NdefRecord.TNF_WELL_KNOWN, TEXT, bytes("id"), textPayload("en", "ab")),
+                longRecord(ME, NdefRecord.TNF_WELL_KNOWN, URI, null, uriPayload(0x01, "c.d")));
+        for (int length = 0; length < message.length; length++) {
+            NdefCursor cursor = new NdefCursor(message, 0, length);
+            try {
+                while (cursor.next()) {
+                }
+                fail("截断到" + length + "字节没有报错");
+            } catch (FormatException e) {
+                //应该报错
+            }
+        }
+    }
+
+    @Test(expected = FormatException.class)
+    public void rejectsPayloadLengthPastEnd() throws FormatException {
+        byte[] message = message(longRecord(MB | ME, NdefRecord.TNF_WELL_KNOWN, TEXT, null,
+                textPayload("en", "x")));
+        //4字节负载长度改成0x7fffffff
+        message[2] = 0x7f;
+        message[3] = (byte) 0xff;
+        message[4] = (byte) 0xff;
+        message[5] = (byte) 0xff;
+        next(message);
+    }
+
+    private static void next(byte[] message) throws FormatException {
+        NdefCursor cursor = new NdefCursor(message, 0, message.length);
+        while (cursor.next()) {
+        }
+    }
+
+    private static byte[] message(byte[]... records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            out.write(record, 0, record.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 短记录（SR），负载不超过255字节
+     */
+    private static byte[] record(int flags, int tnf, byte[] type, byte[] id, byte[] payload) {
+        return encode(flags | SR, tnf, type, id, payload);
+    }
+
+    /**
+     * 长记录，负载长度占4字节
+     */
+    private static byte[] longRecord(int flags, int tnf, byte[] type, byte[] id,
+                                     byte[] payload) {
+        return encode(flags, tnf, type, id, payload);
+    }
+
+    private static byte[] encode(int flags, int tnf, byte[] type, byte[] id, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(flags | (id != null ? IL : 0) | tnf);
+        out.write(type.length);
+        if ((flags & SR) != 0) {
+            out.write(payload.length);
+        } else {
+            out.write(payload.length >>> 24);
+            out.write(payload.length >>> 16);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        }
+        if (id != null) {
+            out.write(id.length);
+        }
+        out.write(type, 0, type.length);
+        if (id != null) {
+            out.write(id, 0, id.length);
+        }
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] textPayload(String language, String text) {
+        byte[] languageBytes = bytes(language);
+        byte[] textBytes = bytes(text);
+        byte[] payload = new byte[1 + languageBytes.length + textBytes.length];
+        payload[0] = (byte) languageBytes.length;
+        System.arraycopy(languageBytes, 0, payload, 1, languageBytes.length);
+        System.arraycopy(textBytes, 0, payload, 1 + languageBytes.length, textBytes.length);
+        return payload;
+    }
+
+    private static byte[] uriPayload(int prefix, String uri) {
+        byte[] uriBytes = bytes(uri);
+        byte[] payload = new byte[1 + uriBytes.length];
+        payload[0] = (byte) prefix;
+        System.arraycopy(uriBytes, 0, payload, 1, uriBytes.length);
+        return payload;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+}
@@ -1,16 +1,10 @@
 package com.example.nfcreader;
 
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
-import android.nfc.tech.Ndef;
-import android.nfc.tech.NfcA;
-import android.nfc.tech.NfcB;
-import android.nfc.tech.NfcF;
 import android.nfc.tech.NfcV;
 import android.os.Bundle;
 import android.provider.Settings;
@@ -20,13 +14,18 @@ import android.widget.Toast;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class MainActivity extends Activity {
+public class MainActivity extends Activity implements NfcAdapter.ReaderCallback {
     private final String TAG = "MainActivity";
+    // 读卡模式下关注的卡片类型，并跳过系统的 NDEF 检查，发现卡片后直接回调
+    private static final int READER_FLAGS = NfcAdapter.FLAG_READER_NFC_A
+            | NfcAdapter.FLAG_READER_NFC_B | NfcAdapter.FLAG_READER_NFC_F
+            | NfcAdapter.FLAG_READER_NFC_V | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
     private NfcAdapter mNfcAdapter;
-    private PendingIntent mPendingIntent;
-    private IntentFilter[] mIntentFilter;
-    private String[][] mTechList;
+    // 与卡片通信的后台线程，避免阻塞回调线程和 UI 线程
+    private ExecutorService mExecutor;
     private TextView mTvView;
     // 卡片返回来的正确信号
     private final byte[] SELECT_OK = stringToBytes("9000");
@@ -40,8 +39,8 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mTvView = findViewById(R.id.msgid);
+        mExecutor = Executors.newSingleThreadExecutor();
         nfcCheck();
-        init();
         Log.i(TAG, "onCreate");
     }
 
@@ -52,7 +51,8 @@ public class MainActivity extends Activity {
         if (mNfcAdapter == null) {
             return;
         }
-        mNfcAdapter.enableForegroundDispatch(this, mPendingIntent, mIntentFilter, mTechList);
+        // 读卡模式：卡片直接回调 onTagDiscovered，不再经过 Intent 分发和 Activity 重新投递
+        mNfcAdapter.enableReaderMode(this, this, READER_FLAGS, null);
     }
 
     @Override
@@ -62,49 +62,50 @@ public class MainActivity extends Activity {
         if (mNfcAdapter == null) {
             return;
         }
-        mNfcAdapter.disableForegroundDispatch(this);
+        mNfcAdapter.disableReaderMode(this);
     }
 
-    private void init() {
-        Log.i(TAG, "init");
-        //NFCActivity 一般设置为: SingleTop模式 ，并且锁死竖屏，以避免屏幕旋转Intent丢失
-        Intent intent = new Intent(MainActivity.this, MainActivity.class);
-
-        // 私有的请求码
-        final int REQUEST_CODE = 1 << 16;
-
-        final int FLAG = 0;
-        mPendingIntent = PendingIntent.getActivity(MainActivity.this, REQUEST_CODE, intent, FLAG);
-
-        // 三种过滤器
-        IntentFilter ndef = new IntentFilter(NfcAdapter.ACTION_NDEF_DISCOVERED);
-        IntentFilter tech = new IntentFilter(NfcAdapter.ACTION_TECH_DISCOVERED);
-        IntentFilter tag = new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED);
-        mIntentFilter = new IntentFilter[]{ndef, tech, tag};
-
-        // 只针对ACTION_TECH_DISCOVERED
-        mTechList = new String[][]{
-                {IsoDep.class.getName()}, {NfcA.class.getName()}, {NfcB.class.getName()},
-                {NfcV.class.getName()}, {NfcF.class.getName()}, {Ndef.class.getName()}};
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdownNow();
     }
 
+    /**
+     * 发现卡片时由系统在 Binder 线程回调，通信交给后台线程执行，回调立即返回
+     */
     @Override
-    protected void onNewIntent(Intent intent) {
-        super.onNewIntent(intent);
-        Log.i(TAG, "onNewIntent ");
-        try {
-            // IsoDep卡片通信的工具类，Tag就是卡
-            IsoDep isoDep = IsoDep.get((Tag) intent.getParcelableExtra(NfcAdapter.EXTRA_TAG));
-            if (isoDep == null) {
-                String info = "读取卡信息失败";
-                Log.i(TAG, "onNewIntent " + info);
-                toast(info);
-                return;
+    public void onTagDiscovered(final Tag tag) {
+        Log.i(TAG, "onTagDiscovered");
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                exchange(tag);
             }
+        });
+    }
 
+    /**
+     * 在后台线程与卡片通信，只把最终结果投递到 UI 线程
+     */
+    private void exchange(Tag tag) {
+        // ISO 15693 标签（库存标签）批量读取存储
+        if (NfcV.get(tag) != null) {
+            readNfcV(tag);
+            return;
+        }
+        // IsoDep卡片通信的工具类，Tag就是卡
+        IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            String info = "读取卡信息失败";
+            Log.i(TAG, "exchange " + info);
+            toast(info);
+            return;
+        }
+        try {
             // NFC与卡进行连接
             isoDep.connect();
-            Log.i(TAG, "onNewIntent isoDep connect");
+            Log.i(TAG, "exchange isoDep connect");
             //转换指令为byte[]
             byte[] command = buildSelectApdu(SAMPLE_LOYALTY_CARD_AID);
 
@@ -119,17 +120,48 @@ public class MainActivity extends Activity {
             if (Arrays.equals(SELECT_OK, statusWord)) {
                 String accountNumber = new String(payload, "UTF-8");
                 Log.i(TAG, "----> " + accountNumber);
-                mTvView.setText(accountNumber);
+                showText(accountNumber);
             } else {
                 String info = bytesToString(result);
                 Log.e(TAG, "----> error" + info);
-                mTvView.setText(info);
+                showText(info);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            try {
+                isoDep.close();
+            } catch (IOException e) {
+                Log.w(TAG, "exchange isoDep close failed", e);
+            }
+        }
+    }
+
+    /**
+     * 读取 ISO 15693 标签的全部存储，显示 UID 和内容
+     */
+    private void readNfcV(Tag tag) {
+        try {
+            byte[] memory = NfcVReader.readMemory(tag);
+            String info = "UID " + bytesToString(tag.getId()) + "\n" + memory.length + " 字节\n"
+                    + bytesToString(memory);
+            Log.i(TAG, "readNfcV " + info);
+            showText(info);
+        } catch (IOException e) {
+            Log.e(TAG, "readNfcV failed", e);
+            toast("读取标签失败");
         }
     }
 
+    private void showText(final String text) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mTvView.setText(text);
+            }
+        });
+    }
+
     /**
      * 检测是否支持 NFC
      */
@@ -177,8 +209,14 @@ public class MainActivity extends Activity {
         return stringToBytes(SELECT_APDU_HEADER + String.format("%02X", aid.length() / 2) + aid);
     }
 
-    private void toast(String info) {
-        Toast.makeText(MainActivity.this, info, Toast.LENGTH_SHORT).show();
+    private void toast(final String info) {
+        // 可能在后台线程调用，Toast 必须在 UI 线程显示
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(MainActivity.this, info, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
 }
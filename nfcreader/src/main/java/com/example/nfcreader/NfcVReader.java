@@ -0,0 +1,192 @@
+package com.example.nfcreader;
+
+import android.nfc.Tag;
+import android.nfc.tech.NfcV;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * ISO 15693（NfcV）标签的存储读取
+ * 先用 Get System Information 得到块大小和块数，再用 Read Multiple Blocks 批量读取，
+ * 每批的块数按 getMaxTransceiveLength() 计算；标签拒绝时减半重试，减到 1 块仍不支持
+ * 就改用 Read Single Block 逐块读
+ */
+public class NfcVReader {
+    private static final String TAG = "NfcVReader";
+    // 请求标志：高速率 + 寻址模式（命令里带 UID），协议扩展时块号为 2 字节
+    private static final byte FLAGS_ADDRESSED = 0x22;
+    private static final byte FLAG_PROTOCOL_EXTENSION = 0x08;
+    private static final byte CMD_READ_SINGLE_BLOCK = 0x20;
+    private static final byte CMD_READ_MULTIPLE_BLOCKS = 0x23;
+    private static final byte CMD_GET_SYSTEM_INFO = 0x2B;
+    // 响应标志第 0 位表示出错，此时第 2 个字节是错误码
+    private static final int RESPONSE_ERROR = 0x01;
+    // 系统信息标志：是否带 DSFID、AFI、存储大小
+    private static final int INFO_DSFID = 0x01;
+    private static final int INFO_AFI = 0x02;
+    private static final int INFO_MEMORY_SIZE = 0x04;
+    // Read Multiple Blocks 一次最多读 256 块（块数减 1 占一个字节）
+    private static final int MAX_BLOCKS_PER_READ = 256;
+
+    private final NfcV mNfcV;
+    private final byte[] mUid;
+    private boolean mProtocolExtension;
+    private int mBlockSize;
+    private int mBlockCount;
+    // 当前每批读的块数，0 表示只能用 Read Single Block
+    private int mBatch;
+
+    private NfcVReader(NfcV nfcV, byte[] uid) {
+        mNfcV = nfcV;
+        mUid = uid;
+    }
+
+    /**
+     * 读取标签的全部存储，标签不是 NfcV 时返回 null
+     */
+    public static byte[] readMemory(Tag tag) throws IOException {
+        NfcV nfcV = NfcV.get(tag);
+        if (nfcV == null) {
+            return null;
+        }
+        nfcV.connect();
+        try {
+            NfcVReader reader = new NfcVReader(nfcV, tag.getId());
+            reader.readSystemInfo();
+            return reader.readBlocks();
+        } finally {
+            nfcV.close();
+        }
+    }
+
+    /**
+     * Get System Information，得到块大小和块数；
+     * 块数超过 256 的标签只在协议扩展模式下回答，这时再试一次
+     */
+    private void readSystemInfo() throws IOException {
+        byte[] info;
+        try {
+            info = send(CMD_GET_SYSTEM_INFO, new byte[0]);
+        } catch (IOException e) {
+            Log.i(TAG, "readSystemInfo 改用协议扩展模式: " + e);
+            mProtocolExtension = true;
+            info = send(CMD_GET_SYSTEM_INFO, new byte[0]);
+        }
+        // [响应标志][信息标志][UID 8 字节][DSFID][AFI][块数 - 1][块大小 - 1][IC 型号]
+        int pos = 10;
+        if (info.length < pos) {
+            throw new IOException("系统信息长度不对: " + info.length);
+        }
+        int infoFlags = info[1] & 0xff;
+        if ((infoFlags & INFO_MEMORY_SIZE) == 0) {
+            throw new IOException("标签没有报告存储大小");
+        }
+        if ((infoFlags & INFO_DSFID) != 0) {
+            pos++;
+        }
+        if ((infoFlags & INFO_AFI) != 0) {
+            pos++;
+        }
+        if (info.length < pos + (mProtocolExtension ? 3 : 2)) {
+            throw new IOException("系统信息长度不对: " + info.length);
+        }
+        int blockCount = info[pos++] & 0xff;
+        if (mProtocolExtension) {
+            blockCount |= (info[pos++] & 0xff) << 8;
+        }
+        mBlockCount = blockCount + 1;
+        mBlockSize = (info[pos] & 0x1f) + 1;
+        // 响应只有 1 字节标志，其余都是数据
+        mBatch = Math.max(1, Math.min(MAX_BLOCKS_PER_READ,
+                (mNfcV.getMaxTransceiveLength() - 1) / mBlockSize));
+        Log.i(TAG, "readSystemInfo " + mBlockCount + " 块，每块 " + mBlockSize + " 字节，每批 "
+                + mBatch + " 块");
+    }
+
+    private byte[] readBlocks() throws IOException {
+        byte[] memory = new byte[mBlockCount * mBlockSize];
+        int block = 0;
+        int commands = 0;
+        while (block < mBlockCount) {
+            int count = Math.min(Math.max(mBatch, 1), mBlockCount - block);
+            byte[] data;
+            try {
+                commands++;
+                data = mBatch == 0 ? readSingleBlock(block) : readMultipleBlocks(block, count);
+            } catch (IOException e) {
+                if (mBatch == 0) {
+                    throw e;
+                }
+                // 有的标签一次能读的块数有限，或根本不支持 Read Multiple Blocks
+                mBatch /= 2;
+                Log.i(TAG, "readBlocks 每批减为 " + mBatch + " 块: " + e);
+                continue;
+            }
+            System.arraycopy(data, 0, memory, block * mBlockSize, data.length);
+            block += data.length / mBlockSize;
+        }
+        Log.i(TAG, "readBlocks 读取 " + memory.length + " 字节，共 " + commands + " 条命令");
+        return memory;
+    }
+
+    private byte[] readMultipleBlocks(int first, int count) throws IOException {
+        byte[] data = send(CMD_READ_MULTIPLE_BLOCKS, blockParams(first, count - 1));
+        return checkLength(data, count);
+    }
+
+    private byte[] readSingleBlock(int block) throws IOException {
+        byte[] data = send(CMD_READ_SINGLE_BLOCK, blockParams(block, -1));
+        return checkLength(data, 1);
+    }
+
+    /**
+     * 块号（协议扩展时 2 字节，低位在前），count 不为 -1 时后面跟 1 字节块数
+     */
+    private byte[] blockParams(int block, int count) {
+        byte[] params = new byte[(mProtocolExtension ? 2 : 1) + (count < 0 ? 0 : 1)];
+        int pos = 0;
+        params[pos++] = (byte) block;
+        if (mProtocolExtension) {
+            params[pos++] = (byte) (block >> 8);
+        }
+        if (count >= 0) {
+            params[pos] = (byte) count;
+        }
+        return params;
+    }
+
+    /**
+     * 去掉响应标志，检查数据长度
+     */
+    private byte[] checkLength(byte[] response, int blocks) throws IOException {
+        int expected = blocks * mBlockSize;
+        if (response.length != expected + 1) {
+            throw new IOException("响应 " + (response.length - 1) + " 字节，应为 " + expected);
+        }
+        byte[] data = new byte[expected];
+        System.arraycopy(response, 1, data, 0, expected);
+        return data;
+    }
+
+    /**
+     * 发送寻址模式的命令：[标志][命令][UID 8 字节][参数]，响应出错时抛出 IOException
+     */
+    private byte[] send(byte command, byte[] params) throws IOException {
+        byte[] frame = new byte[2 + mUid.length + params.length];
+        frame[0] = mProtocolExtension
+                ? (byte) (FLAGS_ADDRESSED | FLAG_PROTOCOL_EXTENSION) : FLAGS_ADDRESSED;
+        frame[1] = command;
+        System.arraycopy(mUid, 0, frame, 2, mUid.length);
+        System.arraycopy(params, 0, frame, 2 + mUid.length, params.length);
+        byte[] response = mNfcV.transceive(frame);
+        if (response == null || response.length == 0) {
+            throw new IOException("命令 " + String.format("%02X", command) + " 没有响应");
+        }
+        if ((response[0] & RESPONSE_ERROR) != 0) {
+            throw new IOException("命令 " + String.format("%02X", command) + " 错误码 "
+                    + (response.length > 1 ? String.format("%02X", response[1]) : "?"));
+        }
+        return response;
+    }
+}